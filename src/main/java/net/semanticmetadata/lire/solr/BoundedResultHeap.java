@@ -0,0 +1,133 @@
+package net.semanticmetadata.lire.solr;
+
+/**
+ * A bounded max-heap of (docId, distance) pairs based on primitive arrays. It keeps the k nearest documents seen
+ * so far, where the root is always the current worst result, ie. the bound a new candidate has to beat. No objects
+ * are created per candidate, so it replaces the TreeSet of {@link CachingSimpleResult} in the re-ranking loop.
+ * Ties in the distance are broken by the document number, just like in {@link net.semanticmetadata.lire.searchers.SimpleResult}.
+ */
+public class BoundedResultHeap {
+    private final int[] docs;
+    private final double[] distances;
+    private int size = 0;
+    private boolean sorted = false;
+
+    /**
+     * @param maximumHits the maximum number of results kept in the heap.
+     */
+    public BoundedResultHeap(int maximumHits) {
+        docs = new int[Math.max(0, maximumHits)];
+        distances = new double[docs.length];
+    }
+
+    /**
+     * Offers a candidate to the heap. It is added if the heap is not full yet or if it is nearer than the current
+     * worst result, which is dropped then.
+     *
+     * @param doc      the document number
+     * @param distance the distance of the document to the query
+     * @return true if the candidate was taken.
+     */
+    public boolean offer(int doc, double distance) {
+        if (size < docs.length) {
+            docs[size] = doc;
+            distances[size] = distance;
+            upHeap(size++);
+            return true;
+        } else if (size > 0 && distance < distances[0]) {
+            docs[0] = doc;
+            distances[0] = distance;
+            downHeap(0);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the distance a candidate has to beat to get into the heap, Double.MAX_VALUE as long as the heap is not full.
+     */
+    public double getMaxDistance() {
+        return (size < docs.length || size == 0) ? Double.MAX_VALUE : distances[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == docs.length;
+    }
+
+    /**
+     * Sorts the content ascending by distance. Afterwards the heap property is gone, so no more candidates may be
+     * offered, but {@link #getDoc(int)} and {@link #getDistance(int)} give the results in rank order.
+     */
+    public void sort() {
+        if (sorted) return;
+        // in-place heap sort, the max is moved to the end in each step.
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            downHeap(0, end);
+        }
+        sorted = true;
+    }
+
+    /**
+     * @param rank position in the result list, only meaningful after {@link #sort()}
+     * @return the document number at the given position.
+     */
+    public int getDoc(int rank) {
+        return docs[rank];
+    }
+
+    /**
+     * @param rank position in the result list, only meaningful after {@link #sort()}
+     * @return the distance at the given position.
+     */
+    public double getDistance(int rank) {
+        return distances[rank];
+    }
+
+    private void upHeap(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!greater(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void downHeap(int i) {
+        downHeap(i, size);
+    }
+
+    private void downHeap(int i, int length) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < length && greater(left, largest)) largest = left;
+            if (right < length && greater(right, largest)) largest = right;
+            if (largest == i) return;
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    /**
+     * Order by distance first, then by document number.
+     */
+    private boolean greater(int a, int b) {
+        if (distances[a] != distances[b]) return distances[a] > distances[b];
+        return docs[a] > docs[b];
+    }
+
+    private void swap(int a, int b) {
+        int d = docs[a];
+        docs[a] = docs[b];
+        docs[b] = d;
+        double dist = distances[a];
+        distances[a] = distances[b];
+        distances[b] = dist;
+    }
+}
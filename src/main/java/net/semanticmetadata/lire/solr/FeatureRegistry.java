@@ -7,6 +7,11 @@ import net.semanticmetadata.lire.imageanalysis.features.global.spatialpyramid.SP
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * This file is part of LIRE Solr, a Java library for content based image retrieval.
@@ -25,6 +30,22 @@ public class FeatureRegistry {
     private static HashMap<String, Class<? extends GlobalFeature>> featureFieldToClass = new HashMap<String, Class<? extends GlobalFeature>>(16);
     private static HashMap<String, String> hashFieldToFeatureField = new HashMap<String, String>(16);
     private static HashMap<Class<? extends GlobalFeature>, String> classToCode = new HashMap<Class<? extends GlobalFeature>, String>(16);
+    private static HashMap<String, String> hashFieldToMetricSpacesField = new HashMap<String, String>(16);
+    private static HashMap<String, String> codeToHashField = new HashMap<String, String>(16);
+    private static HashMap<String, String> codeToFeatureField = new HashMap<String, String>(16);
+    private static HashMap<String, String> codeToMetricSpacesField = new HashMap<String, String>(16);
+    /**
+     * Factories of the features, so instances are created without reflection.
+     */
+    private static HashMap<Class<? extends GlobalFeature>, Supplier<GlobalFeature>> classToFactory = new HashMap<Class<? extends GlobalFeature>, Supplier<GlobalFeature>>(16);
+    private static HashMap<String, Supplier<GlobalFeature>> hashFieldToFactory = new HashMap<String, Supplier<GlobalFeature>>(16);
+    private static HashMap<String, Supplier<GlobalFeature>> featureFieldToFactory = new HashMap<String, Supplier<GlobalFeature>>(16);
+    /**
+     * Instances for reading the features of the documents, at most {@link #MAX_POOLED_FEATURES} per feature, see
+     * {@link #acquireFeature(Class)}.
+     */
+    private static final Map<Class<? extends GlobalFeature>, BlockingQueue<GlobalFeature>> pooledFeatures = new ConcurrentHashMap<>(16);
+    static final int MAX_POOLED_FEATURES = 32;
 
 
     // Constants.
@@ -35,24 +56,24 @@ public class FeatureRegistry {
     static {
         // initial adding of the supported features:
         // classical features from the first implementation
-        codeToClass.put("cl", ColorLayout.class);
-        codeToClass.put("eh", EdgeHistogram.class);
-        codeToClass.put("jc", JCD.class);
-        codeToClass.put("oh", OpponentHistogram.class);
-        codeToClass.put("ph", PHOG.class);
+        register("cl", ColorLayout.class, ColorLayout::new);
+        register("eh", EdgeHistogram.class, EdgeHistogram::new);
+        register("jc", JCD.class, JCD::new);
+        register("oh", OpponentHistogram.class, OpponentHistogram::new);
+        register("ph", PHOG.class, PHOG::new);
 
         // additional global features
-        codeToClass.put("ac", AutoColorCorrelogram.class);
-        codeToClass.put("ad", ACCID.class);
-        codeToClass.put("ce", CEDD.class);
-        codeToClass.put("fc", FCTH.class);
-        codeToClass.put("fo", FuzzyOpponentHistogram.class);
-        codeToClass.put("jh", JointHistogram.class);
-        codeToClass.put("sc", ScalableColor.class);
-        codeToClass.put("pc", SPCEDD.class);
+        register("ac", AutoColorCorrelogram.class, AutoColorCorrelogram::new);
+        register("ad", ACCID.class, ACCID::new);
+        register("ce", CEDD.class, CEDD::new);
+        register("fc", FCTH.class, FCTH::new);
+        register("fo", FuzzyOpponentHistogram.class, FuzzyOpponentHistogram::new);
+        register("jh", JointHistogram.class, JointHistogram::new);
+        register("sc", ScalableColor.class, ScalableColor::new);
+        register("pc", SPCEDD.class, SPCEDD::new);
 
         // local feature based histograms.
-        // codeToClass.put("sim_ce", GenericByteLireFeature.class); // SIMPLE CEDD ... just to give a hint how it might look like.
+        // register("sim_ce", GenericByteLireFeature.class, GenericByteLireFeature::new); // SIMPLE CEDD ... just to give a hint how it might look like.
 
         // add your features here if you want more.
         // ....
@@ -61,13 +82,25 @@ public class FeatureRegistry {
 
         for (Iterator<String> iterator = codeToClass.keySet().iterator(); iterator.hasNext(); ) {
             String code = iterator.next();
-            hashFieldToClass.put(code + hashFieldPostfix, codeToClass.get(code));
-            featureFieldToClass.put(code + featureFieldPostfix, codeToClass.get(code));
+            Class<? extends GlobalFeature> featureClass = codeToClass.get(code);
+            codeToHashField.put(code, code + hashFieldPostfix);
+            codeToFeatureField.put(code, code + featureFieldPostfix);
+            codeToMetricSpacesField.put(code, code + metricSpacesFieldPostfix);
+            hashFieldToClass.put(code + hashFieldPostfix, featureClass);
+            featureFieldToClass.put(code + featureFieldPostfix, featureClass);
             hashFieldToFeatureField.put(code + hashFieldPostfix, code + featureFieldPostfix);
-            classToCode.put(codeToClass.get(code), code);
+            hashFieldToMetricSpacesField.put(code + hashFieldPostfix, code + metricSpacesFieldPostfix);
+            hashFieldToFactory.put(code + hashFieldPostfix, classToFactory.get(featureClass));
+            featureFieldToFactory.put(code + featureFieldPostfix, classToFactory.get(featureClass));
+            classToCode.put(featureClass, code);
         }
     }
 
+    private static <T extends GlobalFeature> void register(String code, Class<T> featureClass, Supplier<T> factory) {
+        codeToClass.put(code, featureClass);
+        classToFactory.put(featureClass, factory::get);
+    }
+
     /**
      * Used to retrieve a registered class for a given hash field name.
      * @param hashFieldName the name of the hash field
@@ -96,6 +129,94 @@ public class FeatureRegistry {
         return hashFieldToFeatureField.get(hashFieldName);
     }
 
+    /**
+     * Returns the name of the MetricSpaces field for a given hash field, eg. cl_ms for cl_ha.
+     * @param hashFieldName the name of the hash field
+     * @return the name, also for features that are not registered.
+     */
+    public static String getMetricSpacesFieldName(String hashFieldName) {
+        String field = hashFieldToMetricSpacesField.get(hashFieldName);
+        return field != null ? field : hashFieldName.replace(hashFieldPostfix, metricSpacesFieldPostfix);
+    }
+
+    /**
+     * @param featureClass the class of the feature
+     * @return the factory of the feature or null if not registered.
+     */
+    public static Supplier<GlobalFeature> getFactory(Class<? extends GlobalFeature> featureClass) {
+        return classToFactory.get(featureClass);
+    }
+
+    /**
+     * @param hashFieldName the name of the hash field
+     * @return the factory of the feature or null if not registered.
+     */
+    public static Supplier<GlobalFeature> getFactoryForHashField(String hashFieldName) {
+        return hashFieldToFactory.get(hashFieldName);
+    }
+
+    /**
+     * @param featureFieldName the name of the field containing the histogram
+     * @return the factory of the feature or null if not registered.
+     */
+    public static Supplier<GlobalFeature> getFactoryForFeatureField(String featureFieldName) {
+        return featureFieldToFactory.get(featureFieldName);
+    }
+
+    /**
+     * Creates a new instance of a feature, by its factory if registered, by reflection otherwise.
+     * @param featureClass the class of the feature
+     * @return the new instance.
+     */
+    public static GlobalFeature newFeature(Class<? extends GlobalFeature> featureClass) {
+        Supplier<GlobalFeature> factory = classToFactory.get(featureClass);
+        if (factory != null) return factory.get();
+        try {
+            return featureClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Cannot create an instance of " + featureClass.getName(), e);
+        }
+    }
+
+    /**
+     * Takes an instance of the feature from the pool or creates a new one if there is none. It's meant for reading the
+     * features of documents one after the other in a loop and must be given back by {@link #releaseFeature(GlobalFeature)}
+     * after the loop, eg. in a finally block.
+     * @param featureClass the class of the feature
+     * @return an instance only used by the caller until it's released.
+     */
+    public static GlobalFeature acquireFeature(Class<? extends GlobalFeature> featureClass) {
+        BlockingQueue<GlobalFeature> pool = pooledFeatures.get(featureClass);
+        GlobalFeature feature = pool != null ? pool.poll() : null;
+        return feature != null ? feature : newFeature(featureClass);
+    }
+
+    /**
+     * Puts an instance taken by {@link #acquireFeature(Class)} back into the pool, unless there are enough instances
+     * of the feature pooled already. It must not be used by the caller afterwards.
+     * @param feature the instance, ignored if null.
+     */
+    public static void releaseFeature(GlobalFeature feature) {
+        if (feature == null) return;
+        pooledFeatures.computeIfAbsent(feature.getClass(), c -> new ArrayBlockingQueue<>(MAX_POOLED_FEATURES)).offer(feature);
+    }
+
+    /**
+     * Drops the pooled instances, so the features and their classes aren't kept after a core is closed or reloaded.
+     * The instances are created anew by {@link #acquireFeature(Class)}.
+     */
+    public static void clearPooledFeatures() {
+        pooledFeatures.clear();
+    }
+
+    /**
+     * @return the number of pooled instances of the feature.
+     */
+    static int getPooledFeatureCount(Class<? extends GlobalFeature> featureClass) {
+        BlockingQueue<GlobalFeature> pool = pooledFeatures.get(featureClass);
+        return pool != null ? pool.size() : 0;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -119,19 +240,22 @@ public class FeatureRegistry {
         return classToCode.get(featureClass);
     }
 
-    public static Class getClassForCode(String code) {
+    public static Class<? extends GlobalFeature> getClassForCode(String code) {
         return codeToClass.get(code);
     }
 
     public static String codeToHashField(String code) {
-        return code + hashFieldPostfix;
+        String field = codeToHashField.get(code);
+        return field != null ? field : code + hashFieldPostfix;
     }
 
     public static String codeToMetricSpacesField(String code) {
-        return code + metricSpacesFieldPostfix;
+        String field = codeToMetricSpacesField.get(code);
+        return field != null ? field : code + metricSpacesFieldPostfix;
     }
 
     public static String codeToFeatureField(String code) {
-        return code + featureFieldPostfix;
+        String field = codeToFeatureField.get(code);
+        return field != null ? field : code + featureFieldPostfix;
     }
 }
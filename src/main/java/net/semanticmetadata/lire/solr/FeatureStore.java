@@ -0,0 +1,214 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the features of the _hi DocValues fields off heap for re-ranking. Each field of each index segment is copied
+ * once into a direct buffer with a fixed stride per document, ie. the length of the feature followed by its bytes,
+ * so reading the feature of a document is a plain memory copy at docId * stride. Segments are immutable, so the
+ * copies are shared by all searchers and dropped when the segment is closed. If the store is disabled or its memory
+ * budget is used up, the DocValues of the index are returned instead.
+ */
+public class FeatureStore {
+    /**
+     * Marks segments that don't fit into the store.
+     */
+    private static final SegmentFeatures NOT_STORED = new SegmentFeatures(null, 0, 0);
+
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final ConcurrentHashMap<SegmentKey, SegmentFeatures> segments = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SegmentKey, Object> loadLocks = new ConcurrentHashMap<>();
+    private final Set<Object> closeListeners = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param maxBytes the maximum number of bytes held off heap, 0 disables the store.
+     */
+    public FeatureStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @param reader the top level reader, eg. of the SolrIndexSearcher
+     * @param field  the name of the DocValues field holding the features, eg. cl_hi
+     * @return the features for the global document numbers of the reader. If the store is disabled, these are the
+     * MultiDocValues, which are null if the field has no DocValues.
+     * @throws IOException
+     */
+    public BinaryDocValues getBinaryValues(IndexReader reader, String field) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        if (!isEnabled()) return MultiDocValues.getBinaryValues(reader, field);
+        if (leaves.size() == 1) return getBinaryValues(leaves.get(0).reader(), field);
+        BinaryDocValues[] values = new BinaryDocValues[leaves.size()];
+        int[] docStarts = new int[leaves.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getBinaryValues(leaves.get(i).reader(), field);
+            docStarts[i] = leaves.get(i).docBase;
+        }
+        return new BinaryDocValues() {
+            @Override
+            public BytesRef get(int docID) {
+                int leaf = ReaderUtil.subIndex(docID, docStarts);
+                return values[leaf].get(docID - docStarts[leaf]);
+            }
+        };
+    }
+
+    /**
+     * @param reader the reader of a single segment
+     * @param field  the name of the DocValues field holding the features, eg. cl_hi
+     * @return the features of the segment, empty values if the field has no DocValues.
+     * @throws IOException
+     */
+    public BinaryDocValues getBinaryValues(LeafReader reader, String field) throws IOException {
+        if (!isEnabled()) return DocValues.getBinary(reader, field);
+        Object coreKey = reader.getCoreCacheKey();
+        SegmentKey key = new SegmentKey(coreKey, field);
+        SegmentFeatures features = segments.get(key);
+        if (features == null) {
+            if (closeListeners.add(coreKey)) reader.addCoreClosedListener(this::removeSegment);
+            // building a segment is expensive, so it's done only once, while other segments and fields are built
+            // concurrently. The lock is dropped when done, later calls find the features without locking.
+            Object lock = loadLocks.computeIfAbsent(key, k -> new Object());
+            try {
+                synchronized (lock) {
+                    features = segments.get(key);
+                    if (features == null) {
+                        features = load(reader, field);
+                        segments.put(key, features);
+                    }
+                }
+            } finally {
+                loadLocks.remove(key, lock);
+            }
+        }
+        return features == NOT_STORED ? DocValues.getBinary(reader, field) : features.values();
+    }
+
+    /**
+     * @return the number of bytes held off heap.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of segment fields in the store.
+     */
+    public int size() {
+        int size = 0;
+        for (SegmentFeatures features : segments.values()) {
+            if (features != NOT_STORED) size++;
+        }
+        return size;
+    }
+
+    private SegmentFeatures load(LeafReader reader, String field) throws IOException {
+        int maxDoc = reader.maxDoc();
+        BinaryDocValues docValues = DocValues.getBinary(reader, field);
+        int maxLength = 0;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            maxLength = Math.max(maxLength, docValues.get(doc).length);
+        }
+        int stride = maxLength + 4; // the length comes first.
+        long size = (long) stride * maxDoc;
+        if (maxLength == 0 || size > Integer.MAX_VALUE || bytes.addAndGet(size) > maxBytes) {
+            if (maxLength > 0 && size <= Integer.MAX_VALUE) bytes.addAndGet(-size);
+            return NOT_STORED;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        docValues = DocValues.getBinary(reader, field); // sequential access again.
+        for (int doc = 0; doc < maxDoc; doc++) {
+            BytesRef bytesRef = docValues.get(doc);
+            data.position(doc * stride);
+            data.putInt(bytesRef.length);
+            data.put(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        }
+        return new SegmentFeatures(data, stride, maxDoc);
+    }
+
+    private void removeSegment(Object coreKey) {
+        closeListeners.remove(coreKey);
+        segments.entrySet().removeIf(entry -> {
+            if (entry.getKey().coreKey != coreKey) return false;
+            if (entry.getValue() != NOT_STORED) bytes.addAndGet(-entry.getValue().size());
+            return true;
+        });
+    }
+
+    /**
+     * The features of a single field of a segment.
+     */
+    private static class SegmentFeatures {
+        private final ByteBuffer data;
+        private final int stride;
+        private final int maxDoc;
+
+        SegmentFeatures(ByteBuffer data, int stride, int maxDoc) {
+            this.data = data;
+            this.stride = stride;
+            this.maxDoc = maxDoc;
+        }
+
+        long size() {
+            return (long) stride * maxDoc;
+        }
+
+        /**
+         * @return a view for reading features. Views are cheap, but not thread safe as they re-use the BytesRef.
+         */
+        BinaryDocValues values() {
+            final ByteBuffer view = data.duplicate();
+            final BytesRef bytesRef = new BytesRef(new byte[stride - 4]);
+            return new BinaryDocValues() {
+                @Override
+                public BytesRef get(int docID) {
+                    view.position(docID * stride);
+                    bytesRef.length = view.getInt();
+                    view.get(bytesRef.bytes, 0, bytesRef.length);
+                    return bytesRef;
+                }
+            };
+        }
+    }
+
+    private static class SegmentKey {
+        private final Object coreKey;
+        private final String field;
+
+        SegmentKey(Object coreKey, String field) {
+            this.coreKey = coreKey;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SegmentKey)) return false;
+            SegmentKey other = (SegmentKey) o;
+            return coreKey == other.coreKey && field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + field.hashCode();
+        }
+    }
+}
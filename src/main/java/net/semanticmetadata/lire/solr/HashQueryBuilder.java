@@ -0,0 +1,239 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.utils.StatsUtils;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Builds the candidate queries for MetricSpaces and hashes directly from the terms, instead of creating a query string
+ * that is parsed by a QueryParser afterwards. The resulting queries are the same as the ones the QueryParser creates
+ * from {@link MetricSpaces#generateBoostedQuery(GlobalFeature, int)}, ie. the nearest reference point is boosted with
+ * 1, the following ones with linearly decreasing boosts rounded to two decimals. BitSampling queries take the hashes
+ * with the lowest document frequency first, their terms are hex strings or, for an {@link IntHashField}, the binary
+ * terms created straight from the int hashes.
+ */
+public class HashQueryBuilder {
+    /**
+     * @param feature     the query feature, which has to be supported by MetricSpaces.
+     * @param queryLength the number of reference points used.
+     * @param field       the MetricSpaces field, eg. cl_ms
+     * @return the query with the nearest reference points, boosted by their rank.
+     */
+    public static Query createMetricSpacesQuery(GlobalFeature feature, int queryLength, String field) {
+        List<String> terms = ReferenceData.generateHashList(feature, queryLength);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        int n = terms.size();
+        for (int i = 0; i < n; i++) {
+            builder.add(new BoostQuery(new TermQuery(new Term(field, terms.get(i))), getBoost(n - i, n)), BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates a query from white space separated terms, each of them with an optional boost like in "R000012^0.95",
+     * which is the format of the query strings generated by MetricSpaces.
+     *
+     * @param hashes the terms
+     * @param field  the field to search in
+     * @return the query matching any of the terms.
+     */
+    public static Query createQuery(String hashes, String field) {
+        return createQuery(hashes, field, false);
+    }
+
+    /**
+     * Like {@link #createQuery(String, String)}, but the terms are hex strings of hashes indexed by an
+     * {@link IntHashField} if binary is true.
+     *
+     * @param hashes the terms
+     * @param field  the field to search in
+     * @param binary true if the field is an {@link IntHashField}
+     * @return the query matching any of the terms.
+     */
+    public static Query createQuery(String hashes, String field, boolean binary) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        StringTokenizer st = new StringTokenizer(hashes);
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken();
+            int pos = token.indexOf('^');
+            String term = pos < 0 ? token : token.substring(0, pos);
+            Query termQuery = new TermQuery(binary ? toTerm(field, IntHashField.parseHash(term), true) : new Term(field, term));
+            if (pos < 0) {
+                builder.add(termQuery, BooleanClause.Occur.SHOULD);
+            } else {
+                float boost = Float.parseFloat(token.substring(pos + 1).replace(',', '.'));
+                builder.add(new BoostQuery(termQuery, boost), BooleanClause.Occur.SHOULD);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates the query for retrieving the candidates with a given share of the query terms.
+     *
+     * @param searcher     used for the term statistics of BitSampling hashes
+     * @param plan         the parameters of the request
+     * @param queryFeature the feature of the query image
+     * @param hashes       the BitSampling hashes of the query feature, re-generated if null
+     * @param accuracy     the share of query terms used.
+     * @param executor     used to read the term statistics of new segments in parallel, can be null.
+     * @return the query, a MatchAllDocsQuery if MetricSpaces is requested, but the feature is not supported.
+     * @throws IOException
+     */
+    public static Query createCandidateQuery(SolrIndexSearcher searcher, SearchPlan plan, GlobalFeature queryFeature, int[] hashes, double accuracy, ExecutorService executor) throws IOException {
+        if (!plan.isUseMetricSpaces()) {
+            boolean binary = IntHashField.isIntHashField(searcher.getSchema(), plan.getHashField());
+            HashTermStatistics statistics = HashTermStatistics.get(searcher.getIndexReader(), plan.getHashField(), binary, executor);
+            if (plan.getProbes() > 0) {
+                return createMultiProbeQuery(MultiProbeBitSampling.project(queryFeature.getFeatureVector()), plan.getHashField(), statistics, accuracy, plan.getProbes());
+            }
+            if (hashes == null) hashes = MultiProbeBitSampling.generateHashes(queryFeature.getFeatureVector());
+            return createQuery(hashes, plan.getHashField(), statistics, accuracy);
+        } else if (ReferenceData.supportsMetricSpaces(queryFeature)) {
+            // ----< Metric Spaces >-----
+            int queryLength = (int) StatsUtils.clamp(accuracy * ReferenceData.getPostingListLength(queryFeature), 3, ReferenceData.getPostingListLength(queryFeature));
+            return createMetricSpacesQuery(queryFeature, queryLength, plan.getMetricSpacesField());
+        } else {
+            return new MatchAllDocsQuery();
+        }
+    }
+
+    /**
+     * Makes a Boolean query out of a list of hashes by ordering them ascending using their docFreq and
+     * then only using the most distinctive ones, defined by size in [0.1, 1], size=1 takes all.
+     *
+     * @param hashes
+     * @param paramField
+     * @param statistics the document frequencies of the hashes in paramField
+     * @param size       in [0.1, 1]
+     * @return
+     */
+    static BooleanQuery createQuery(int[] hashes, String paramField, HashTermStatistics statistics, double size) {
+        size = Math.max(0.1, Math.min(size, 1d)); // clamp size.
+        int[] bundles = orderBundles(hashes, statistics);
+        int numHashes = (int) Math.min(bundles.length, Math.floor(hashes.length * size));
+        // a minimum of 3 hashes ...
+        if (numHashes < 3) numHashes = 3;
+
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        for (int i = 0; i < numHashes; i++) {
+            // be aware that the hashFunctionsFileName of the field must match the one you put the hashes in before.
+            queryBuilder.add(new BooleanClause(new TermQuery(toTerm(paramField, hashes[bundles[i]], statistics.isBinary())), BooleanClause.Occur.SHOULD));
+        }
+        BooleanQuery query = queryBuilder.build();
+        // this query is just for boosting the results with more matching hashes. We'd need to match it to all docs.
+//        query.add(new BooleanClause(new MatchAllDocsQuery(), BooleanClause.Occur.SHOULD));
+        return query;
+    }
+
+    /**
+     * Makes a Boolean query like {@link #createQuery(int[], String, HashTermStatistics, double)}, but adds the
+     * perturbed hashes of each selected query hash, see {@link MultiProbeBitSampling}. The i-th of n probes is boosted
+     * with (n - i) / (n + 1), so the more likely a probe the higher its boost and all of them count less than the query
+     * hashes. Probes not in the index are left out.
+     *
+     * @param projections the projections of the query feature per bundle, see {@link MultiProbeBitSampling#project(double[])}
+     * @param paramField  the BitSampling field
+     * @param statistics  the document frequencies of the hashes in paramField
+     * @param size        in [0.1, 1]
+     * @param probes      the number of probes per query hash
+     * @return the query
+     */
+    static BooleanQuery createMultiProbeQuery(double[][] projections, String paramField, HashTermStatistics statistics, double size, int probes) {
+        size = Math.max(0.1, Math.min(size, 1d)); // clamp size.
+        int[] hashes = new int[projections.length];
+        for (int j = 0; j < projections.length; j++) hashes[j] = MultiProbeBitSampling.hash(projections[j]);
+        // the same order as for the hashes without probes.
+        int[] bundles = orderBundles(hashes, statistics);
+        int numHashes = (int) Math.min(bundles.length, Math.floor(hashes.length * size));
+        if (numHashes < 3) numHashes = 3;
+        // staying within the maximum number of clauses.
+        probes = Math.min(probes, BooleanQuery.getMaxClauseCount() / numHashes - 1);
+
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        for (int i = 0; i < numHashes; i++) {
+            int bundle = bundles[i];
+            queryBuilder.add(new TermQuery(toTerm(paramField, hashes[bundle], statistics.isBinary())), BooleanClause.Occur.SHOULD);
+            int[] probeHashes = MultiProbeBitSampling.probe(projections[bundle], probes);
+            for (int p = 0; p < probeHashes.length; p++) {
+                if (statistics.docFreq(probeHashes[p]) < 1) continue;
+                queryBuilder.add(new BoostQuery(new TermQuery(toTerm(paramField, probeHashes[p], statistics.isBinary())),
+                        getBoost(probeHashes.length - p, probeHashes.length + 1)), BooleanClause.Occur.SHOULD);
+            }
+        }
+        return queryBuilder.build();
+    }
+
+    /**
+     * Sorts the hashes to put those first, that do not show up in a large number of documents
+     * while deleting those that are not in the index at all if requested. Meaning: terms sorted by docFreq ascending,
+     * removing those with docFreq == 0, but leaving at least three.
+     *
+     * @param hashes     the int[] of hashes
+     * @param statistics the document frequencies of the hashes in the field.
+     * @param removeZeroDocFreqTerms true if the hashes not in the index should be left out, false for all hashes.
+     * @return the hashes as terms, ie. hex strings.
+     */
+    static List<String> orderHashes(int[] hashes, HashTermStatistics statistics, boolean removeZeroDocFreqTerms) {
+        int[] order = orderBundles(hashes, statistics, removeZeroDocFreqTerms);
+        List<String> hList = new ArrayList<>(order.length);
+        for (int i : order) hList.add(Integer.toHexString(hashes[i]));
+        return hList;
+    }
+
+    /**
+     * @return the positions of the hashes sorted by docFreq ascending and in their original order for equal docFreq,
+     * without those with docFreq == 0, but leaving at least three.
+     */
+    static int[] orderBundles(int[] hashes, HashTermStatistics statistics) {
+        return orderBundles(hashes, statistics, true);
+    }
+
+    /**
+     * @return the positions of the hashes sorted by docFreq ascending and in their original order for equal docFreq,
+     * without those with docFreq == 0 if removeZeroDocFreqTerms is true, but leaving at least three.
+     */
+    static int[] orderBundles(int[] hashes, HashTermStatistics statistics, boolean removeZeroDocFreqTerms) {
+        // docFreq and position packed into a long, so sorting needs no boxing.
+        long[] sorted = new long[hashes.length];
+        for (int i = 0; i < hashes.length; i++) sorted[i] = ((long) statistics.docFreq(hashes[i]) << 32) | i;
+        Arrays.sort(sorted);
+        int start = 0;
+        while (removeZeroDocFreqTerms && start < sorted.length - 3 && (sorted[start] >>> 32) < 1) start++;
+        int[] order = new int[sorted.length - start];
+        for (int i = 0; i < order.length; i++) order[i] = (int) sorted[start + i];
+        return order;
+    }
+
+    /**
+     * @param field  the BitSampling field
+     * @param hash   the hash
+     * @param binary true if the field is an {@link IntHashField}
+     * @return the term of the hash, its hex string or its four bytes.
+     */
+    static Term toTerm(String field, int hash, boolean binary) {
+        return binary ? new Term(field, IntHashField.toBytesRef(hash)) : new Term(field, Integer.toHexString(hash));
+    }
+
+    /**
+     * @return the boost (rank / n) rounded to two decimals, like in the query string of MetricSpaces.
+     */
+    static float getBoost(int rank, int n) {
+        return Math.round(100d * rank / n) / 100f;
+    }
+}
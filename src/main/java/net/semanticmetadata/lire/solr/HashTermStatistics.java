@@ -1,48 +1,237 @@
 package net.semanticmetadata.lire.solr;
 
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterDirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.util.BytesRef;
-import org.apache.solr.search.SolrIndexSearcher;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
- * Used to hold the hashing terms in memory.
- * Created by mlux on 08.12.2016.
+ * Document frequencies of the BitSampling hashes of a field, used to put the most distinctive hashes first in a query.
+ * The hashes are indexed as hex strings or as binary terms of an {@link IntHashField}, they are kept as int keys of a
+ * primitive map. The statistics are built per
+ * segment and shared by all searchers, so only new segments are read after a commit, and dropped when the segment is
+ * closed. The statistics of a searcher are the sums over its segments, created once per searcher and field. They are
+ * kept for the unwrapped reader and dropped when it is closed, as Solr never closes the wrappers of its searchers, see
+ * {@link org.apache.solr.search.SolrIndexSearcher#getRawReader()}.
  */
-public class HashTermStatistics {
-    private static HashTermStatistics instance = new HashTermStatistics();
-    private static HashMap<String, HashMap<String, Integer>> termstats = new HashMap<>(8);
-
-    public static HashTermStatistics getInstance() {
-        return instance;
-    }
-
-    public static void addToStatistics(SolrIndexSearcher searcher, String field) throws IOException {
-        // check if this field is already in the stats.
-//        synchronized (instance) {
-            if (termstats.get(field)!=null) return;
-//        }
-        // else add it to the stats.
-        Terms terms = searcher.getSlowAtomicReader().terms(field);
-        HashMap<String, Integer> term2docFreq = new HashMap<String, Integer>(1000);
-        termstats.put(field, term2docFreq);
-        if (terms!=null) {
+public final class HashTermStatistics {
+    private static final ConcurrentHashMap<SegmentKey, IntIntHashMap> segments = new ConcurrentHashMap<>();
+    private static final Set<Object> coreCloseListeners = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentHashMap<IndexReader, Map<String, HashTermStatistics>> searchers = new ConcurrentHashMap<>();
+
+    private final IntIntHashMap docFreqs;
+    private final boolean binary;
+
+    private HashTermStatistics(IntIntHashMap docFreqs, boolean binary) {
+        this.docFreqs = docFreqs;
+        this.binary = binary;
+    }
+
+    /**
+     * @param reader the top level reader, eg. of the SolrIndexSearcher
+     * @param field  the BitSampling field, eg. cl_ha
+     * @return the statistics of the field in the reader.
+     * @throws IOException
+     */
+    public static HashTermStatistics get(IndexReader reader, String field) throws IOException {
+        return get(reader, field, null);
+    }
+
+    /**
+     * @param reader   the top level reader, eg. of the SolrIndexSearcher
+     * @param field    the BitSampling field, eg. cl_ha
+     * @param executor used to read new segments in parallel, if null they are read by the calling thread.
+     * @return the statistics of the field in the reader.
+     * @throws IOException
+     */
+    public static HashTermStatistics get(IndexReader reader, String field, ExecutorService executor) throws IOException {
+        return get(reader, field, false, executor);
+    }
+
+    /**
+     * @param reader   the top level reader, eg. of the SolrIndexSearcher
+     * @param field    the BitSampling field, eg. cl_ha
+     * @param binary   true if the hashes are indexed by an {@link IntHashField}, false for hex strings.
+     * @param executor used to read new segments in parallel, if null they are read by the calling thread.
+     * @return the statistics of the field in the reader.
+     * @throws IOException
+     */
+    public static HashTermStatistics get(IndexReader reader, String field, boolean binary, ExecutorService executor) throws IOException {
+        IndexReader rawReader = unwrap(reader);
+        Map<String, HashTermStatistics> fields = searchers.get(rawReader);
+        if (fields == null) {
+            fields = new ConcurrentHashMap<>();
+            Map<String, HashTermStatistics> current = searchers.putIfAbsent(rawReader, fields);
+            if (current != null) fields = current;
+            else rawReader.addReaderClosedListener(searchers::remove);
+        }
+        HashTermStatistics statistics = fields.get(field);
+        if (statistics == null) {
+            // concurrent requests might both sum up the segments, but the segments are read once.
+            statistics = new HashTermStatistics(sum(getSegments(reader, field, binary, executor)), binary);
+            HashTermStatistics current = fields.putIfAbsent(field, statistics);
+            if (current != null) statistics = current;
+        }
+        return statistics;
+    }
+
+    /**
+     * @param hash a BitSampling hash
+     * @return the number of documents with the hash.
+     */
+    public int docFreq(int hash) {
+        return docFreqs.get(hash);
+    }
+
+    /**
+     * @return true if the hashes are binary terms of an {@link IntHashField}, false if they are hex strings.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return the number of distinct hashes.
+     */
+    public int size() {
+        return docFreqs.size();
+    }
+
+    /**
+     * @return the number of searchers with statistics held in memory.
+     */
+    static int getSearcherCount() {
+        return searchers.size();
+    }
+
+    /**
+     * @return the number of segments held in memory for all searchers.
+     */
+    static int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the reader wrapped by filter readers like the ExitableDirectoryReader of Solr, which is the one closed.
+     */
+    private static IndexReader unwrap(IndexReader reader) {
+        return reader instanceof DirectoryReader ? FilterDirectoryReader.unwrap((DirectoryReader) reader) : reader;
+    }
+
+    private static List<IntIntHashMap> getSegments(IndexReader reader, String field, boolean binary, ExecutorService executor) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        List<IntIntHashMap> result = new ArrayList<>(leaves.size());
+        List<Future<IntIntHashMap>> loading = new ArrayList<>();
+        for (LeafReaderContext leaf : leaves) {
+            IntIntHashMap segment = segments.get(new SegmentKey(leaf.reader().getCoreCacheKey(), field));
+            if (segment != null) result.add(segment);
+            else if (executor == null) result.add(getSegment(leaf.reader(), field, binary));
+            else loading.add(executor.submit(() -> getSegment(leaf.reader(), field, binary)));
+        }
+        try {
+            for (Future<IntIntHashMap> future : loading) result.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the hash term statistics of " + field, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        return result;
+    }
+
+    private static IntIntHashMap getSegment(LeafReader reader, String field, boolean binary) throws IOException {
+        Object coreKey = reader.getCoreCacheKey();
+        if (coreCloseListeners.add(coreKey)) reader.addCoreClosedListener(HashTermStatistics::removeSegment);
+        try {
+            return segments.computeIfAbsent(new SegmentKey(coreKey, field), key -> {
+                try {
+                    return load(reader, field, binary);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static IntIntHashMap load(LeafReader reader, String field, boolean binary) throws IOException {
+        Terms terms = reader.terms(field);
+        IntIntHashMap docFreqs = new IntIntHashMap(terms == null || terms.size() < 0 ? 16 : (int) Math.min(terms.size(), 1 << 20));
+        if (terms != null) {
             TermsEnum termsEnum = terms.iterator();
             BytesRef term;
             while ((term = termsEnum.next()) != null) {
-                term2docFreq.put(term.utf8ToString(), termsEnum.docFreq());
+                long hash = binary ? (term.length == 4 ? IntHashField.toInt(term) & 0xFFFFFFFFL : -1) : parseHex(term);
+                if (hash >= 0) docFreqs.addTo((int) hash, termsEnum.docFreq());
             }
         }
+        return docFreqs;
     }
 
-    public static int docFreq(String field, String term) {
-        if (termstats.get(field).get(term)!=null)
-            return termstats.get(field).get(term);
-        else
-            return 0;
+    private static IntIntHashMap sum(List<IntIntHashMap> segments) {
+        if (segments.size() == 1) return segments.get(0);
+        int size = 16;
+        for (IntIntHashMap segment : segments) size = Math.max(size, segment.size());
+        IntIntHashMap sum = new IntIntHashMap(size);
+        for (IntIntHashMap segment : segments) sum.addAll(segment);
+        return sum;
     }
 
+    /**
+     * @return the value of a hex string like the ones of {@link Integer#toHexString(int)} or -1 if it's none.
+     */
+    static long parseHex(BytesRef term) {
+        if (term.length == 0 || term.length > 8) return -1;
+        long value = 0;
+        for (int i = term.offset; i < term.offset + term.length; i++) {
+            int digit = Character.digit(term.bytes[i], 16);
+            if (digit < 0) return -1;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static void removeSegment(Object coreKey) {
+        coreCloseListeners.remove(coreKey);
+        segments.keySet().removeIf(key -> key.coreKey == coreKey);
+    }
+
+    private static class SegmentKey {
+        private final Object coreKey;
+        private final String field;
+
+        SegmentKey(Object coreKey, String field) {
+            this.coreKey = coreKey;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SegmentKey)) return false;
+            SegmentKey other = (SegmentKey) o;
+            return coreKey == other.coreKey && field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + field.hashCode();
+        }
+    }
 }
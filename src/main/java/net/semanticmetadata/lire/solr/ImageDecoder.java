@@ -0,0 +1,58 @@
+package net.semanticmetadata.lire.solr;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Decodes query images at the resolution the features are extracted from. The images of the index are scaled to a
+ * maximum side length of 512 pixels before extraction (see the ParallelSolrIndexer), so decoding a 12 megapixel photo
+ * at full resolution is a waste of time and heap. The reader skips rows and columns while decoding instead
+ * (source subsampling by an integer factor), so the decoded image is still at least as large as the given side length.
+ */
+public class ImageDecoder {
+    /**
+     * the maximum side length of the images the features of the index are extracted from.
+     */
+    public static final int DEFAULT_SIDE_LENGTH = 512;
+
+    /**
+     * @param in         the encoded image, the stream is not closed.
+     * @param sideLength the side length the longer side of the image should at least have, 0 decodes the full image.
+     * @return the decoded image or null if there is no reader for the format, like {@link ImageIO#read(InputStream)}.
+     * @throws IOException if the image cannot be decoded.
+     */
+    public static BufferedImage read(InputStream in, int sideLength) throws IOException {
+        ImageInputStream imageIn = ImageIO.createImageInputStream(in);
+        if (imageIn == null) throw new IOException("Cannot create an image input stream.");
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageIn);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageIn, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), sideLength);
+                if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            imageIn.close();
+        }
+    }
+
+    /**
+     * @return the largest factor, which keeps the longer side of the image at least at sideLength pixels.
+     */
+    static int getSubsampling(int width, int height, int sideLength) {
+        if (sideLength <= 0) return 1;
+        return Math.max(1, Math.max(width, height) / sideLength);
+    }
+}
@@ -0,0 +1,316 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads query images for the {@link LireRequestHandler}. Connections are pooled, each fetch has a deadline for
+ * the whole download, the number of bytes read is limited and so is the number of concurrent downloads per host.
+ * Redirects are followed by the fetcher itself, so the limit also applies to the host redirected to, and hosts are
+ * only tracked while downloads from them are running or waiting. The image is decoded while it is streamed, so it's not buffered as a whole in memory. A slow or broken image host
+ * therefore cannot tie up more than a few request threads for a limited time.
+ */
+public class ImageFetcher implements Closeable {
+    static final int MAX_REDIRECTS = 5;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long deadline;
+    private final long maxBytes;
+    private final int maxPerHost;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ConcurrentHashMap<String, HostPermits> hostPermits = new ConcurrentHashMap<>();
+
+    /**
+     * @param connectTimeout time in ms to establish a connection
+     * @param readTimeout    time in ms waiting for data
+     * @param deadline       time in ms for a whole download, including waiting for a host permit and connecting.
+     *                       Waiting for a permit is additionally limited by the connect timeout.
+     * @param maxBytes       maximum size of an image in bytes
+     * @param maxPerHost     maximum number of concurrent downloads from a single host
+     * @param maxConnections maximum number of pooled connections
+     */
+    public ImageFetcher(int connectTimeout, int readTimeout, long deadline, long maxBytes, int maxPerHost, int maxConnections) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.deadline = deadline;
+        this.maxBytes = maxBytes;
+        this.maxPerHost = Math.max(1, maxPerHost);
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(Math.max(1, maxConnections));
+        connectionManager.setDefaultMaxPerRoute(this.maxPerHost);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .setConnectionRequestTimeout((int) Math.min(Integer.MAX_VALUE, deadline))
+                        .build())
+                .disableCookieManagement()
+                .disableRedirectHandling()
+                .build();
+    }
+
+    /**
+     * Creates a fetcher with defaults: 2 s connect and 5 s read timeout, 10 s per download, images up to 10 MB
+     * and 4 concurrent downloads per host.
+     */
+    public ImageFetcher() {
+        this(2000, 5000, 10000, 10 * 1024 * 1024, 4, 32);
+    }
+
+    /**
+     * Downloads and decodes an image.
+     *
+     * @param url the URL of the image, http and https only.
+     * @return the decoded image.
+     * @throws IOException if the image cannot be downloaded or decoded within the limits.
+     */
+    public BufferedImage fetchImage(String url) throws IOException {
+        return fetchImage(url, 0);
+    }
+
+    /**
+     * Downloads an image and decodes it with subsampling, see {@link ImageDecoder}.
+     *
+     * @param url        the URL of the image, http and https only.
+     * @param sideLength the side length the longer side of the decoded image should at least have, 0 for full size.
+     * @return the decoded image.
+     * @throws IOException if the image cannot be downloaded or decoded within the limits.
+     */
+    public BufferedImage fetchImage(String url, int sideLength) throws IOException {
+        final long end = System.currentTimeMillis() + deadline;
+        URI uri;
+        try {
+            uri = checkUri(new URI(url), url);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL " + url, e);
+        }
+        for (int redirects = 0; ; redirects++) {
+            String host = uri.getHost().toLowerCase();
+            HostPermits permits = acquire(host, end);
+            try {
+                HttpGet get = new HttpGet(uri);
+                int remaining = (int) Math.min(Integer.MAX_VALUE, remaining(end));
+                get.setConfig(RequestConfig.custom()
+                        .setConnectTimeout(Math.min(connectTimeout, remaining))
+                        .setSocketTimeout(Math.min(readTimeout, remaining))
+                        .setConnectionRequestTimeout(remaining)
+                        .build());
+                try (CloseableHttpResponse response = httpClient.execute(get)) {
+                    Header location = isRedirect(response.getStatusLine().getStatusCode()) ? response.getFirstHeader(HttpHeaders.LOCATION) : null;
+                    if (location != null) {
+                        if (redirects >= MAX_REDIRECTS) throw new IOException("Too many redirects for " + url);
+                        try {
+                            uri = checkUri(uri.resolve(location.getValue().trim()), url);
+                        } catch (IllegalArgumentException e) {
+                            throw new IOException("Invalid redirect for " + url + " to " + location.getValue(), e);
+                        }
+                        continue; // the next host is limited like the first one.
+                    }
+                    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                        throw new IOException("Could not download " + url + ": " + response.getStatusLine());
+                    }
+                    HttpEntity entity = response.getEntity();
+                    if (entity == null) throw new IOException("No content at " + url);
+                    if (entity.getContentLength() > maxBytes) {
+                        throw new IOException("Image at " + url + " exceeds the limit of " + maxBytes + " bytes.");
+                    }
+                    BufferedImage img;
+                    LimitedInputStream in = new LimitedInputStream(entity.getContent(), maxBytes, end, get);
+                    try {
+                        img = ImageDecoder.read(in, sideLength);
+                    } catch (IOException e) {
+                        get.abort(); // don't put the connection back to the pool with unread data.
+                        // image readers tend to wrap the actual reason.
+                        throw in.failure != null ? in.failure : e;
+                    }
+                    if (img == null) throw new IOException("Could not decode the image at " + url);
+                    return img;
+                }
+            } finally {
+                release(host, permits);
+            }
+        }
+    }
+
+    /**
+     * Decodes an image posted with a request, eg. for the search by an uploaded image, within the size limit of the
+     * downloads. The image is decoded with subsampling, see {@link ImageDecoder}.
+     *
+     * @param in         the content of the request
+     * @param size       the size of the content if known, null otherwise
+     * @param sideLength the side length the longer side of the decoded image should at least have, 0 for full size.
+     * @return the decoded image.
+     * @throws IOException if the image exceeds the limit or cannot be decoded.
+     */
+    public BufferedImage readImage(InputStream in, Long size, int sideLength) throws IOException {
+        if (size != null && size > maxBytes) {
+            throw new IOException("Image exceeds the limit of " + maxBytes + " bytes.");
+        }
+        LimitedInputStream limited = new LimitedInputStream(in, maxBytes, Long.MAX_VALUE, null);
+        BufferedImage img;
+        try {
+            img = ImageDecoder.read(limited, sideLength);
+        } catch (IOException e) {
+            throw limited.failure != null ? limited.failure : e;
+        }
+        if (img == null) throw new IOException("Unknown image format.");
+        return img;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+        connectionManager.shutdown();
+    }
+
+    /**
+     * @return the number of hosts with running or waiting downloads.
+     */
+    int getHostCount() {
+        return hostPermits.size();
+    }
+
+    /**
+     * Takes a permit for a download from the host, the permits of a host are created by the first download and
+     * dropped after the last one.
+     */
+    private HostPermits acquire(String host, long end) throws IOException {
+        HostPermits permits = hostPermits.compute(host, (h, current) -> {
+            HostPermits result = current != null ? current : new HostPermits(maxPerHost);
+            result.users++;
+            return result;
+        });
+        boolean acquired = false;
+        try {
+            // waiting for a free slot is limited like waiting for a connection.
+            acquired = permits.semaphore.tryAcquire(Math.min(connectTimeout, remaining(end)), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a download from " + host, e);
+        } finally {
+            if (!acquired) leave(host);
+        }
+        if (!acquired) throw new IOException("Too many concurrent downloads from " + host);
+        return permits;
+    }
+
+    private void release(String host, HostPermits permits) {
+        permits.semaphore.release();
+        leave(host);
+    }
+
+    private void leave(String host) {
+        hostPermits.computeIfPresent(host, (h, permits) -> --permits.users > 0 ? permits : null);
+    }
+
+    private static URI checkUri(URI uri, String url) throws IOException {
+        if (uri.getHost() == null || !("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()))) {
+            throw new IOException("Only http and https URLs are supported: " + url);
+        }
+        return uri;
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == HttpStatus.SC_MOVED_PERMANENTLY || status == HttpStatus.SC_MOVED_TEMPORARILY
+                || status == HttpStatus.SC_SEE_OTHER || status == HttpStatus.SC_TEMPORARY_REDIRECT || status == 308;
+    }
+
+    private static long remaining(long end) throws IOException {
+        long remaining = end - System.currentTimeMillis();
+        if (remaining <= 0) throw new IOException("Deadline for downloading the image exceeded.");
+        return remaining;
+    }
+
+    /**
+     * The permits of a host and the number of downloads holding or waiting for one, only changed by the map.
+     */
+    private static class HostPermits {
+        final Semaphore semaphore;
+        int users = 0;
+
+        HostPermits(int permits) {
+            semaphore = new Semaphore(permits);
+        }
+    }
+
+    /**
+     * Counts the bytes read and checks the deadline while the image is decoded. The request is aborted if a limit
+     * is exceeded, there is none for uploaded images.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private final long end;
+        private final HttpGet request;
+        private long count = 0;
+        IOException failure = null;
+
+        LimitedInputStream(InputStream in, long maxBytes, long end, HttpGet request) {
+            super(in);
+            this.maxBytes = maxBytes;
+            this.end = end;
+            this.request = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkDeadline();
+            int b = super.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkDeadline();
+            // reading at most one byte more than allowed is enough to detect images that are too large.
+            int read = super.read(b, off, (int) Math.min(len, maxBytes - count + 1));
+            if (read > 0) count(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkDeadline();
+            long skipped = super.skip(Math.min(n, maxBytes - count + 1));
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long read) throws IOException {
+            count += read;
+            if (count > maxBytes) {
+                if (request != null) request.abort();
+                throw failure = new IOException("Image exceeds the limit of " + maxBytes + " bytes.");
+            }
+        }
+
+        private void checkDeadline() throws IOException {
+            if (System.currentTimeMillis() > end) {
+                if (request != null) request.abort();
+                throw failure = new IOException("Deadline for downloading the image exceeded.");
+            }
+        }
+    }
+}
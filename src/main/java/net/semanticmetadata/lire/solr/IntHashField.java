@@ -0,0 +1,198 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.uninverting.UninvertingReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Field type for BitSampling hashes, which indexes each hash as a term of four bytes (big endian) instead of a hex
+ * string analyzed by a white space tokenizer. Indexing needs no analysis, the terms are of fixed length and the query
+ * terms are created straight from the int hashes, see {@link HashQueryBuilder}.
+ * <p>
+ * Values can be sent as int[], as byte[] or ByteBuffer with four bytes per hash, as a collection of numbers, or as
+ * white space or comma separated hex strings, which is what the indexing tools of LIRE Solr create. Queries like
+ * cl_ha:a3f or cl_ha:[a00 TO aff] take the hashes as hex strings too, prefix queries are not supported. Use it in
+ * the schema.xml like this:<br>
+ * &lt;fieldtype name="intHash" class="net.semanticmetadata.lire.solr.IntHashField"/&gt;<br>
+ * &lt;dynamicField name="*_ha" type="intHash" indexed="true" stored="false"/&gt;
+ */
+public class IntHashField extends FieldType {
+    private static final org.apache.lucene.document.FieldType HASH_TYPE = new org.apache.lucene.document.FieldType();
+
+    static {
+        HASH_TYPE.setIndexOptions(IndexOptions.DOCS);
+        HASH_TYPE.setTokenized(false);
+        HASH_TYPE.setOmitNorms(true);
+        HASH_TYPE.setStored(false);
+        HASH_TYPE.freeze();
+    }
+
+    public IntHashField() {
+        // the hashes are searched only, so there is no need for norms and frequencies.
+        properties |= INDEXED | OMIT_NORMS | OMIT_TF_POSITIONS;
+    }
+
+    @Override
+    public List<IndexableField> createFields(SchemaField field, Object value, float boost) {
+        if (value == null || !field.indexed()) return Collections.emptyList();
+        int[] hashes = toHashes(value);
+        List<IndexableField> fields = new ArrayList<>(hashes.length);
+        for (int hash : hashes) fields.add(new Field(field.getName(), toBytesRef(hash), HASH_TYPE));
+        return fields;
+    }
+
+    @Override
+    public IndexableField createField(SchemaField field, Object value, float boost) {
+        List<IndexableField> fields = createFields(field, value, boost);
+        return fields.isEmpty() ? null : fields.get(0);
+    }
+
+    @Override
+    public void readableToIndexed(CharSequence val, BytesRefBuilder result) {
+        result.copyBytes(toBytesRef(parseHash(val.toString().trim())));
+    }
+
+    @Override
+    public String readableToIndexed(String val) {
+        return toInternal(val);
+    }
+
+    @Override
+    public String toInternal(String val) {
+        // the bytes of the terms are no valid UTF-8, so a String would not match them. All queries of this type
+        // are built from the bytes by the methods below, anything else working on Strings is not supported.
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "The terms of " + getClass().getSimpleName() + " are binary, " + val + " can only be searched for as a hash or a range of hashes.");
+    }
+
+    @Override
+    public Query getRangeQuery(QParser parser, SchemaField field, String part1, String part2, boolean minInclusive, boolean maxInclusive) {
+        // the terms are big endian, so their order is the one of the hashes as unsigned ints, like for the hex strings.
+        return new TermRangeQuery(field.getName(),
+                part1 == null ? null : toBytesRef(parseHash(part1.trim())),
+                part2 == null ? null : toBytesRef(parseHash(part2.trim())),
+                minInclusive, maxInclusive);
+    }
+
+    @Override
+    public Query getPrefixQuery(QParser parser, SchemaField sf, String termStr) {
+        // a prefix of a hex string is no prefix of the bytes.
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Prefix queries are not supported on the binary hashes of " + sf.getName() + ", use a range of hashes.");
+    }
+
+    @Override
+    public CharsRef indexedToReadable(BytesRef input, CharsRefBuilder output) {
+        String hex = Integer.toHexString(toInt(input));
+        output.copyChars(hex.toCharArray(), 0, hex.length());
+        return output.get();
+    }
+
+    @Override
+    public String toExternal(IndexableField f) {
+        BytesRef bytes = f.binaryValue();
+        return bytes == null ? null : Integer.toHexString(toInt(bytes));
+    }
+
+    @Override
+    public void write(TextResponseWriter writer, String name, IndexableField f) throws IOException {
+        writer.writeStr(name, toExternal(f), false);
+    }
+
+    @Override
+    public SortField getSortField(SchemaField field, boolean top) {
+        throw new RuntimeException("Cannot sort on a hash field");
+    }
+
+    @Override
+    public UninvertingReader.Type getUninversionType(SchemaField sf) {
+        return null;
+    }
+
+    /**
+     * @return the term of the hash, four bytes in big endian order.
+     */
+    public static BytesRef toBytesRef(int hash) {
+        return new BytesRef(new byte[]{(byte) (hash >>> 24), (byte) (hash >>> 16), (byte) (hash >>> 8), (byte) hash});
+    }
+
+    /**
+     * @return the hash of a term created by {@link #toBytesRef(int)}.
+     */
+    public static int toInt(BytesRef term) {
+        byte[] b = term.bytes;
+        int o = term.offset;
+        return ((b[o] & 0xFF) << 24) | ((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF);
+    }
+
+    /**
+     * @return true if the field is of this type, ie. its terms are binary and not hex strings.
+     */
+    public static boolean isIntHashField(IndexSchema schema, String field) {
+        SchemaField schemaField = schema == null ? null : schema.getFieldOrNull(field);
+        return schemaField != null && schemaField.getType() instanceof IntHashField;
+    }
+
+    /**
+     * @param value int[], byte[] or ByteBuffer with four bytes per hash, a collection of numbers or hex strings, a
+     *              number or white space or comma separated hex strings.
+     * @return the hashes
+     */
+    static int[] toHashes(Object value) {
+        if (value instanceof int[]) {
+            return (int[]) value;
+        } else if (value instanceof byte[]) {
+            return toHashes(ByteBuffer.wrap((byte[]) value));
+        } else if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            if (buffer.remaining() % 4 != 0)
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Binary hashes need four bytes per hash, got " + buffer.remaining());
+            int[] hashes = new int[buffer.remaining() / 4];
+            for (int i = 0; i < hashes.length; i++) hashes[i] = buffer.getInt();
+            return hashes;
+        } else if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            int[] hashes = new int[values.size()];
+            int i = 0;
+            for (Object v : values) hashes[i++] = v instanceof Number ? ((Number) v).intValue() : parseHash(v.toString().trim());
+            return hashes;
+        } else if (value instanceof Number) {
+            return new int[]{((Number) value).intValue()};
+        }
+        StringTokenizer st = new StringTokenizer(value.toString(), " \t\n\r\f,");
+        int[] hashes = new int[st.countTokens()];
+        for (int i = 0; i < hashes.length; i++) hashes[i] = parseHash(st.nextToken());
+        return hashes;
+    }
+
+    /**
+     * @return the hash of a hex string like the ones of {@link Integer#toHexString(int)}.
+     */
+    static int parseHash(String hex) {
+        try {
+            return Integer.parseUnsignedInt(hex, 16);
+        } catch (NumberFormatException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid hash " + hex + ", hashes are hex strings.");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.semanticmetadata.lire.solr;
+
+/**
+ * Map from int to int with open addressing and linear probing, so neither keys nor values are boxed. Missing keys
+ * have the value 0. It's not thread safe, but can be shared by threads once it's filled and safely published.
+ */
+final class IntIntHashMap {
+    private static final int EMPTY = 0;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    /**
+     * the key 0 marks empty slots, so its value is kept aside.
+     */
+    private boolean hasZeroKey = false;
+    private int zeroValue = 0;
+
+    /**
+     * @param expectedSize the number of keys that fit without resizing.
+     */
+    IntIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the value of the key or 0 if it's not in the map.
+     */
+    int get(int key) {
+        if (key == EMPTY) return zeroValue;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return values[slot];
+            if (keys[slot] == EMPTY) return 0;
+        }
+    }
+
+    /**
+     * Adds delta to the value of the key, which is 0 if it's not in the map yet.
+     */
+    void addTo(int key, int delta) {
+        if (key == EMPTY) {
+            if (!hasZeroKey) size++;
+            hasZeroKey = true;
+            zeroValue += delta;
+            return;
+        }
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        if (++size > keys.length * LOAD_FACTOR) resize();
+    }
+
+    /**
+     * Adds the values of the other map to the values of this one.
+     */
+    void addAll(IntIntHashMap other) {
+        if (other.hasZeroKey) addTo(EMPTY, other.zeroValue);
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.keys[slot] != EMPTY) addTo(other.keys[slot], other.values[slot]);
+        }
+    }
+
+    /**
+     * @return the number of keys.
+     */
+    int size() {
+        return size;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys, oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = mix(oldKeys[i]) & mask;
+            while (keys[slot] != EMPTY) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * spreads the bits of keys, which often differ in the low bits only, eg. BitSampling hashes.
+     */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
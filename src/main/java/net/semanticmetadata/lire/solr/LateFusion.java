@@ -0,0 +1,77 @@
+package net.semanticmetadata.lire.solr;
+
+import java.util.Arrays;
+
+/**
+ * Combines the distances of several features of the same candidates into a single distance. Distances of different
+ * features are on different scales, so they are either normalized to [0, 1] by the minimum and maximum distance
+ * among the candidates ({@link #SCORE}) or replaced by the rank of the candidate for the feature ({@link #RANK}).
+ * The fused distance is the weighted mean of these values. Candidates without a value for a feature, marked with
+ * NaN, get the worst value for that feature.
+ */
+public class LateFusion {
+    public static final String SCORE = "score";
+    public static final String RANK = "rank";
+
+    /**
+     * @param docs      the document numbers of the candidates
+     * @param distances the distances per feature and candidate, ie. distances[feature][candidate]
+     * @param weights   the weight per feature
+     * @param method    either {@link #SCORE} or {@link #RANK}
+     * @param rows      the number of results
+     * @return the rows candidates with the smallest fused distance.
+     */
+    public static BoundedResultHeap fuse(int[] docs, double[][] distances, double[] weights, String method, int rows) {
+        if (!SCORE.equals(method) && !RANK.equals(method))
+            throw new IllegalArgumentException("Unknown fusion method " + method + ", use " + SCORE + " or " + RANK);
+        double[] fused = new double[docs.length];
+        double sumOfWeights = 0;
+        for (int f = 0; f < distances.length; f++) {
+            double[] values = RANK.equals(method) ? toRanks(distances[f]) : normalize(distances[f]);
+            for (int i = 0; i < fused.length; i++) fused[i] += weights[f] * values[i];
+            sumOfWeights += weights[f];
+        }
+        BoundedResultHeap resultHeap = new BoundedResultHeap(rows);
+        for (int i = 0; i < docs.length; i++) {
+            resultHeap.offer(docs[i], sumOfWeights > 0 ? fused[i] / sumOfWeights : fused[i]);
+        }
+        return resultHeap;
+    }
+
+    /**
+     * @param distances the distances of the candidates for one feature, NaN if there is none.
+     * @return the distances scaled to [0, 1], 1 for the missing ones.
+     */
+    static double[] normalize(double[] distances) {
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double distance : distances) {
+            if (Double.isNaN(distance)) continue;
+            min = Math.min(min, distance);
+            max = Math.max(max, distance);
+        }
+        double[] normalized = new double[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            if (Double.isNaN(distances[i])) normalized[i] = 1;
+            else normalized[i] = max > min ? (distances[i] - min) / (max - min) : 0;
+        }
+        return normalized;
+    }
+
+    /**
+     * @param distances the distances of the candidates for one feature, NaN if there is none.
+     * @return the ranks of the candidates starting with 0, equal distances share the same rank and missing ones come last.
+     */
+    static double[] toRanks(double[] distances) {
+        double[] ranks = new double[distances.length];
+        // NaN is sorted last by Double.compare.
+        Integer[] indices = new Integer[distances.length];
+        for (int i = 0; i < indices.length; i++) indices[i] = i;
+        Arrays.sort(indices, (a, b) -> Double.compare(distances[a], distances[b]));
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0 && Double.compare(distances[indices[i]], distances[indices[i - 1]]) == 0)
+                ranks[indices[i]] = ranks[indices[i - 1]];
+            else ranks[indices[i]] = i;
+        }
+        return ranks;
+    }
+}
@@ -0,0 +1,145 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.AbstractReRankQuery;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.RankQuery;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * <p>Query parser for similarity search within the standard search handler, so it can be combined with fq, facets,
+ * highlighting, paging by start and rows, the query result cache and distributed search. The MetricSpaces or
+ * BitSampling query of the feature orders the first pass, the main query q and the filter queries restrict the
+ * results, so numFound and the facets are the ones of q and fq. The top candidates of the first pass are re-ranked by
+ * the distance of their features, see {@link LireRescorer}.</p>
+ *
+ * <p>Add the parser to the solrconfig.xml file like this:<br>
+ * &lt;queryParser name="lirerank" class="net.semanticmetadata.lire.solr.LireRankQParserPlugin" /&gt;</p>
+ *
+ * Use it as rank query with the query image given by id or by its Base64 encoded feature:<br>
+ * <pre>http://localhost:8983/solr/lire/select?q=*:*&amp;fq=tags:sunset&amp;rq={!lirerank field=cl_ha id=img123 candidates=1000}</pre>
+ * The parameters field, accuracy, ms, probes and candidates are the ones of the {@link LireRequestHandler}. Start and rows
+ * have to stay within the candidates to get the documents ordered by distance.
+ */
+public class LireRankQParserPlugin extends QParserPlugin {
+    public static final String NAME = "lirerank";
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new LireRankQParser(qstr, localParams, params, req);
+    }
+
+    private static class LireRankQParser extends QParser {
+        LireRankQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+            super(qstr, localParams, params, req);
+        }
+
+        @Override
+        public Query parse() throws SyntaxError {
+            SearchPlan plan = new SearchPlan(localParams, null);
+            if (plan.getFeatureClass() == null)
+                throw new SyntaxError("No feature registered for field " + plan.getHashField());
+            SolrIndexSearcher searcher = req.getSearcher();
+            try {
+                byte[] featureVector;
+                if (localParams.get("feature") != null) {
+                    featureVector = Base64.decodeBase64(localParams.get("feature"));
+                } else if (localParams.get("id") != null) {
+                    featureVector = getFeatureOf(searcher, plan, localParams.get("id"));
+                } else {
+                    throw new SyntaxError(NAME + " needs the query image as id or feature.");
+                }
+                GlobalFeature queryFeature = plan.newFeature();
+                queryFeature.setByteArrayRepresentation(featureVector);
+                Query candidateQuery = HashQueryBuilder.createCandidateQuery(searcher, plan, queryFeature, null, plan.getAccuracy(), null);
+                return new LireRankQuery(candidateQuery, plan.getFeatureField(), featureVector, queryFeature, plan.getCandidates());
+            } catch (IOException e) {
+                throw new SyntaxError("Error creating the query for " + plan.getHashField() + ": " + e.getMessage(), e);
+            }
+        }
+
+        private static byte[] getFeatureOf(SolrIndexSearcher searcher, SearchPlan plan, String id) throws IOException, SyntaxError {
+            int queryDocId = searcher.getFirstMatch(new Term("id", id));
+            BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), plan.getFeatureField());
+            BytesRef bytesRef = queryDocId < 0 || binaryValues == null ? null : binaryValues.get(queryDocId);
+            if (bytesRef == null || bytesRef.length == 0)
+                throw new SyntaxError("Did not find an image with the given id " + id);
+            return Arrays.copyOfRange(bytesRef.bytes, bytesRef.offset, bytesRef.offset + bytesRef.length);
+        }
+    }
+
+    /**
+     * The main query is replaced by a query matching the same documents, but scored by the candidate query only.
+     * Documents not matching the candidate query score 0 and come after the candidates.
+     */
+    static final class LireRankQuery extends AbstractReRankQuery {
+        private final Query candidateQuery;
+        private final String featureField;
+        private final byte[] featureVector;
+        private final GlobalFeature queryFeature;
+
+        LireRankQuery(Query candidateQuery, String featureField, byte[] featureVector, GlobalFeature queryFeature, int reRankDocs) {
+            super(null, reRankDocs, new LireRescorer(featureField, queryFeature));
+            this.candidateQuery = candidateQuery;
+            this.featureField = featureField;
+            this.featureVector = featureVector;
+            this.queryFeature = queryFeature;
+        }
+
+        @Override
+        public RankQuery wrap(Query mainQuery) {
+            return super.wrap(mainQuery == null ? null : createFirstPass(mainQuery));
+        }
+
+        Query createFirstPass(Query mainQuery) {
+            // with a FILTER clause the SHOULD clause is optional, it only adds to the score.
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.add(candidateQuery, BooleanClause.Occur.SHOULD);
+            builder.add(mainQuery, BooleanClause.Occur.FILTER);
+            return builder.build();
+        }
+
+        @Override
+        protected Query rewrite(Query rewrittenMainQuery) throws IOException {
+            LireRankQuery rewritten = new LireRankQuery(candidateQuery, featureField, featureVector, queryFeature, reRankDocs);
+            rewritten.mainQuery = rewrittenMainQuery;
+            return rewritten;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!sameClassAs(o)) return false;
+            LireRankQuery other = (LireRankQuery) o;
+            return reRankDocs == other.reRankDocs && featureField.equals(other.featureField)
+                    && Arrays.equals(featureVector, other.featureVector)
+                    && Objects.equals(mainQuery, other.mainQuery) && candidateQuery.equals(other.candidateQuery);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * classHash() + Objects.hashCode(mainQuery)) + featureField.hashCode()) + Arrays.hashCode(featureVector) + reRankDocs;
+        }
+
+        @Override
+        public String toString(String field) {
+            return "{!" + NAME + " mainQuery='" + (mainQuery == null ? candidateQuery : mainQuery).toString(field) + "' field=" + featureField
+                    + " candidates=" + reRankDocs + "}";
+        }
+    }
+}
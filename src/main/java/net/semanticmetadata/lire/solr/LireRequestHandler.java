@@ -41,30 +41,48 @@ package net.semanticmetadata.lire.solr;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.StatsUtils;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.document.Document;
+import org.apache.commons.io.IOUtils;
 import org.apache.lucene.index.*;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.BitSetIterator;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.handler.component.*;
+import org.apache.solr.metrics.SolrMetricManager;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.BasicResultContext;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.*;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.RefCounted;
+import org.apache.solr.util.plugin.SolrCoreAware;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is the main LIRE RequestHandler for the Solr Plugin. It supports query by example using the indexed id,
@@ -73,40 +91,133 @@ import java.util.*;
  * @author Mathias Lux, mathias@juggle.at, 07.07.13
  */
 
-public class LireRequestHandler extends RequestHandlerBase {
+public class LireRequestHandler extends RequestHandlerBase implements SolrCoreAware {
     //    private static HashMap<String, Class> fieldToClass = new HashMap<String, Class>(5);
-    private long time = 0;
-    private int countRequests = 0;
-    private int defaultNumberOfResults = 60;
+    private final AtomicLong countRequests = new AtomicLong(0);
+    // the parameters of a search and their defaults are held per request in a SearchPlan.
+
     /**
-     * number of candidate results retrieved from the index. The higher this number, the slower,
-     * the but more accurate the retrieval will be. 10k is a good value for starters.
+     * Shared and bounded thread pool for re-ranking, the number of threads can be set with the init arg reRankThreads.
      */
-    private int numberOfCandidateResults = 10000;
-    private static final int DEFAULT_NUMBER_OF_CANDIDATES = 10000;
+    private ExecutorService reRankExecutor = null;
+    private ParallelReRanker parallelReRanker = null;
 
     /**
-     * The number of query terms that go along with the TermsFilter search. We need some to get a
-     * score, the less the faster. I put down a minimum of three in the method, this value gives
-     * the percentage of the overall number used (selected randomly).
+     * Features extracted from query images given by URL, see init args featureCacheSize, featureCacheMaxBytes
+     * and featureCacheTtl (in seconds).
      */
-    private double numberOfQueryTerms = 0.33;
-    private static final double DEFAULT_NUMBER_OF_QUERY_TERMS = 0.33;
+    private QueryFeatureCache queryFeatureCache = new QueryFeatureCache(1000, 16 * 1024 * 1024, 3600 * 1000);
 
     /**
-     * If metric spaces should be used instead of BitSampling.
+     * Downloads query images with timeouts and size limits, see the init args starting with fetch.
+     */
+    private ImageFetcher imageFetcher = null;
+    /**
+     * Query images are decoded with subsampling down to this side length, see init arg decodeSideLength.
+     */
+    private int decodeSideLength = ImageDecoder.DEFAULT_SIDE_LENGTH;
+    /**
+     * Side lengths per hash field overriding decodeSideLength, see init args decodeSideLength.&lt;code&gt;, eg.
+     * decodeSideLength.ph, for features the index has extracted at another resolution.
+     */
+    private final Map<String, Integer> decodeSideLengths = new HashMap<>();
+    /**
+     * Off heap copies of the features for re-ranking, disabled unless featureStoreMaxBytes is set.
+     */
+    private FeatureStore featureStore = new FeatureStore(0);
+    /**
+     * Maximum number of queries of a batch search, see init arg maxBatchSize.
+     */
+    private int maxBatchSize = 100;
+    /**
+     * Name of the user cache in solrconfig.xml for search results, see init arg resultCache.
      */
-    private boolean useMetricSpaces = true;
-    private static final boolean DEFAULT_USE_METRIC_SPACES = true;
+    private String resultCacheName = "lireCache";
+    private final AtomicLong resultCacheHits = new AtomicLong(0), resultCacheMisses = new AtomicLong(0);
+    private SolrCore core = null;
+    /**
+     * Latency histograms per endpoint, field and phase as well as throughput meters.
+     */
+    private final SearchMetrics searchMetrics = new SearchMetrics();
 
-    static {
-        HashingMetricSpacesManager.init(); // load reference points from disk.
-    }
+    /**
+     * Parameter for looking up the feature of a document by id, used by distributed search.
+     */
+    static final String FEATURE_OF = "featureOf";
 
 
     @Override
     public void init(NamedList args) {
         super.init(args);
+        int reRankThreads = Runtime.getRuntime().availableProcessors();
+        if (args != null && args.get("reRankThreads") != null) {
+            reRankThreads = Integer.parseInt(args.get("reRankThreads").toString());
+        }
+        reRankExecutor = ExecutorUtil.newMDCAwareFixedThreadPool(Math.max(1, reRankThreads), new DefaultSolrThreadFactory("lireReRank"));
+        if (args != null) {
+            SolrParams initParams = SolrParams.toSolrParams(args);
+            featureStore = new FeatureStore(initParams.getLong("featureStoreMaxBytes", 0));
+            resultCacheName = initParams.get("resultCache", resultCacheName);
+            decodeSideLength = initParams.getInt("decodeSideLength", decodeSideLength);
+            for (int i = 0; i < args.size(); i++) {
+                String name = args.getName(i);
+                if (name != null && name.startsWith("decodeSideLength.")) {
+                    String code = name.substring("decodeSideLength.".length());
+                    decodeSideLengths.put(FeatureRegistry.codeToHashField(code), Integer.parseInt(args.getVal(i).toString()));
+                }
+            }
+            maxBatchSize = initParams.getInt("maxBatchSize", maxBatchSize);
+            queryFeatureCache = new QueryFeatureCache(initParams.getInt("featureCacheSize", 1000),
+                    initParams.getLong("featureCacheMaxBytes", 16 * 1024 * 1024),
+                    initParams.getLong("featureCacheTtl", 3600) * 1000);
+            imageFetcher = new ImageFetcher(initParams.getInt("fetchConnectTimeout", 2000),
+                    initParams.getInt("fetchReadTimeout", 5000),
+                    initParams.getLong("fetchDeadline", 10000),
+                    initParams.getLong("fetchMaxBytes", 10 * 1024 * 1024),
+                    initParams.getInt("fetchMaxPerHost", 4),
+                    initParams.getInt("fetchMaxConnections", 32));
+        } else {
+            imageFetcher = new ImageFetcher();
+        }
+        parallelReRanker = new ParallelReRanker(reRankExecutor, featureStore);
+    }
+
+    /**
+     * @return the side length query images are decoded at for the feature of the plan, 0 for the full image.
+     */
+    private int getDecodeSideLength(SearchPlan plan) {
+        Integer sideLength = decodeSideLengths.get(plan.getHashField());
+        return sideLength != null ? sideLength : decodeSideLength;
+    }
+
+    /**
+     * @return the off heap copies of the features, eg. for warming them with a new searcher.
+     */
+    FeatureStore getFeatureStore() {
+        return featureStore;
+    }
+
+    @Override
+    public void initializeMetrics(SolrMetricManager manager, String registryName, String scope) {
+        super.initializeMetrics(manager, registryName, scope);
+        searchMetrics.register(manager, registryName, getCategory().toString(), scope);
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        this.core = core;
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+                ExecutorUtil.shutdownAndAwaitTermination(reRankExecutor);
+                IOUtils.closeQuietly(imageFetcher);
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+                FeatureRegistry.clearPooledFeatures();
+            }
+        });
     }
 
     /**
@@ -123,20 +234,262 @@ public class LireRequestHandler extends RequestHandlerBase {
      */
     @Override
     public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        countRequests.incrementAndGet();
+        // (0) searches by id or url are distributed to the shards of a collection if needed.
+        if (isDistributable(req)) {
+            String[] shards = getShards(req, rsp);
+            if (shards != null) {
+                searchMetrics.markRequest("distributed");
+                handleDistributedSearch(req, rsp, shards);
+                return;
+            }
+        }
         // (1) check if the necessary parameters are here
-        if (req.getParams().get("hashes") != null) { // we are searching for hashes ...
+        if (req.getParams().get(FEATURE_OF) != null) { // a shard is asked for the feature of a query document.
+            handleFeatureLookup(req, rsp);
+        } else if (req.getParams().get("fields") != null) { // several features at once
+            searchMetrics.markRequest("fusion");
+            handleFusionSearch(req, rsp);
+        } else if (req.getParams().get("ids") != null || req.getParams().get("features") != null) { // batch of queries
+            searchMetrics.markRequest("batch");
+            handleBatchSearch(req, rsp);
+        } else if (req.getParams().get("hashes") != null || req.getParams().get("feature") != null) { // we are searching for hashes ...
+            searchMetrics.markRequest("hashes");
             handleHashSearch(req, rsp); // not really supported, just here for legacy.
+        } else if (getUploadedImage(req) != null) { // we are searching for an image posted with the request
+            searchMetrics.markRequest("upload");
+            handleUploadSearch(req, rsp);
         } else if (req.getParams().get("url") != null) { // we are searching for an image based on an URL
+            searchMetrics.markRequest("url");
             handleUrlSearch(req, rsp);
         } else if (req.getParams().get("id") != null) { // we are searching for an image based on an URL
+            searchMetrics.markRequest("id");
             handleIdSearch(req, rsp);
         } else if (req.getParams().get("extract") != null) { // we are trying to extract from an image URL.
+            searchMetrics.markRequest("extract");
             handleExtract(req, rsp);
         } else { // lets return random results.
+            searchMetrics.markRequest("random");
             handleRandomSearch(req, rsp);
         }
     }
 
+    /**
+     * @param req the request
+     * @return true for searches by id, url or uploaded image, which are not already a request to a shard.
+     */
+    private boolean isDistributable(SolrQueryRequest req) {
+        SolrParams params = req.getParams();
+        if (params.getBool(ShardParams.IS_SHARD, false)) return false;
+        if (params.get("ids") != null || params.get("features") != null || params.get("fields") != null || params.get("hashes") != null)
+            return false;
+        return params.get("url") != null || params.get("id") != null || getUploadedImage(req) != null;
+    }
+
+    /**
+     * Finds out the shards like the SearchHandler does, ie. from the parameter shards or from the cluster state in
+     * SolrCloud mode unless distrib=false.
+     *
+     * @param req the request
+     * @param rsp the response
+     * @return the shards or null if the search is to be done locally.
+     */
+    private String[] getShards(SolrQueryRequest req, SolrQueryResponse rsp) {
+        CoreContainer coreContainer = req.getCore().getCoreDescriptor().getCoreContainer();
+        SolrParams params = req.getParams();
+        boolean distributed = params.getBool(CommonParams.DISTRIB, coreContainer.isZooKeeperAware());
+        if (!distributed) {
+            String shards = params.get(ShardParams.SHARDS);
+            distributed = shards != null && shards.indexOf('/') > 0;
+        }
+        if (!distributed) return null;
+        ResponseBuilder rb = new ResponseBuilder(req, rsp, Collections.<SearchComponent>emptyList());
+        coreContainer.getShardHandlerFactory().getShardHandler().prepDistributed(rb);
+        return rb.shards != null && rb.shards.length > 0 ? rb.shards : null;
+    }
+
+    /**
+     * Distributed search by id, url or uploaded image. (i) The feature of the query is extracted locally for an url or
+     * an uploaded image or looked up on
+     * the shards for an id. (ii) Each shard runs the candidate query and the re-ranking for the feature and returns
+     * ids and distances of its top k. (iii) The global top k is merged by the {@link ShardResultMerger} and (iv) the
+     * fields are fetched only for these documents with the real time get handler of the shards holding them.
+     *
+     * @param req    the request
+     * @param rsp    the response
+     * @param shards the shards to search
+     * @throws IOException
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    private void handleDistributedSearch(SolrQueryRequest req, SolrQueryResponse rsp, String[] shards) throws IOException, InstantiationException, IllegalAccessException {
+        SolrParams params = req.getParams();
+        SearchPlan plan = new SearchPlan(params, null, searchMetrics, "distributed");
+        SearchTimings timings = plan.getTimings();
+        ShardHandler shardHandler = req.getCore().getCoreDescriptor().getCoreContainer().getShardHandlerFactory().getShardHandler();
+        rsp.add("QueryField", plan.getHashField());
+        rsp.add("ShardsCount", shards.length + "");
+
+        // (1) the query feature.
+        timings.start();
+        String feature = null;
+        if (params.get("url") != null) {
+            try {
+                feature = Base64.encodeBase64String(getQueryFeature(params.get("url"), plan).getFeature());
+            } catch (Exception e) {
+                rsp.add("Error", "Error reading image from URL: " + params.get("url") + ": " + e.getMessage());
+                return;
+            }
+            timings.stop(SearchMetrics.EXTRACT);
+        } else if (getUploadedImage(req) != null) {
+            try {
+                feature = Base64.encodeBase64String(getUploadedFeature(req, plan).getByteArrayRepresentation());
+            } catch (Exception e) {
+                rsp.add("Error", "Error reading the uploaded image: " + e.getMessage());
+                return;
+            }
+        } else {
+            ModifiableSolrParams lookupParams = createShardParams(req);
+            lookupParams.remove("id");
+            lookupParams.set(FEATURE_OF, params.get("id"));
+            for (ShardResponse shardResponse : submitToShards(shardHandler, shards, lookupParams, ShardRequest.PURPOSE_PRIVATE)) {
+                Object shardFeature = shardResponse.getSolrResponse().getResponse().get("feature");
+                if (shardFeature != null) feature = shardFeature.toString();
+            }
+            if (feature == null) {
+                rsp.add("Error", "Did not find an image with the given id " + params.get("id"));
+                return;
+            }
+            timings.stop(SearchMetrics.DOC_VALUES);
+        }
+
+        // (2) the top k of each shard, only ids and distances.
+        timings.start();
+        ModifiableSolrParams searchParams = createShardParams(req);
+        searchParams.remove("id");
+        searchParams.remove("url");
+        searchParams.set("feature", feature);
+        searchParams.set(CommonParams.FL, "id");
+        ShardResultMerger merger = new ShardResultMerger(plan.getRows(), shards);
+        for (ShardResponse shardResponse : submitToShards(shardHandler, shards, searchParams, ShardRequest.PURPOSE_GET_TOP_IDS)) {
+            NamedList<?> shardResult = shardResponse.getSolrResponse().getResponse();
+            if (shardResult.get("Error") != null) rsp.add("Error", shardResponse.getShard() + ": " + shardResult.get("Error"));
+            SolrDocumentList shardDocs = (SolrDocumentList) shardResult.get("response");
+            if (shardDocs == null) continue;
+            int skipped = merger.addAll(shardResponse.getShard(), shardDocs);
+            if (skipped > 0)
+                rsp.add("Error", shardResponse.getShard() + ": skipped " + skipped + " documents without id or distance " + LireReturnFields.DISTANCE_FIELD);
+        }
+        List<ShardResultMerger.Result> results = merger.getResults();
+        rsp.add("ShardsSearchTime", timings.stop(SearchMetrics.RE_RANK) + "");
+
+        // (3) the fields of the global top k, only if more than the id is requested.
+        timings.start();
+        SolrReturnFields returnFields = new SolrReturnFields(params.get(CommonParams.FL, LireReturnFields.DEFAULT_FIELDS), req);
+        Set<String> fieldNames = returnFields.getLuceneFieldNames();
+        boolean fetch = returnFields.wantsAllFields() || returnFields.hasPatternMatching()
+                || (fieldNames != null && !Collections.singleton("id").containsAll(fieldNames));
+        Map<String, SolrDocument> fetched = new HashMap<>();
+        if (fetch && !results.isEmpty()) {
+            Map<String, StringBuilder> idsPerShard = new LinkedHashMap<>();
+            for (ShardResultMerger.Result result : results) {
+                StringBuilder ids = idsPerShard.computeIfAbsent(result.getShard(), shard -> new StringBuilder());
+                if (ids.length() > 0) ids.append(',');
+                ids.append(result.getId().replace("\\", "\\\\").replace(",", "\\,"));
+            }
+            for (Map.Entry<String, StringBuilder> entry : idsPerShard.entrySet()) {
+                ModifiableSolrParams fetchParams = createShardParams(req);
+                // the real time get handler would fetch the query document given by id as well.
+                fetchParams.remove("id");
+                fetchParams.remove("url");
+                fetchParams.set(CommonParams.QT, "/get");
+                fetchParams.set("ids", entry.getValue().toString());
+                fetchParams.set(CommonParams.FL, params.get(CommonParams.FL, LireReturnFields.DEFAULT_FIELDS) + ",id");
+                for (ShardResponse shardResponse : submitToShards(shardHandler, new String[]{entry.getKey()}, fetchParams, ShardRequest.PURPOSE_GET_FIELDS)) {
+                    SolrDocumentList docs = (SolrDocumentList) shardResponse.getSolrResponse().getResponse().get("response");
+                    if (docs == null) continue;
+                    for (SolrDocument doc : docs) fetched.put(doc.getFieldValue("id").toString(), doc);
+                }
+            }
+        }
+        SolrDocumentList docs = new SolrDocumentList();
+        docs.setStart(0);
+        for (ShardResultMerger.Result result : results) {
+            SolrDocument doc = fetched.get(result.getId());
+            if (doc == null) {
+                if (fetch) continue; // deleted in the meantime.
+                doc = new SolrDocument();
+                doc.setField("id", result.getId());
+            }
+            doc.setField(LireReturnFields.DISTANCE_FIELD, result.getDistance());
+            if (returnFields.wantsScore()) doc.setField("score", (float) result.getDistance());
+            docs.add(doc);
+        }
+        docs.setNumFound(docs.size());
+        timings.stop(SearchMetrics.RESPONSE);
+        rsp.addResponse(docs);
+    }
+
+    /**
+     * @param req the request to the coordinator
+     * @return the parameters for a request to a shard, to be answered by the shard itself and the same handler.
+     */
+    private ModifiableSolrParams createShardParams(SolrQueryRequest req) {
+        ModifiableSolrParams params = new ModifiableSolrParams(req.getParams());
+        params.remove(ShardParams.SHARDS);
+        params.set(CommonParams.DISTRIB, false);
+        params.set(ShardParams.IS_SHARD, true);
+        params.remove(CommonParams.HEADER_ECHO_PARAMS);
+        params.remove("indent");
+        String shardsQt = params.get(ShardParams.SHARDS_QT);
+        params.set(CommonParams.QT, shardsQt != null ? shardsQt : (String) req.getContext().get("path"));
+        return params;
+    }
+
+    /**
+     * Sends a request to the shards and waits for all of them.
+     *
+     * @return the responses of the shards.
+     */
+    private List<ShardResponse> submitToShards(ShardHandler shardHandler, String[] shards, ModifiableSolrParams params, int purpose) {
+        ShardRequest shardRequest = new ShardRequest();
+        shardRequest.purpose = purpose;
+        shardRequest.shards = shards;
+        shardRequest.actualShards = shards;
+        shardRequest.params = params;
+        for (String shard : shards) {
+            shardHandler.submit(shardRequest, shard, new ModifiableSolrParams(params));
+        }
+        ShardResponse shardResponse = shardHandler.takeCompletedOrError();
+        if (shardResponse == null) return Collections.emptyList();
+        if (shardResponse.getException() != null) {
+            shardHandler.cancelAll();
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error from shard " + shardResponse.getShard(), shardResponse.getException());
+        }
+        return shardResponse.getShardRequest().responses;
+    }
+
+    /**
+     * Adds the Base64 encoded feature of the document with the id given by the parameter featureOf to the response,
+     * if the document is in the index.
+     *
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    private void handleFeatureLookup(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException {
+        SolrIndexSearcher searcher = req.getSearcher();
+        SearchPlan plan = new SearchPlan(req.getParams(), null);
+        int queryDocId = searcher.getFirstMatch(new Term("id", req.getParams().get(FEATURE_OF)));
+        if (queryDocId < 0 || plan.getFeatureField() == null) return;
+        BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), plan.getFeatureField());
+        if (binaryValues == null) return;
+        BytesRef bytesRef = binaryValues.get(queryDocId);
+        if (bytesRef.length > 0) {
+            rsp.add("feature", Base64.encodeBase64String(Arrays.copyOfRange(bytesRef.bytes, bytesRef.offset, bytesRef.offset + bytesRef.length)));
+        }
+    }
+
     /**
      * Handles the get parameters id, field and rows.
      *
@@ -152,43 +505,28 @@ public class LireRequestHandler extends RequestHandlerBase {
 //            TopDocs hits = searcher.search(new TermQuery(new Term("id", req.getParams().get("id"))), 1);
             int queryDocId = searcher.getFirstMatch(new Term("id", req.getParams().get("id")));
             // get the parameters
-            String paramField = req.getParams().get("field", "cl_ha");
-            if (!paramField.endsWith("_ha")) paramField += "_ha";
-            numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-            numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-            useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
-            int paramRows = req.getParams().getInt("rows", defaultNumberOfResults);
-
-            GlobalFeature queryFeature = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
+            SearchPlan plan = new SearchPlan(req.getParams(), getFilterQueries(req), searchMetrics, "id");
+            SearchTimings timings = plan.getTimings();
+            String paramField = plan.getHashField();
+
+            GlobalFeature queryFeature = plan.newFeature();
             rsp.add("QueryField", paramField);
             rsp.add("QueryFeature", queryFeature.getClass().getName());
             if (queryDocId > -1) {
                 // Using DocValues to get the actual data from the index.
-                BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), FeatureRegistry.getFeatureFieldName(paramField));
+                BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), plan.getFeatureField());
                 if (binaryValues == null) {
                     rsp.add("Error", "Could not find the DocValues of the query document. Are they in the index? Id: " + req.getParams().get("id"));
                     // System.err.println("Could not find the DocValues of the query document. Are they in the index?");
                 }
                 queryFeature.setByteArrayRepresentation(binaryValues.get(queryDocId).bytes, binaryValues.get(queryDocId).offset, binaryValues.get(queryDocId).length);
+                timings.stop(SearchMetrics.DOC_VALUES);
 
-                Query query = null;
-                if (!useMetricSpaces) {
-                    // check singleton cache if the term stats can be cached.
-                    HashTermStatistics.addToStatistics(searcher, paramField);
-                    // Re-generating the hashes to save space (instead of storing them in the index)
-                    int[] hashes = BitSampling.generateHashes(queryFeature.getFeatureVector());
-                    query = createQuery(hashes, paramField, numberOfQueryTerms);
-                } else if (MetricSpaces.supportsFeature(queryFeature)) {
-                    // ----< Metric Spaces >-----
-                    int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(queryFeature), 3, MetricSpaces.getPostingListLength(queryFeature));
-                    String msQuery = MetricSpaces.generateBoostedQuery(queryFeature, queryLength);
-                    QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
-                    query = qp.parse(msQuery);
-                } else {
-                    query = new MatchAllDocsQuery();
+                if (plan.isUseMetricSpaces() && !ReferenceData.supportsMetricSpaces(queryFeature)) {
                     rsp.add("Error", "Feature not supported by MetricSpaces: " + queryFeature.getClass().getSimpleName());
                 }
-                doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature);
+                // Re-generating the hashes to save space (instead of storing them in the index)
+                doSearch(req, rsp, searcher, plan, queryFeature, null, null);
             } else {
                 rsp.add("Error", "Did not find an image with the given id " + req.getParams().get("id"));
             }
@@ -198,6 +536,348 @@ public class LireRequestHandler extends RequestHandlerBase {
         }
     }
 
+    /**
+     * Handles a batch of queries given by the parameters ids or features (comma or white space separated lists of
+     * ids or Base64 encoded features) along with field, rows, accuracy, candidates, ms and fq. The candidate sets of
+     * all queries are merged, each candidate's feature is read from the DocValues only once and compared to all the
+     * queries. Each query is therefore re-ranked against the union of the candidates. The results come as a list
+     * with one entry per query.
+     *
+     * @param req
+     * @param rsp
+     * @throws IOException
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    private void handleBatchSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException, InstantiationException, IllegalAccessException {
+        SolrParams params = req.getParams();
+        SolrIndexSearcher searcher = req.getSearcher();
+        SearchPlan plan = new SearchPlan(params, getFilterQueries(req), searchMetrics, "batch");
+        SearchTimings timings = plan.getTimings();
+        rsp.add("QueryField", plan.getHashField());
+        if (plan.getFeatureClass() == null) {
+            rsp.add("Error", "Unknown field " + plan.getHashField());
+            return;
+        }
+        rsp.add("QueryFeature", plan.getFeatureClass().getName());
+        boolean byId = params.get("ids") != null;
+        List<String> queryKeys = splitList(byId ? params.get("ids") : params.get("features"));
+        if (queryKeys.size() > maxBatchSize) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "A batch may have at most " + maxBatchSize
+                    + " queries, got " + queryKeys.size() + ".");
+        }
+
+        // (1) getting the query features, either from the index or from the parameters.
+        timings.start();
+        List<GlobalFeature> queryFeatures = new ArrayList<>(queryKeys.size());
+        BinaryDocValues binaryValues = featureStore.getBinaryValues(searcher.getIndexReader(), plan.getFeatureField());
+        if (binaryValues == null) {
+            rsp.add("Error", "Could not find the DocValues for field " + plan.getFeatureField() + ". Are they in the index?");
+            return;
+        }
+        LinkedList missing = new LinkedList();
+        for (Iterator<String> iterator = queryKeys.iterator(); iterator.hasNext(); ) {
+            String key = iterator.next();
+            GlobalFeature queryFeature = plan.newFeature();
+            if (byId) {
+                int queryDocId = searcher.getFirstMatch(new Term("id", key));
+                if (queryDocId < 0) {
+                    missing.add(key);
+                    iterator.remove();
+                    continue;
+                }
+                BytesRef bytesRef = binaryValues.get(queryDocId);
+                queryFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+            } else {
+                queryFeature.setByteArrayRepresentation(Base64.decodeBase64(key));
+            }
+            queryFeatures.add(queryFeature);
+        }
+        if (!missing.isEmpty()) rsp.add("Missing", missing);
+        if (plan.isUseMetricSpaces() && !queryFeatures.isEmpty() && !ReferenceData.supportsMetricSpaces(queryFeatures.get(0))) {
+            rsp.add("Error", "Feature not supported by MetricSpaces: " + plan.getFeatureClass().getSimpleName());
+        }
+        rsp.add("QueryFeatureTime", timings.stop(byId ? SearchMetrics.DOC_VALUES : SearchMetrics.EXTRACT) + "");
+
+        // (2) the union of the candidates, a bit set keeps them unique and in index order.
+        timings.start();
+        FixedBitSet candidates = new FixedBitSet(Math.max(1, searcher.maxDoc()));
+        for (GlobalFeature queryFeature : queryFeatures) {
+            Query query = createCandidateQuery(searcher, plan, queryFeature, null);
+            if (plan.getFilterQueries() != null) {
+                DocList docList = searcher.getDocList(query, plan.getFilterQueries(), Sort.RELEVANCE, 0, plan.getCandidates(), 0);
+                for (DocIterator it = docList.iterator(); it.hasNext(); ) candidates.set(it.nextDoc());
+            } else {
+                TopDocs docs = searcher.search(query, plan.getCandidates());
+                for (ScoreDoc scoreDoc : docs.scoreDocs) candidates.set(scoreDoc.doc);
+            }
+        }
+        rsp.add("RawDocsCount", candidates.cardinality() + "");
+        rsp.add("RawDocsSearchTime", timings.stop(SearchMetrics.CANDIDATES) + "");
+
+        // (3) re-ranking, each candidate is read once and compared to all queries.
+        timings.start();
+        BoundedResultHeap[] resultHeaps = new BoundedResultHeap[queryFeatures.size()];
+        ThresholdDistance[] distances = new ThresholdDistance[queryFeatures.size()];
+        for (int i = 0; i < resultHeaps.length; i++) {
+            resultHeaps[i] = new BoundedResultHeap(plan.getRows());
+            distances[i] = ThresholdDistance.create(queryFeatures.get(i));
+        }
+        GlobalFeature tmpFeature = FeatureRegistry.acquireFeature(plan.getFeatureClass());
+        try {
+            BitSetIterator candidateIterator = new BitSetIterator(candidates, 0);
+            for (int doc = candidateIterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = candidateIterator.nextDoc()) {
+                BytesRef bytesRef = binaryValues.get(doc);
+                if (bytesRef.length == 0) continue; // no feature for this document.
+                tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                for (int i = 0; i < resultHeaps.length; i++) {
+                    resultHeaps[i].offer(doc, distances[i].getDistance(tmpFeature, resultHeaps[i].getMaxDistance()));
+                }
+            }
+        } finally {
+            FeatureRegistry.releaseFeature(tmpFeature);
+        }
+        searchMetrics.markCandidates(candidates.cardinality(), (long) candidates.cardinality() * resultHeaps.length);
+        rsp.add("ReRankSearchTime", timings.stop(SearchMetrics.RE_RANK) + "");
+
+        // (4) creating the response, one entry per query, the fields are parsed once for all of them.
+        timings.start();
+        LireReturnFields returnFields = new LireReturnFields(req);
+        LinkedList results = new LinkedList();
+        for (int i = 0; i < resultHeaps.length; i++) {
+            HashMap m = new HashMap(2);
+            m.put(byId ? "id" : "feature", queryKeys.get(i));
+            m.put("docs", new LireResultContext(resultHeaps[i], returnFields, searcher, null, req));
+            results.add(m);
+        }
+        timings.stop(SearchMetrics.RESPONSE);
+        rsp.add("results", results);
+    }
+
+    /**
+     * Searches with several features at once, given by the parameter fields as a comma separated list of fields with
+     * optional weights, eg. fields=ce:2,fc,jc. The query is given by id or url, in the latter case the image is
+     * downloaded once and the features are extracted concurrently. The candidates of all features are merged and the
+     * features of each candidate are read together, then the distances are combined by {@link LateFusion} with the
+     * method given by fusion, either score (weighted sum of normalized distances, the default) or rank.
+     *
+     * @param req
+     * @param rsp
+     * @throws IOException
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    private void handleFusionSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException, InstantiationException, IllegalAccessException {
+        SolrParams params = req.getParams();
+        SolrIndexSearcher searcher = req.getSearcher();
+        List<Query> filterQueries = getFilterQueries(req);
+        List<String> fields = splitList(params.get("fields"));
+        List<SearchPlan> plans = new ArrayList<>(fields.size());
+        double[] weights = new double[fields.size()];
+        List<String> hashFields = new ArrayList<>(fields.size());
+        for (int f = 0; f < fields.size(); f++) {
+            String[] fieldAndWeight = fields.get(f).split(":", -1);
+            ModifiableSolrParams fieldParams = new ModifiableSolrParams(params);
+            fieldParams.set("field", fieldAndWeight[0]);
+            SearchPlan plan = new SearchPlan(fieldParams, filterQueries);
+            if (plan.getFeatureClass() == null) {
+                rsp.add("Error", "Unknown field " + fieldAndWeight[0]);
+                return;
+            }
+            plans.add(plan);
+            hashFields.add(plan.getHashField());
+            weights[f] = fieldAndWeight.length > 1 ? parseWeight(fieldAndWeight[1], fields.get(f)) : 1d;
+        }
+        if (plans.isEmpty()) {
+            rsp.add("Error", "No fields given.");
+            return;
+        }
+        SearchPlan firstPlan = plans.get(0);
+        SearchTimings timings = new SearchTimings(searchMetrics, "fusion", SearchMetrics.FUSED_FIELDS);
+        rsp.add("QueryFields", hashFields);
+
+        // (1) getting the query features, either from the index or from the image.
+        timings.start();
+        GlobalFeature[] queryFeatures = new GlobalFeature[plans.size()];
+        try {
+            if (params.get("id") != null) {
+                int queryDocId = searcher.getFirstMatch(new Term("id", params.get("id")));
+                if (queryDocId < 0) {
+                    rsp.add("Error", "Did not find an image with the given id " + params.get("id"));
+                    return;
+                }
+                for (int f = 0; f < plans.size(); f++) {
+                    BinaryDocValues binaryValues = featureStore.getBinaryValues(searcher.getIndexReader(), plans.get(f).getFeatureField());
+                    BytesRef bytesRef = binaryValues == null ? null : binaryValues.get(queryDocId);
+                    if (bytesRef == null || bytesRef.length == 0) {
+                        rsp.add("Error", "Could not find the DocValues of the query document for field " + plans.get(f).getFeatureField());
+                        return;
+                    }
+                    queryFeatures[f] = plans.get(f).newFeature();
+                    queryFeatures[f].setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                }
+                timings.stop(SearchMetrics.DOC_VALUES);
+            } else if (params.get("url") != null) {
+                List<QueryFeatureCache.Entry> entries = getQueryFeatures(params.get("url"), plans);
+                for (int f = 0; f < plans.size(); f++) {
+                    queryFeatures[f] = plans.get(f).newFeature();
+                    queryFeatures[f].setByteArrayRepresentation(entries.get(f).getFeature());
+                }
+                timings.stop(SearchMetrics.EXTRACT);
+            } else {
+                rsp.add("Error", "Please give either an id or an url for searching with several fields.");
+                return;
+            }
+        } catch (Exception e) {
+            rsp.add("Error", "Error getting the query features: " + e.getMessage());
+            return;
+        }
+
+        // (2) the union of the candidates of all features.
+        timings.start();
+        FixedBitSet candidates = new FixedBitSet(Math.max(1, searcher.maxDoc()));
+        for (int f = 0; f < plans.size(); f++) {
+            SearchPlan plan = plans.get(f);
+            Query query = createCandidateQuery(searcher, plan, queryFeatures[f], null);
+            if (filterQueries != null) {
+                DocList docList = searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, plan.getCandidates(), 0);
+                for (DocIterator it = docList.iterator(); it.hasNext(); ) candidates.set(it.nextDoc());
+            } else {
+                TopDocs docs = searcher.search(query, plan.getCandidates());
+                for (ScoreDoc scoreDoc : docs.scoreDocs) candidates.set(scoreDoc.doc);
+            }
+        }
+        rsp.add("RawDocsCount", candidates.cardinality() + "");
+        rsp.add("RawDocsSearchTime", timings.stop(SearchMetrics.CANDIDATES) + "");
+
+        // (3) a single pass over the candidates in index order, reading all features of a candidate together.
+        timings.start();
+        BinaryDocValues[] binaryValues = new BinaryDocValues[plans.size()];
+        GlobalFeature[] tmpFeatures = new GlobalFeature[plans.size()];
+        for (int f = 0; f < plans.size(); f++) {
+            binaryValues[f] = featureStore.getBinaryValues(searcher.getIndexReader(), plans.get(f).getFeatureField());
+            if (binaryValues[f] == null) {
+                rsp.add("Error", "Could not find the DocValues for field " + plans.get(f).getFeatureField() + ". Are they in the index?");
+                return;
+            }
+        }
+        int[] docs = new int[candidates.cardinality()];
+        double[][] distances = new double[plans.size()][docs.length];
+        try {
+            for (int f = 0; f < plans.size(); f++) tmpFeatures[f] = FeatureRegistry.acquireFeature(plans.get(f).getFeatureClass());
+            BitSetIterator candidateIterator = new BitSetIterator(candidates, 0);
+            int i = 0;
+            for (int doc = candidateIterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = candidateIterator.nextDoc(), i++) {
+                docs[i] = doc;
+                for (int f = 0; f < binaryValues.length; f++) {
+                    BytesRef bytesRef = binaryValues[f].get(doc);
+                    if (bytesRef.length == 0) {
+                        distances[f][i] = Double.NaN; // no feature for this document.
+                    } else {
+                        tmpFeatures[f].setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                        distances[f][i] = queryFeatures[f].getDistance(tmpFeatures[f]);
+                    }
+                }
+            }
+        } finally {
+            for (GlobalFeature tmpFeature : tmpFeatures) FeatureRegistry.releaseFeature(tmpFeature);
+        }
+        BoundedResultHeap resultHeap;
+        try {
+            resultHeap = LateFusion.fuse(docs, distances, weights, params.get("fusion", LateFusion.SCORE), firstPlan.getRows());
+        } catch (IllegalArgumentException e) {
+            rsp.add("Error", e.getMessage());
+            return;
+        }
+        searchMetrics.markCandidates(docs.length, (long) docs.length * plans.size());
+        rsp.add("ReRankSearchTime", timings.stop(SearchMetrics.RE_RANK) + "");
+
+        // (4) the response with the fused distances.
+        timings.start();
+        rsp.addResponse(new LireResultContext(resultHeap, new LireReturnFields(req), searcher, null, req));
+        timings.stop(SearchMetrics.RESPONSE);
+    }
+
+    /**
+     * Gets the features of a query image for several fields, the image is downloaded at most once and the features
+     * missing in the cache are extracted concurrently.
+     *
+     * @param url   the URL of the image
+     * @param plans the parameters per field
+     * @return the byte[] representations of the features and their BitSampling hashes in the order of the plans.
+     * @throws Exception
+     */
+    private List<QueryFeatureCache.Entry> getQueryFeatures(String url, List<SearchPlan> plans) throws Exception {
+        QueryFeatureCache.Entry[] entries = new QueryFeatureCache.Entry[plans.size()];
+        List<Integer> missing = new ArrayList<>();
+        for (int f = 0; f < plans.size(); f++) {
+            entries[f] = queryFeatureCache.get(url, plans.get(f).getHashField());
+            if (entries[f] == null) missing.add(f);
+        }
+        if (!missing.isEmpty()) {
+            // decoded once for all features, at the largest side length any of them needs.
+            int sideLength = 0;
+            for (int f : missing) {
+                int featureSideLength = getDecodeSideLength(plans.get(f));
+                if (featureSideLength <= 0) {
+                    sideLength = 0;
+                    break;
+                }
+                sideLength = Math.max(sideLength, featureSideLength);
+            }
+            BufferedImage img = ImageUtils.trimWhiteSpace(imageFetcher.fetchImage(url, sideLength));
+            List<Future<QueryFeatureCache.Entry>> extractions = new ArrayList<>(missing.size());
+            for (int f : missing) {
+                SearchPlan plan = plans.get(f);
+                extractions.add(reRankExecutor.submit(() -> {
+                    // the features only read the image.
+                    GlobalFeature feat = newQueryFeature(plan);
+                    feat.extract(img);
+                    return queryFeatureCache.put(url, plan.getHashField(), feat.getByteArrayRepresentation(), MultiProbeBitSampling.generateHashes(feat.getFeatureVector()));
+                }));
+            }
+            for (int k = 0; k < missing.size(); k++) {
+                try {
+                    entries[missing.get(k)] = extractions.get(k).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        return Arrays.asList(entries);
+    }
+
+    /**
+     * @param weight the weight of a field given with the fields parameter
+     * @param field  the field along with its weight, for the error message
+     * @return the weight
+     * @throws SolrException BAD_REQUEST if the weight is no number, not finite or negative.
+     */
+    private static double parseWeight(String weight, String field) {
+        double value;
+        try {
+            value = Double.parseDouble(weight);
+        } catch (NumberFormatException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid weight in " + field + ", weights are numbers.");
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value) || value < 0)
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid weight in " + field + ", weights are finite and not negative.");
+        return value;
+    }
+
+    /**
+     * Splits a comma or white space separated list of parameter values.
+     *
+     * @param values the parameter value
+     * @return the non empty values in order.
+     */
+    private static List<String> splitList(String values) {
+        List<String> result = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(values, ", \t\n\r");
+        while (st.hasMoreTokens()) result.add(st.nextToken());
+        return result;
+    }
+
     /**
      * Parses the fq param and adds it as a list of filter queries or reverts to null if nothing is found
      * or an Exception is thrown.
@@ -230,7 +910,8 @@ public class LireRequestHandler extends RequestHandlerBase {
     }
 
     /**
-     * Returns a random set of documents from the index. Mainly for testing purposes.
+     * Returns a random set of documents from the index. Mainly for testing purposes. The documents are drawn
+     * uniformly from all documents matching the filter queries, the parameter seed makes the sample reproducible.
      *
      * @param req
      * @param rsp
@@ -238,24 +919,17 @@ public class LireRequestHandler extends RequestHandlerBase {
      */
     private void handleRandomSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException {
         SolrIndexSearcher searcher = req.getSearcher();
-        Query query = new MatchAllDocsQuery();
-        DocList docList = searcher.getDocList(query, getFilterQueries(req), Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
-        int paramRows = Math.min(req.getParams().getInt("rows", defaultNumberOfResults), docList.size());
-        if (docList.size() < 1) {
+        List<Query> filterQueries = getFilterQueries(req);
+        DocSet docSet = filterQueries == null ? searcher.getLiveDocs() : searcher.getDocSet(filterQueries);
+        int paramRows = req.getParams().getInt("rows", SearchPlan.DEFAULT_NUMBER_OF_RESULTS);
+        Long seed = req.getParams().getLong("seed");
+        if (docSet.size() < 1) {
             rsp.add("Error", "No documents in index");
         } else {
-            LinkedList list = new LinkedList();
-            while (list.size() < paramRows) {
-                DocList auxList = docList.subset((int) (Math.random() * docList.size()), 1);
-                Document doc = null;
-                for (DocIterator it = auxList.iterator(); it.hasNext(); ) {
-                    doc = searcher.doc(it.nextDoc());
-                }
-                if (!list.contains(doc)) {
-                    list.add(doc);
-                }
-            }
-            rsp.addResponse(list);
+            int[] docs = RandomDocumentSampler.sample(docSet, paramRows, seed == null ? new Random() : new Random(seed));
+            // the fields are loaded by the response writer.
+            DocSlice docSlice = new DocSlice(0, docs.length, docs, null, docSet.size(), 0f);
+            rsp.addResponse(new BasicResultContext(docSlice, new SolrReturnFields(req), searcher, null, req));
         }
     }
 
@@ -272,52 +946,135 @@ public class LireRequestHandler extends RequestHandlerBase {
     private void handleUrlSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException, InstantiationException, IllegalAccessException {
         SolrParams params = req.getParams();
         String paramUrl = params.get("url");
-        String paramField = req.getParams().get("field", "cl_ha");
-        if (!paramField.endsWith("_ha")) paramField += "_ha";
-        int paramRows = params.getInt("rows", defaultNumberOfResults);
-        numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-        numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
-
+        SearchPlan plan = new SearchPlan(params, getFilterQueries(req), searchMetrics, "url");
 
         GlobalFeature feat = null;
         int[] hashes = null;
-        Query query = null;
         // wrapping the whole part in the try
         try {
-            BufferedImage img = ImageIO.read(new URL(paramUrl).openStream());
-            img = ImageUtils.trimWhiteSpace(img);
-            // getting the right feature per field:
-            if (FeatureRegistry.getClassForHashField(paramField) == null) // if the feature is not registered.
-                feat = new ColorLayout();
-            else {
-                feat = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
-            }
-            feat.extract(img);
+            QueryFeatureCache.Entry queryData = getQueryFeature(paramUrl, plan);
+            feat = newQueryFeature(plan);
+            feat.setByteArrayRepresentation(queryData.getFeature());
+            // the hashes come along with the cached feature.
+            hashes = queryData.getHashes();
 
-            if (!useMetricSpaces) {
-                // Re-generating the hashes to save space (instead of storing them in the index)
-                HashTermStatistics.addToStatistics(req.getSearcher(), paramField);
-                hashes = BitSampling.generateHashes(feat.getFeatureVector());
-                query = createQuery(hashes, paramField, numberOfQueryTerms);
-            } else if (MetricSpaces.supportsFeature(feat)) {
-                // ----< Metric Spaces >-----
-                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(feat), 3, MetricSpaces.getPostingListLength(feat));
-                String msQuery = MetricSpaces.generateBoostedQuery(feat, queryLength);
-                QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
-                query = qp.parse(msQuery);
-            } else {
+            if (plan.isUseMetricSpaces() && !ReferenceData.supportsMetricSpaces(feat)) {
                 rsp.add("Error", "Feature not supported by MetricSpaces: " + feat.getClass().getSimpleName());
-                query = new MatchAllDocsQuery();
             }
-
         } catch (Exception e) {
             rsp.add("Error", "Error reading image from URL: " + paramUrl + ": " + e.getMessage());
             e.printStackTrace();
         }
-        // search if the feature has been extracted and query is there.
-        if (feat != null && query != null) {
-            doSearch(req, rsp, req.getSearcher(), paramField, paramRows, getFilterQueries(req), query, feat);
+        // search if the feature has been extracted.
+        if (feat != null) {
+            doSearch(req, rsp, req.getSearcher(), plan, feat, hashes, null);
+        }
+    }
+
+    /**
+     * Searches for an image posted as content of the request, eg. with curl --data-binary @image.jpg -H
+     * 'Content-type:image/jpeg'. The image is decoded with subsampling, see {@link ImageDecoder}.
+     *
+     * @param req
+     * @param rsp
+     * @throws IOException
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    private void handleUploadSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException, InstantiationException, IllegalAccessException {
+        SearchPlan plan = new SearchPlan(req.getParams(), getFilterQueries(req), searchMetrics, "upload");
+        GlobalFeature feat;
+        try {
+            feat = getUploadedFeature(req, plan);
+            if (plan.isUseMetricSpaces() && !ReferenceData.supportsMetricSpaces(feat)) {
+                rsp.add("Error", "Feature not supported by MetricSpaces: " + feat.getClass().getSimpleName());
+            }
+        } catch (Exception e) {
+            rsp.add("Error", "Error reading the uploaded image: " + e.getMessage());
+            return;
+        }
+        doSearch(req, rsp, req.getSearcher(), plan, feat, null, null);
+    }
+
+    /**
+     * @param req the request
+     * @return the first content stream of the request or null if nothing was posted.
+     */
+    private static ContentStream getUploadedImage(SolrQueryRequest req) {
+        Iterable<ContentStream> streams = req.getContentStreams();
+        if (streams == null) return null;
+        Iterator<ContentStream> iterator = streams.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Decodes the image posted with the request and extracts the feature of the requested field. The size of the image
+     * is limited by fetchMaxBytes like for downloads.
+     *
+     * @param req  the request
+     * @param plan the parameters of the request
+     * @return the feature of the uploaded image.
+     * @throws IOException if the image cannot be decoded
+     * @throws IllegalAccessException
+     * @throws InstantiationException
+     */
+    private GlobalFeature getUploadedFeature(SolrQueryRequest req, SearchPlan plan) throws IOException, IllegalAccessException, InstantiationException {
+        SearchTimings timings = plan.getTimings();
+        timings.start();
+        BufferedImage img;
+        ContentStream upload = getUploadedImage(req);
+        // uploaded images are limited like downloaded ones.
+        try (InputStream in = upload.getStream()) {
+            img = imageFetcher.readImage(in, upload.getSize(), getDecodeSideLength(plan));
+        }
+        timings.stop(SearchMetrics.FETCH);
+        timings.start();
+        GlobalFeature feat = newQueryFeature(plan);
+        feat.extract(ImageUtils.trimWhiteSpace(img));
+        timings.stop(SearchMetrics.EXTRACT);
+        return feat;
+    }
+
+    /**
+     * Gets the feature of a query image given by an URL from the cache or downloads the image and extracts the
+     * feature and its hashes if it is not cached.
+     *
+     * @param url  the URL of the image
+     * @param plan the parameters of the request
+     * @return the byte[] representation of the feature and its BitSampling hashes.
+     * @throws IOException
+     * @throws IllegalAccessException
+     * @throws InstantiationException
+     */
+    private QueryFeatureCache.Entry getQueryFeature(String url, SearchPlan plan) throws IOException, IllegalAccessException, InstantiationException {
+        QueryFeatureCache.Entry entry = queryFeatureCache.get(url, plan.getHashField());
+        if (entry == null) {
+            SearchTimings timings = plan.getTimings();
+            timings.start();
+            BufferedImage img = imageFetcher.fetchImage(url, getDecodeSideLength(plan));
+            timings.stop(SearchMetrics.FETCH);
+            timings.start();
+            img = ImageUtils.trimWhiteSpace(img);
+            GlobalFeature feat = newQueryFeature(plan);
+            feat.extract(img);
+            entry = queryFeatureCache.put(url, plan.getHashField(), feat.getByteArrayRepresentation(), MultiProbeBitSampling.generateHashes(feat.getFeatureVector()));
+            timings.stop(SearchMetrics.EXTRACT);
+        }
+        return entry;
+    }
+
+    /**
+     * @param plan the parameters of the request
+     * @return a new instance of the feature of the requested field, ColorLayout if the feature is not registered.
+     * @throws IllegalAccessException
+     * @throws InstantiationException
+     */
+    private GlobalFeature newQueryFeature(SearchPlan plan) throws IllegalAccessException, InstantiationException {
+        // getting the right feature per field:
+        if (plan.getFeatureClass() == null) // if the feature is not registered.
+            return new ColorLayout();
+        else {
+            return plan.newFeature();
         }
     }
 
@@ -333,38 +1090,32 @@ public class LireRequestHandler extends RequestHandlerBase {
     private void handleExtract(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException, InstantiationException, IllegalAccessException {
         SolrParams params = req.getParams();
         String paramUrl = params.get("extract");
-        String paramField = req.getParams().get("field", "cl_ha");
-        if (!paramField.endsWith("_ha")) paramField += "_ha";
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
-        double accuracy = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        SearchPlan plan = new SearchPlan(params, null, searchMetrics, "extract");
+        String paramField = plan.getHashField();
+        double accuracy = plan.getAccuracy();
         GlobalFeature feat;
         // wrapping the whole part in the try
         try {
-            BufferedImage img = ImageIO.read(new URL(paramUrl).openStream());
-            img = ImageUtils.trimWhiteSpace(img);
-            // getting the right feature per field:
-            if (FeatureRegistry.getClassForHashField(paramField) == null) // if the feature is not registered.
-                feat = new ColorLayout();
-            else {
-                feat = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
-            }
-            feat.extract(img);
+            QueryFeatureCache.Entry queryData = getQueryFeature(paramUrl, plan);
+            feat = newQueryFeature(plan);
+            feat.setByteArrayRepresentation(queryData.getFeature());
             rsp.add("histogram", Base64.encodeBase64String(feat.getByteArrayRepresentation()));
-            if (!useMetricSpaces || true) { // only if the field is available was the original way
-                HashTermStatistics.addToStatistics(req.getSearcher(), paramField);
-                int[] hashes = BitSampling.generateHashes(feat.getFeatureVector());
-                List<String> hashStrings = orderHashes(hashes, paramField, false);
+            if (!plan.isUseMetricSpaces() || true) { // only if the field is available was the original way
+                boolean binary = IntHashField.isIntHashField(req.getSchema(), paramField);
+                HashTermStatistics statistics = HashTermStatistics.get(req.getSearcher().getIndexReader(), paramField, binary, reRankExecutor);
+                int[] hashes = queryData.getHashes();
+                List<String> hashStrings = HashQueryBuilder.orderHashes(hashes, statistics, false);
                 rsp.add("bs_list", hashStrings);
-                List<String> hashQuery = orderHashes(hashes, paramField, true);
+                List<String> hashQuery = HashQueryBuilder.orderHashes(hashes, statistics, true);
                 int queryLength = (int) StatsUtils.clamp(accuracy * hashes.length,
                         3, hashQuery.size());
                 rsp.add("bs_query", String.join(" ", hashQuery.subList(0, queryLength)));
             }
-            if (MetricSpaces.supportsFeature(feat)) {
-                rsp.add("ms_list", MetricSpaces.generateHashList(feat));
-                int queryLength = (int) StatsUtils.clamp(accuracy * MetricSpaces.getPostingListLength(feat),
-                        3, MetricSpaces.getPostingListLength(feat));
-                rsp.add("ms_query", MetricSpaces.generateBoostedQuery(feat, queryLength));
+            if (ReferenceData.supportsMetricSpaces(feat)) {
+                rsp.add("ms_list", ReferenceData.generateHashList(feat));
+                int queryLength = (int) StatsUtils.clamp(accuracy * ReferenceData.getPostingListLength(feat),
+                        3, ReferenceData.getPostingListLength(feat));
+                rsp.add("ms_query", ReferenceData.generateBoostedQuery(feat, queryLength));
             }
         } catch (Exception e) {
             rsp.add("Error", "Error reading image from URL: " + paramUrl + ": " + e.getMessage());
@@ -390,183 +1141,284 @@ public class LireRequestHandler extends RequestHandlerBase {
         // field=<cl_ha|ph_ha|...>
 
         byte[] featureVector = Base64.decodeBase64(params.get("feature"));
-        String paramField = req.getParams().get("field", "cl_ha");
-        if (!paramField.endsWith("_ha")) paramField += "_ha";
-        int paramRows = params.getInt("rows", defaultNumberOfResults);
-        numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-        numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        SearchPlan plan = new SearchPlan(params, getFilterQueries(req), searchMetrics, "hashes");
 
         // query feature
-        GlobalFeature queryFeature = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
+        GlobalFeature queryFeature = plan.newFeature();
         queryFeature.setByteArrayRepresentation(featureVector);
 
-        if (!useMetricSpaces)
-            HashTermStatistics.addToStatistics(req.getSearcher(), paramField); // caching the term statistics.
-
-        QueryParser qp = null;
-        String queryString = null;
-        if (params.get("hashes") == null) {
-            // we have to create the hashes first ...
-            if (!useMetricSpaces) {
-
-            } else if (MetricSpaces.supportsFeature(queryFeature)) {
-                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(queryFeature),
-                        3, MetricSpaces.getPostingListLength(queryFeature));
-                queryString = MetricSpaces.generateBoostedQuery(queryFeature, queryLength);
-            } else {
-                queryString = "*:*";
-            }
-        } else {
-            queryString = params.get("hashes").trim();
-            if (!useMetricSpaces) {
-                qp = new QueryParser(paramField, new WhitespaceAnalyzer());
-            } else {
-                qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
-            }
-        }
-        Query query = null;
-        try {
-            query = qp.parse(queryString);
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
-
-        // get results:
-        doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature);
+        // get results, the hashes are created from the feature if there are none given:
+        doSearch(req, rsp, searcher, plan, queryFeature, null, params.get("hashes"));
     }
 
     /**
-     * Actual search implementation based on (i) hash based retrieval and (ii) feature based re-ranking.
+     * Actual search implementation based on (i) hash based retrieval and (ii) feature based re-ranking. Results are
+     * taken from and put into the result cache of the searcher if it is configured.
      *
      * @param req           the SolrQueryRequest
      * @param rsp           the response to write the data to
      * @param searcher      the actual index searcher object to search the index
-     * @param hashFieldName the name of the field the hashes can be found
-     * @param maximumHits   the maximum number of hits, the smaller the faster
-     * @param filterQueries   can be null
-     * @param query         the (Boolean) query for querying the candidates from the IndexSearcher
+     * @param plan          the parameters of the request, ie. fields, number of candidates and hits, filter queries.
      * @param queryFeature  the image feature used for re-ranking the results
+     * @param hashes        the BitSampling hashes of the query feature, re-generated if null
+     * @param queryHashes   the hashes given with the request for querying the candidates, created from the query
+     *                      feature if null
      * @throws IOException
      * @throws IllegalAccessException
      * @throws InstantiationException
      */
-    private void doSearch(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher, String hashFieldName,
-                          int maximumHits, List<Query> filterQueries, Query query, GlobalFeature queryFeature)
+    private void doSearch(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher, SearchPlan plan,
+                          GlobalFeature queryFeature, int[] hashes, String queryHashes)
             throws IOException, IllegalAccessException, InstantiationException {
-        // temp feature instance
-        GlobalFeature tmpFeature = queryFeature.getClass().newInstance();
-        // Taking the time of search for statistical purposes.
-        time = System.currentTimeMillis();
-
-        String featureFieldName = FeatureRegistry.getFeatureFieldName(hashFieldName);
-        BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), featureFieldName);
+        SearchTimings timings = plan.getTimings();
+        @SuppressWarnings("unchecked")
+        SolrCache<ResultCacheKey, BoundedResultHeap> resultCache = plan.isUseCache() ? (SolrCache<ResultCacheKey, BoundedResultHeap>) searcher.getCache(resultCacheName) : null;
+        ResultCacheKey cacheKey = null;
+        BoundedResultHeap resultHeap = null;
+        Query query = null;
+        if (resultCache != null) {
+            // the key doesn't need the candidate query, so it's built on a miss only.
+            cacheKey = new ResultCacheKey(plan, queryHashes, queryFeature.getByteArrayRepresentation());
+            resultHeap = resultCache.get(cacheKey);
+            if (resultHeap != null) resultCacheHits.incrementAndGet();
+            else resultCacheMisses.incrementAndGet();
+            rsp.add("ResultCache", resultHeap != null ? "hit" : "miss");
+        }
+        if (resultHeap == null) {
+            boolean partial = false;
+            if (plan.isExact()) {
+                resultHeap = doExactSearch(rsp, searcher, plan, queryFeature);
+            } else if (plan.isAdaptive()) {
+                resultHeap = doAdaptiveSearch(req, rsp, searcher, plan, queryFeature);
+                partial = Boolean.TRUE.equals(rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+            } else {
+                timings.start();
+                query = createCandidateQuery(searcher, plan, queryFeature, hashes, queryHashes);
+                timings.stop(SearchMetrics.QUERY);
+                resultHeap = doReRankSearch(rsp, searcher, plan, query, queryFeature);
+            }
+            if (cacheKey != null && !partial) {
+                resultHeap.sort(); // sorted heaps are read only, so they can be shared.
+                resultCache.put(cacheKey, resultHeap);
+            }
+        }
+        // The response writer loads the fields only for the documents that made it into the final result list.
+        timings.start();
+        rsp.addResponse(new LireResultContext(resultHeap, new LireReturnFields(req), searcher, query, req));
+        timings.stop(SearchMetrics.RESPONSE);
+    }
 
-        time = System.currentTimeMillis() - time;
-        rsp.add("DocValuesOpenTime", time + "");
+    /**
+     * Retrieves the candidates with the hash based query and re-ranks them.
+     *
+     * @param rsp          the response to write the statistics to
+     * @param searcher     the actual index searcher object to search the index
+     * @param plan         the parameters of the request, ie. fields, number of candidates and hits, filter queries.
+     * @param query        the (Boolean) query for querying the candidates from the IndexSearcher
+     * @param queryFeature the image feature used for re-ranking the results
+     * @return the re-ranked results.
+     * @throws IOException
+     * @throws IllegalAccessException
+     * @throws InstantiationException
+     */
+    private BoundedResultHeap doReRankSearch(SolrQueryResponse rsp, SolrIndexSearcher searcher, SearchPlan plan,
+                                             Query query, GlobalFeature queryFeature)
+            throws IOException, IllegalAccessException, InstantiationException {
+        SearchTimings timings = plan.getTimings();
+        String featureFieldName = plan.getFeatureField();
+        BinaryDocValues binaryValues = null;
+        if (!plan.isParallel()) {
+            // Taking the time of search for statistical purposes.
+            timings.start();
+            binaryValues = featureStore.getBinaryValues(searcher.getIndexReader(), featureFieldName);
+            rsp.add("DocValuesOpenTime", timings.stop(SearchMetrics.DOC_VALUES) + "");
+        }
 
         Iterator<Integer> docIterator;
-        int numberOfResults = 0;
-        time = System.currentTimeMillis();
-        if (filterQueries != null) {
-            DocList docList = searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
+        int numberOfResults = 0, numberOfCandidates;
+        timings.start();
+        if (plan.getFilterQueries() != null) {
+            DocList docList = searcher.getDocList(query, plan.getFilterQueries(), Sort.RELEVANCE, 0, plan.getCandidates(), 0);
             numberOfResults = docList.size();
+            numberOfCandidates = docList.size();
             docIterator = docList.iterator();
         } else {
-            TopDocs docs = searcher.search(query, numberOfCandidateResults);
+            TopDocs docs = searcher.search(query, plan.getCandidates());
             numberOfResults = docs.totalHits;
+            numberOfCandidates = docs.scoreDocs.length;
             docIterator = new TopDocsIterator(docs);
         }
-        time = System.currentTimeMillis() - time;
         rsp.add("RawDocsCount", numberOfResults + "");
-        rsp.add("RawDocsSearchTime", time + "");
-        time = System.currentTimeMillis();
-        TreeSet<CachingSimpleResult> resultScoreDocs = getReRankedResults(docIterator, binaryValues, queryFeature, tmpFeature, maximumHits, searcher);
-
-        // Creating response ...
-        time = System.currentTimeMillis() - time;
-        rsp.add("ReRankSearchTime", time + "");
-        LinkedList list = new LinkedList();
-        for (Iterator<CachingSimpleResult> it = resultScoreDocs.iterator(); it.hasNext(); ) {
-            CachingSimpleResult result = it.next();
-            HashMap m = new HashMap(2);
-            m.put("d", result.getDistance());
-            // add fields as requested:
-            if (req.getParams().get("fl") == null) {
-                m.put("id", result.getDocument().get("id"));
-                if (result.getDocument().get("title") != null)
-                    m.put("title", result.getDocument().get("title"));
-            } else {
-                String fieldsRequested = req.getParams().get("fl");
-                if (fieldsRequested.contains("score")) {
-                    m.put("score", result.getDistance());
-                }
-                if (fieldsRequested.contains("*")) {
-                    // all fields
-                    for (IndexableField field : result.getDocument().getFields()) {
-                        String tmpField = field.name();
-
-                        if (result.getDocument().getFields(tmpField).length > 1) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getValues(tmpField));
-                        } else if (result.getDocument().getFields(tmpField).length > 0) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getFields(tmpField)[0].stringValue());
-                        }
-                    }
-                } else {
-                    StringTokenizer st;
-                    if (fieldsRequested.contains(","))
-                        st = new StringTokenizer(fieldsRequested, ",");
-                    else
-                        st = new StringTokenizer(fieldsRequested, " ");
-                    while (st.hasMoreElements()) {
-                        String tmpField = st.nextToken();
-                        if (result.getDocument().getFields(tmpField).length > 1) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getValues(tmpField));
-                        } else if (result.getDocument().getFields(tmpField).length > 0) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getFields(tmpField)[0].stringValue());
-                        }
+        rsp.add("RawDocsSearchTime", timings.stop(SearchMetrics.CANDIDATES) + "");
+        timings.start();
+        BoundedResultHeap resultHeap;
+        if (plan.isParallel()) {
+            resultHeap = parallelReRanker.reRank(searcher, toArray(docIterator), featureFieldName, queryFeature, plan.getRows());
+        } else {
+            // temp feature instance
+            GlobalFeature tmpFeature = FeatureRegistry.acquireFeature(queryFeature.getClass());
+            try {
+                resultHeap = getReRankedResults(docIterator, binaryValues, queryFeature, tmpFeature, plan.getRows());
+            } finally {
+                FeatureRegistry.releaseFeature(tmpFeature);
+            }
+        }
+        searchMetrics.markCandidates(numberOfCandidates, numberOfCandidates);
+        rsp.add("ReRankSearchTime", timings.stop(SearchMetrics.RE_RANK) + "");
+        return resultHeap;
+    }
+
+    /**
+     * Adaptive search, starting with a short query and few candidates. The query terms and the candidates are doubled
+     * in each round up to accuracy and candidates of the request, but only as long as the worst distance in the
+     * top k is still improving. Candidates already seen in a previous round are not re-ranked again. timeAllowed counts
+     * from the start of the request like for the SearchHandler. It limits the collection of the candidates, see
+     * {@link QueryCommand#setTimeAllowed(long)}, and the re-ranking. If it runs out, the results found so far are
+     * returned and flagged with partialResults in the response header.
+     *
+     * @param req          the request, for the start time
+     * @param rsp          the response to write the statistics to
+     * @param searcher     the actual index searcher object to search the index
+     * @param plan         the parameters of the request, accuracy and candidates are the upper limits.
+     * @param queryFeature the image feature used for re-ranking the results
+     * @return the re-ranked results.
+     * @throws IOException
+     * @throws IllegalAccessException
+     * @throws InstantiationException
+     */
+    private BoundedResultHeap doAdaptiveSearch(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                                               SearchPlan plan, GlobalFeature queryFeature)
+            throws IOException, IllegalAccessException, InstantiationException {
+        SearchTimings timings = plan.getTimings();
+        timings.start();
+        long deadline = plan.getTimeAllowed() > 0 ? req.getStartTime() + plan.getTimeAllowed() : Long.MAX_VALUE;
+        BinaryDocValues binaryValues = featureStore.getBinaryValues(searcher.getIndexReader(), plan.getFeatureField());
+        ThresholdDistance distance = ThresholdDistance.create(queryFeature);
+        BoundedResultHeap resultHeap = new BoundedResultHeap(plan.getRows());
+        FixedBitSet seen = new FixedBitSet(Math.max(1, searcher.maxDoc()));
+        int candidates = Math.min(plan.getCandidates(), Math.max(SearchPlan.ADAPTIVE_INITIAL_CANDIDATES, plan.getRows()));
+        double accuracy = Math.min(plan.getAccuracy(), SearchPlan.ADAPTIVE_INITIAL_ACCURACY);
+        double bound = Double.MAX_VALUE;
+        int rounds = 0, reRanked = 0;
+        boolean partial = false;
+        GlobalFeature tmpFeature = FeatureRegistry.acquireFeature(queryFeature.getClass());
+        try {
+            rounds:
+            while (true) {
+                Query query = HashQueryBuilder.createCandidateQuery(searcher, plan, queryFeature, null, accuracy, reRankExecutor);
+                QueryCommand command = new QueryCommand().setQuery(query).setFilterList(plan.getFilterQueries())
+                        .setSort(Sort.RELEVANCE).setLen(candidates);
+                // the candidates collected until the time runs out are re-ranked, the search ends after this round then.
+                if (deadline != Long.MAX_VALUE)
+                    command.setTimeAllowed(Math.max(1, deadline - System.currentTimeMillis()));
+                QueryResult result = searcher.search(new QueryResult(), command);
+                if (result.isPartialResults()) partial = true;
+                Iterator<Integer> docIterator = result.getDocList().iterator();
+                rounds++;
+                while (docIterator.hasNext()) {
+                    int doc = docIterator.next();
+                    if (seen.getAndSet(doc)) continue; // re-ranked in a previous round.
+                    BytesRef bytesRef = binaryValues.get(doc);
+                    if (bytesRef.length == 0) continue;
+                    tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    resultHeap.offer(doc, distance.getDistance(tmpFeature, resultHeap.getMaxDistance()));
+                    if ((++reRanked & 255) == 0 && System.currentTimeMillis() > deadline) {
+                        partial = true;
+                        break rounds;
                     }
                 }
+                if (partial) break;
+                if (candidates >= plan.getCandidates() && accuracy >= plan.getAccuracy()) break; // widest search done.
+                if (resultHeap.isFull() && resultHeap.getMaxDistance() >= bound) break; // not improving anymore.
+                bound = resultHeap.getMaxDistance();
+                if (System.currentTimeMillis() > deadline) {
+                    partial = true;
+                    break;
+                }
+                candidates = (int) Math.min(plan.getCandidates(), 2L * candidates);
+                accuracy = Math.min(plan.getAccuracy(), 2 * accuracy);
             }
-//            m.put(field, result.getDocument().get(field));
-//            m.put(field.replace("_ha", "_hi"), result.getDocument().getBinaryValue(field));
-            list.add(m);
+        } finally {
+            FeatureRegistry.releaseFeature(tmpFeature);
         }
-        rsp.add("docs", list);
-        // rsp.add("Test-name", "Test-val");
+        if (partial) rsp.getResponseHeader().add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
+        rsp.add("AdaptiveRounds", rounds + "");
+        rsp.add("AdaptiveCandidates", candidates + "");
+        rsp.add("AdaptiveAccuracy", accuracy + "");
+        rsp.add("RawDocsCount", reRanked + "");
+        searchMetrics.markCandidates(reRanked, reRanked);
+        rsp.add("ReRankSearchTime", timings.stop(SearchMetrics.RE_RANK) + "");
+        return resultHeap;
+    }
+
+    /**
+     * Exact search by a parallel linear scan over the features of all documents matching the filter queries.
+     *
+     * @param rsp          the response to write the statistics to
+     * @param searcher     the actual index searcher object to search the index
+     * @param plan         the parameters of the request, ie. fields, number of hits, filter queries.
+     * @param queryFeature the image feature the documents are compared to
+     * @return the nearest documents.
+     * @throws IOException
+     */
+    private BoundedResultHeap doExactSearch(SolrQueryResponse rsp, SolrIndexSearcher searcher, SearchPlan plan,
+                                            GlobalFeature queryFeature) throws IOException {
+        SearchTimings timings = plan.getTimings();
+        timings.start();
+        DocSet filter = plan.getFilterQueries() == null ? null : searcher.getDocSet(plan.getFilterQueries());
+        rsp.add("FilterTime", timings.stop(SearchMetrics.CANDIDATES) + "");
+        timings.start();
+        AtomicLong compared = new AtomicLong();
+        BoundedResultHeap resultHeap = parallelReRanker.scan(searcher, filter, plan.getFeatureField(), queryFeature, plan.getRows(), compared);
+        long scanTime = timings.stop(SearchMetrics.RE_RANK);
+        // documents without a feature are skipped, so they don't count.
+        int scanned = (int) compared.get();
+        searchMetrics.markCandidates(scanned, scanned);
+        rsp.add("ScannedDocsCount", scanned + "");
+        rsp.add("ScanTime", scanTime + "");
+        rsp.add("ScanDocsPerSecond", (scanTime > 0 ? scanned * 1000L / scanTime : scanned) + "");
+        return resultHeap;
     }
 
-    private TreeSet<CachingSimpleResult> getReRankedResults(Iterator<Integer> docIterator, BinaryDocValues binaryValues, GlobalFeature queryFeature, GlobalFeature tmpFeature, int maximumHits, IndexSearcher searcher) throws IOException {
-        TreeSet<CachingSimpleResult> resultScoreDocs = new TreeSet<>();
-        double maxDistance = -1f;
+    /**
+     * Re-ranks the candidates based on the distance of their features to the query feature. Only document numbers
+     * and distances are kept while scanning, the fields of the winners are loaded afterwards by the response writer,
+     * see {@link LireResultContext}. Candidates without a feature are skipped.
+     *
+     * @param docIterator  the candidates from the hash based query
+     * @param binaryValues the DocValues holding the features
+     * @param queryFeature the query
+     * @param tmpFeature   re-used instance for reading the candidates' features
+     * @param maximumHits  the number of results
+     * @return the heap with the maximumHits nearest candidates.
+     */
+    private BoundedResultHeap getReRankedResults(Iterator<Integer> docIterator, BinaryDocValues binaryValues, GlobalFeature queryFeature, GlobalFeature tmpFeature, int maximumHits) {
+        BoundedResultHeap resultHeap = new BoundedResultHeap(maximumHits);
+        ThresholdDistance distance = ThresholdDistance.create(queryFeature);
         double tmpScore;
         BytesRef bytesRef;
-        CachingSimpleResult tmpResult;
         while (docIterator.hasNext()) {
             // using DocValues to retrieve the field values ...
             int doc = docIterator.next();
             bytesRef = binaryValues.get(doc);
+            if (bytesRef.length == 0) continue; // no feature in this document, like in the ParallelReRanker.
             tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
-            // Getting the document from the index.
-            // This is the slow step based on the field compression of stored fields.
-//            tmpFeature.setByteArrayRepresentation(d.getBinaryValue(name).bytes, d.getBinaryValue(name).offset, d.getBinaryValue(name).length);
-            tmpScore = queryFeature.getDistance(tmpFeature);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new CachingSimpleResult(tmpScore, searcher.doc(doc), doc));
-                maxDistance = resultScoreDocs.last().getDistance();
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                tmpResult = resultScoreDocs.last();
-                resultScoreDocs.remove(tmpResult);
-                // set it with new values and re-insert.
-                tmpResult.set(tmpScore, searcher.doc(doc), doc);
-                resultScoreDocs.add(tmpResult);
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
-        }
-        return resultScoreDocs;
+            // no need for the exact distance if it's beyond the current top k.
+            tmpScore = distance.getDistance(tmpFeature, resultHeap.getMaxDistance());
+            // taken if it is nearer to the sample than at least one of the current set or the set is not full yet.
+            resultHeap.offer(doc, tmpScore);
+        }
+        return resultHeap;
+    }
+
+    private static int[] toArray(Iterator<Integer> docIterator) {
+        int[] docs = new int[16];
+        int size = 0;
+        while (docIterator.hasNext()) {
+            if (size == docs.length) docs = Arrays.copyOf(docs, size * 2);
+            docs[size++] = docIterator.next();
+        }
+        return Arrays.copyOf(docs, size);
     }
 
     @Override
@@ -583,87 +1435,74 @@ public class LireRequestHandler extends RequestHandlerBase {
     public NamedList<Object> getStatistics() {
         // Change stats here to get an insight in the admin console.
         NamedList<Object> statistics = super.getStatistics();
-        statistics.add("Number of Requests", countRequests);
+        statistics.add("Number of Requests", countRequests.get());
+        statistics.add("Query feature cache size", queryFeatureCache.size());
+        statistics.add("Query feature cache bytes", queryFeatureCache.getBytes());
+        statistics.add("Query feature cache hits", queryFeatureCache.getHits());
+        statistics.add("Query feature cache misses", queryFeatureCache.getMisses());
+        statistics.add("Query feature cache evictions", queryFeatureCache.getEvictions());
+        statistics.add("Query feature cache expirations", queryFeatureCache.getExpirations());
+        statistics.add("Feature store segments", featureStore.size());
+        statistics.add("Feature store bytes", featureStore.getBytes());
+        long hits = resultCacheHits.get(), lookups = hits + resultCacheMisses.get();
+        statistics.add("Result cache hits", hits);
+        statistics.add("Result cache misses", lookups - hits);
+        statistics.add("Result cache hit ratio", lookups > 0 ? (double) hits / lookups : 0d);
+        // size and evictions are kept by the cache of the registered searcher, none is opened just for the statistics.
+        RefCounted<SolrIndexSearcher> searcher = core != null && !core.isClosed() ? core.getRegisteredSearcher() : null;
+        if (searcher != null) {
+            try {
+                SolrCache<?, ?> resultCache = searcher.get().getCache(resultCacheName);
+                if (resultCache != null) {
+                    NamedList<?> cacheStatistics = resultCache.getStatistics();
+                    statistics.add("Result cache size", resultCache.size());
+                    statistics.add("Result cache evictions", cacheStatistics.get("evictions"));
+                    statistics.add("Result cache cumulative evictions", cacheStatistics.get("cumulative_evictions"));
+                }
+            } finally {
+                searcher.decref();
+            }
+        }
+        for (Map.Entry<String, Long> loadTime : ReferenceData.getLoadTimes().entrySet()) {
+            statistics.add("Reference data load time " + loadTime.getKey() + " (ms)", TimeUnit.NANOSECONDS.toMillis(loadTime.getValue()));
+        }
+        searchMetrics.addStatistics(statistics);
         return statistics;
     }
 
     /**
-     * Makes a Boolean query out of a list of hashes by ordering them ascending using their docFreq and
-     * then only using the most distinctive ones, defined by size in [0.1, 1], size=1 takes all.
+     * Creates the query for retrieving the candidates for re-ranking, either based on MetricSpaces or BitSampling.
      *
-     * @param hashes
-     * @param paramField
-     * @param size       in [0.1, 1]
-     * @return
+     * @param searcher     used for the term statistics of BitSampling hashes
+     * @param plan         the parameters of the request
+     * @param queryFeature the feature of the query image
+     * @param hashes       the BitSampling hashes of the query feature, re-generated if null
+     * @return the query, a MatchAllDocsQuery if MetricSpaces is requested, but the feature is not supported.
+     * @throws IOException
      */
-    private BooleanQuery createQuery(int[] hashes, String paramField, double size) {
-        size = Math.max(0.1, Math.min(size, 1d)); // clamp size.
-        List<String> hList = orderHashes(hashes, paramField, true);
-        int numHashes = (int) Math.min(hList.size(), Math.floor(hashes.length * size));
-        // a minimum of 3 hashes ...
-        if (numHashes < 3) numHashes = 3;
-
-        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
-        for (int i = 0; i < numHashes; i++) {
-            // be aware that the hashFunctionsFileName of the field must match the one you put the hashes in before.
-            queryBuilder.add(new BooleanClause(new TermQuery(new Term(paramField, hList.get(i))), BooleanClause.Occur.SHOULD));
-        }
-        BooleanQuery query = queryBuilder.build();
-        // this query is just for boosting the results with more matching hashes. We'd need to match it to all docs.
-//        query.add(new BooleanClause(new MatchAllDocsQuery(), BooleanClause.Occur.SHOULD));
-        return query;
+    private Query createCandidateQuery(SolrIndexSearcher searcher, SearchPlan plan, GlobalFeature queryFeature, int[] hashes) throws IOException {
+        return HashQueryBuilder.createCandidateQuery(searcher, plan, queryFeature, hashes, plan.getAccuracy(), reRankExecutor);
     }
 
     /**
-     * Sorts the hashes to put those first, that do not show up in a large number of documents
-     * while deleting those that are not in the index at all. Meaning: terms sorted by docFreq ascending, removing
-     * those with docFreq == 0
+     * Creates the query for retrieving the candidates from the hashes given with the request or, if there are none,
+     * from the query feature, see {@link #createCandidateQuery(SolrIndexSearcher, SearchPlan, GlobalFeature, int[])}.
      *
-     * @param hashes     the int[] of hashes
-     * @param paramField the field in the index.
-     * @param removeZeroDocFreqTerms
-     * @return
+     * @param searcher     used for the term statistics of BitSampling hashes
+     * @param plan         the parameters of the request
+     * @param queryFeature the feature of the query image
+     * @param hashes       the BitSampling hashes of the query feature, re-generated if null
+     * @param queryHashes  the hashes given with the request, can be null
+     * @return the query
+     * @throws IOException
      */
-    private List<String> orderHashes(int[] hashes, String paramField, boolean removeZeroDocFreqTerms) {
-        List<String> hList = new ArrayList<>(hashes.length);
-        // creates a list of terms.
-        for (int i = 0; i < hashes.length; i++) {
-            hList.add(Integer.toHexString(hashes[i]));
+    private Query createCandidateQuery(SolrIndexSearcher searcher, SearchPlan plan, GlobalFeature queryFeature, int[] hashes, String queryHashes) throws IOException {
+        if (queryHashes == null) {
+            return createCandidateQuery(searcher, plan, queryFeature, hashes);
+        } else if (!plan.isUseMetricSpaces()) {
+            return HashQueryBuilder.createQuery(queryHashes, plan.getHashField(), IntHashField.isIntHashField(searcher.getSchema(), plan.getHashField()));
+        } else {
+            return HashQueryBuilder.createQuery(queryHashes, plan.getMetricSpacesField());
         }
-        // uses our predetermined hash term stats object to sort the list
-        Collections.sort(hList, (o1, o2) -> HashTermStatistics.docFreq(paramField, o1) - HashTermStatistics.docFreq(paramField, o2));
-        // removing those with zero entries but leaving at least three.
-        while (HashTermStatistics.docFreq(paramField, hList.get(0)) < 1 && hList.size() > 3) hList.remove(0);
-        return hList;
-    }
-
-    /**
-     * This is used to create a TermsFilter ... should be used to select in the index based on many terms.
-     * We just need to integrate a minimum query too, else we'd not get the appropriate results.
-     * TODO: This is wrong.
-     *
-     * @param hashes
-     * @param paramField
-     * @return
-     */
-    private List<Term> createTermFilter(int[] hashes, String paramField, double size) {
-        List<String> hList = new ArrayList<>(hashes.length);
-        // creates a list of terms.
-        for (int i = 0; i < hashes.length; i++) {
-            hList.add(Integer.toHexString(hashes[i]));
-        }
-        // uses our predetermined hash term stats object to sort the list
-        Collections.sort(hList, (o1, o2) -> HashTermStatistics.docFreq(paramField, o1) - HashTermStatistics.docFreq(paramField, o2));
-        // removing those with zero entries but leaving at least three.
-        while (HashTermStatistics.docFreq(paramField, hList.get(0)) < 1 && hList.size() > 3) hList.remove(0);
-        int numHashes = (int) Math.min(hList.size(), Math.floor(hashes.length * size));
-        // a minimum of 3 hashes ...
-        if (numHashes < 3) numHashes = 3;
-        LinkedList<Term> termFilter = new LinkedList<Term>();
-        for (int i = 0; i < numHashes; i++) {
-            // be aware that the hashFunctionsFileName of the field must match the one you put the hashes in before.
-            termFilter.add(new Term(paramField, Integer.toHexString(hashes[i])));
-        }
-        return termFilter;
     }
 }
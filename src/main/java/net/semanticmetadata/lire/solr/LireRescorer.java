@@ -0,0 +1,86 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Rescorer;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Re-scores the hits of the first pass, ie. the BitSampling or MetricSpaces query, by the distance of their features
+ * to the query feature. The new score is 1 / (1 + distance), so the nearest documents come first, scores of different
+ * shards can be compared and the distance is 1 / score - 1. Documents without a feature get a score of 0.
+ */
+public class LireRescorer extends Rescorer {
+    private final String featureField;
+    private final GlobalFeature queryFeature;
+
+    /**
+     * @param featureField the DocValues field holding the features, eg. cl_hi
+     * @param queryFeature the query, it must not be changed while the rescorer is in use.
+     */
+    public LireRescorer(String featureField, GlobalFeature queryFeature) {
+        this.featureField = featureField;
+        this.queryFeature = queryFeature;
+    }
+
+    @Override
+    public TopDocs rescore(IndexSearcher searcher, TopDocs firstPassTopDocs, int topN) throws IOException {
+        ScoreDoc[] hits = firstPassTopDocs.scoreDocs.clone();
+        // walking the segments in order.
+        Arrays.sort(hits, Comparator.comparingInt(hit -> hit.doc));
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = null;
+        BinaryDocValues binaryValues = null;
+        GlobalFeature tmpFeature = FeatureRegistry.acquireFeature(queryFeature.getClass());
+        try {
+            for (ScoreDoc hit : hits) {
+                if (leaf == null || hit.doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                    leaf = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+                    binaryValues = leaf.reader().getBinaryDocValues(featureField);
+                }
+                hit.score = toScore(getDistance(binaryValues, hit.doc - leaf.docBase, tmpFeature));
+            }
+        } finally {
+            FeatureRegistry.releaseFeature(tmpFeature);
+        }
+        Arrays.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        if (topN < hits.length) hits = Arrays.copyOf(hits, topN);
+        return new TopDocs(firstPassTopDocs.totalHits, hits, hits.length > 0 ? hits[0].score : Float.NaN);
+    }
+
+    @Override
+    public Explanation explain(IndexSearcher searcher, Explanation firstPassExplanation, int docID) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+        double distance = getDistance(leaf.reader().getBinaryDocValues(featureField), docID - leaf.docBase, FeatureRegistry.newFeature(queryFeature.getClass()));
+        return Explanation.match(toScore(distance), "1 / (1 + distance), computed from:",
+                Explanation.match((float) distance, queryFeature.getFeatureName() + " distance in " + featureField),
+                firstPassExplanation);
+    }
+
+    /**
+     * @return the distance of the document to the query or positive infinity if it has no feature.
+     */
+    private double getDistance(BinaryDocValues binaryValues, int doc, GlobalFeature tmpFeature) {
+        if (binaryValues == null) return Double.POSITIVE_INFINITY;
+        BytesRef bytesRef = binaryValues.get(doc);
+        if (bytesRef.length == 0) return Double.POSITIVE_INFINITY;
+        tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        return tmpFeature.getDistance(queryFeature);
+    }
+
+    static float toScore(double distance) {
+        return (float) (1d / (1d + distance));
+    }
+}
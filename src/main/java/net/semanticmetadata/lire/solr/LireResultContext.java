@@ -0,0 +1,68 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.BasicResultContext;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.util.Arrays;
+
+/**
+ * The results of a search of the {@link LireRequestHandler} for the response writers of Solr. The documents are
+ * written by the standard writers with the fields of the {@link LireReturnFields}, the scores are the distances,
+ * so the nearest document comes first. The exact distances are kept as double values for the field "d".
+ */
+public class LireResultContext extends BasicResultContext {
+    /**
+     * document numbers in ascending order for looking up the distances.
+     */
+    private final int[] sortedDocs;
+    private final double[] sortedDistances;
+
+    /**
+     * @param resultHeap   the results, sorted ascending by distance by this constructor.
+     * @param returnFields the fields of the results
+     * @param searcher     the searcher the documents are from
+     * @param query        the query the results are based on, can be null
+     * @param req          the request
+     */
+    public LireResultContext(BoundedResultHeap resultHeap, ReturnFields returnFields, SolrIndexSearcher searcher,
+                             Query query, SolrQueryRequest req) {
+        super(toDocSlice(resultHeap), returnFields, searcher, query, req);
+        long[] docsAndRanks = new long[resultHeap.size()];
+        for (int i = 0; i < docsAndRanks.length; i++) {
+            docsAndRanks[i] = ((long) resultHeap.getDoc(i) << 32) | i;
+        }
+        Arrays.sort(docsAndRanks);
+        sortedDocs = new int[docsAndRanks.length];
+        sortedDistances = new double[docsAndRanks.length];
+        for (int i = 0; i < docsAndRanks.length; i++) {
+            sortedDocs[i] = (int) (docsAndRanks[i] >>> 32);
+            sortedDistances[i] = resultHeap.getDistance((int) docsAndRanks[i]);
+        }
+    }
+
+    /**
+     * @param doc the document number
+     * @return the distance of the document or NaN if it is not in the results.
+     */
+    public double getDistance(int doc) {
+        int index = Arrays.binarySearch(sortedDocs, doc);
+        return index < 0 ? Double.NaN : sortedDistances[index];
+    }
+
+    private static DocSlice toDocSlice(BoundedResultHeap resultHeap) {
+        resultHeap.sort();
+        int[] docs = new int[resultHeap.size()];
+        float[] scores = new float[docs.length];
+        float maxScore = 0;
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = resultHeap.getDoc(i);
+            scores[i] = (float) resultHeap.getDistance(i);
+            maxScore = Math.max(maxScore, scores[i]);
+        }
+        return new DocSlice(0, docs.length, docs, scores, docs.length, maxScore);
+    }
+}
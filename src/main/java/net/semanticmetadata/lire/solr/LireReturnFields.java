@@ -0,0 +1,107 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.transform.DocTransformer;
+import org.apache.solr.response.transform.DocTransformers;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrReturnFields;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The fields of the results of the {@link LireRequestHandler}, parsed once per request from the fl parameter. Single
+ * valued fields with DocValues are taken from the DocValues of the segment instead of the stored fields, so the
+ * stored document is not loaded at all if all requested fields have DocValues. The distance to the query is added
+ * as field "d" to every result, see {@link LireResultContext}.
+ */
+public class LireReturnFields extends SolrReturnFields {
+    public static final String DISTANCE_FIELD = "d";
+    /**
+     * the fields returned if there is no fl parameter.
+     */
+    public static final String DEFAULT_FIELDS = "id,title";
+
+    private final Set<String> storedFields;
+    private final Set<String> docValuesFields;
+
+    /**
+     * @param req the request with the fl parameter.
+     */
+    public LireReturnFields(SolrQueryRequest req) {
+        super(req.getParams().get("fl", DEFAULT_FIELDS), req);
+        Set<String> fieldNames = super.getLuceneFieldNames();
+        if (fieldNames != null && !wantsAllFields() && !hasPatternMatching()) {
+            IndexSchema schema = req.getSchema();
+            storedFields = new HashSet<>(fieldNames.size());
+            docValuesFields = new HashSet<>(fieldNames.size());
+            for (String fieldName : fieldNames) {
+                SchemaField schemaField = schema.getFieldOrNull(fieldName);
+                if (schemaField != null && schemaField.hasDocValues() && !schemaField.multiValued())
+                    docValuesFields.add(fieldName);
+                else storedFields.add(fieldName);
+            }
+        } else {
+            storedFields = fieldNames;
+            docValuesFields = Collections.emptySet();
+        }
+        DocTransformer distance = new DistanceTransformer(docValuesFields);
+        if (transformer == null) {
+            transformer = distance;
+        } else if (transformer instanceof DocTransformers) {
+            ((DocTransformers) transformer).addTransformer(distance);
+        } else {
+            DocTransformers transformers = new DocTransformers();
+            transformers.addTransformer(transformer);
+            transformers.addTransformer(distance);
+            transformer = transformers;
+        }
+    }
+
+    /**
+     * @return the fields to be read from the stored document, null if there are none.
+     */
+    @Override
+    public Set<String> getLuceneFieldNames() {
+        return storedFields == null || storedFields.isEmpty() ? null : storedFields;
+    }
+
+    /**
+     * @return the single valued fields read from the DocValues.
+     */
+    public Set<String> getDocValuesFields() {
+        return docValuesFields;
+    }
+
+    /**
+     * Adds the distance and the fields read from the DocValues.
+     */
+    private static class DistanceTransformer extends DocTransformer {
+        private final Set<String> docValuesFields;
+
+        DistanceTransformer(Set<String> docValuesFields) {
+            this.docValuesFields = docValuesFields;
+        }
+
+        @Override
+        public String getName() {
+            return DISTANCE_FIELD;
+        }
+
+        @Override
+        public boolean needsSolrIndexSearcher() {
+            return !docValuesFields.isEmpty();
+        }
+
+        @Override
+        public void transform(SolrDocument doc, int docid, float score) throws IOException {
+            if (!docValuesFields.isEmpty()) context.getSearcher().decorateDocValueFields(doc, docid, docValuesFields);
+            if (context instanceof LireResultContext)
+                doc.setField(DISTANCE_FIELD, ((LireResultContext) context).getDistance(docid));
+        }
+    }
+}
@@ -45,6 +45,7 @@ import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
 import org.apache.lucene.index.*;
 import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.ValueSourceScorer;
 import org.apache.lucene.queries.function.docvalues.DocTermsIndexDocValues;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRefBuilder;
@@ -65,6 +66,7 @@ public class LireValueSource extends ValueSource {
     String field = "cl_hi";  // default field
     byte[] histogramData;
     GlobalFeature feature, tmpFeature;
+    ThresholdDistance distance;
     double maxDistance = Double.MAX_VALUE;
     String objectHashBase = null; // used to store the combination of parameters to create a way to counter caching of functions with different function values.
 
@@ -86,17 +88,11 @@ public class LireValueSource extends ValueSource {
             feature = new ColorLayout();
             tmpFeature = new ColorLayout();
         } else {
-            try {
-                if (FeatureRegistry.getClassForFeatureField(field) != null) {// check if feature is registered.
-                    feature = (GlobalFeature) FeatureRegistry.getClassForFeatureField(field).newInstance();
-                    tmpFeature = (GlobalFeature) FeatureRegistry.getClassForFeatureField(field).newInstance();
-                } else {
-                    System.err.println("Feature " + field + " is not registered.");
-                }
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
+            if (FeatureRegistry.getFactoryForFeatureField(field) != null) {// check if feature is registered.
+                feature = FeatureRegistry.getFactoryForFeatureField(field).get();
+                tmpFeature = FeatureRegistry.getFactoryForFeatureField(field).get();
+            } else {
+                System.err.println("Feature " + field + " is not registered.");
             }
         }
 
@@ -106,6 +102,7 @@ public class LireValueSource extends ValueSource {
         // adding all parameters to a string to create a hash.
         objectHashBase = field + Arrays.toString(hist) + maxDistance;
         feature.setByteArrayRepresentation(hist);
+        distance = ThresholdDistance.create(feature);
     }
 
     /*
@@ -210,6 +207,31 @@ public class LireValueSource extends ValueSource {
                     return (float) doubleVal(doc);
                 }
 
+                /**
+                 * Used for filtering by distance, eg. with frange. The upper bound is used as threshold, so
+                 * the distance computation is abandoned for documents that are too far away anyway.
+                 */
+                @Override
+                public ValueSourceScorer getRangeScorer(LeafReaderContext readerContext, String lowerVal, String upperVal,
+                                                        final boolean includeLower, final boolean includeUpper) {
+                    final float lower = lowerVal == null ? Float.NEGATIVE_INFINITY : Float.parseFloat(lowerVal);
+                    final float upper = upperVal == null ? Float.POSITIVE_INFINITY : Float.parseFloat(upperVal);
+                    // distances are compared as floats, so everything up to the next float may still match.
+                    final double threshold = upperVal == null ? Double.MAX_VALUE : Math.nextUp(upper);
+                    return new ValueSourceScorer(readerContext, this) {
+                        @Override
+                        public boolean matches(int doc) {
+                            float value;
+                            if (binaryValues.get(doc).length > 0) {
+                                tmpFeature.setByteArrayRepresentation(binaryValues.get(doc).bytes, binaryValues.get(doc).offset, binaryValues.get(doc).length);
+                                value = (float) distance.getDistance(tmpFeature, threshold);
+                            } else
+                                value = (float) maxDistance;
+                            return (includeLower ? value >= lower : value > lower) && (includeUpper ? value <= upper : value < upper);
+                        }
+                    };
+                }
+
                 public String strVal(int doc) {
                     final BytesRefBuilder bytes = new BytesRefBuilder();
                     return bytesVal(doc, bytes)
@@ -0,0 +1,265 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms a new searcher before it's used, so the first searches after startup or a commit don't pay for reading the
+ * hash term statistics, the first access to the features in the DocValues or the lazily initialized parts of the
+ * request handler. For each BitSampling field the {@link ReferenceData} of its feature is loaded, ie. the BitSampling
+ * hash functions and the MetricSpaces reference points, which are otherwise loaded by the first search needing them,
+ * the term statistics are built, the DocValues of the respective feature
+ * fields are read once, so they are in the page cache of the OS, or copied into the {@link FeatureStore} of the
+ * handler if it has one, and the configured warm-up queries are sent to the request handler. The queries are run
+ * locally with distrib=false, also in SolrCloud mode. Add it to the &lt;query&gt; section of the solrconfig.xml like this:
+ * <pre>
+ * &lt;listener event="newSearcher" class="net.semanticmetadata.lire.solr.LireWarmingListener"&gt;
+ *     &lt;str name="fields"&gt;cl_ha,ph_ha&lt;/str&gt;
+ *     &lt;bool name="docValues"&gt;true&lt;/bool&gt;
+ *     &lt;str name="handler"&gt;/lireq&lt;/str&gt;
+ *     &lt;arr name="queries"&gt;
+ *         &lt;lst&gt;&lt;str name="id"&gt;img123&lt;/str&gt;&lt;str name="field"&gt;cl_ha&lt;/str&gt;&lt;/lst&gt;
+ *     &lt;/arr&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ * Without fields all indexed fields ending with _ha are warmed. The same listener can be used for the event
+ * firstSearcher, a second listener needs another name given by &lt;str name="name"&gt;, which is the name its
+ * warm-up times are listed under in the statistics of the core.
+ */
+public class LireWarmingListener extends AbstractSolrEventListener implements SolrInfoMBean {
+    private static final Logger log = LoggerFactory.getLogger(LireWarmingListener.class);
+
+    private String name = "lireWarming";
+    private String[] fields = null;
+    private boolean docValues = true;
+    private String handler = "/lireq";
+    private List<NamedList<?>> queries = new ArrayList<>();
+
+    private final AtomicLong warmings = new AtomicLong(0), errors = new AtomicLong(0);
+    private final AtomicLong totalTime = new AtomicLong(0);
+    private volatile long lastTime = 0, lastReferenceDataTime = 0, lastStatisticsTime = 0, lastDocValuesTime = 0, lastQueriesTime = 0;
+    private volatile long lastDocValuesBytes = 0;
+
+    public LireWarmingListener(SolrCore core) {
+        super(core);
+    }
+
+    @Override
+    public void init(@SuppressWarnings("rawtypes") NamedList args) {
+        super.init(args);
+        SolrParams params = SolrParams.toSolrParams(args);
+        name = params.get("name", name);
+        if (params.get("fields") != null) fields = params.get("fields").trim().split("\\s*,\\s*");
+        docValues = params.getBool("docValues", docValues);
+        handler = params.get("handler", handler);
+        List<?> configuredQueries = (List<?>) args.get("queries");
+        if (configuredQueries != null) {
+            for (Object query : configuredQueries) queries.add((NamedList<?>) query);
+        }
+        getCore().getInfoRegistry().put(name, this);
+    }
+
+    @Override
+    public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+        long start = System.nanoTime();
+        IndexReader reader = newSearcher.getIndexReader();
+        String[] hashFields = fields != null ? fields : getHashFields(reader).toArray(new String[0]);
+
+        // (0) the reference data for hashing, loaded only once per JVM.
+        long time = System.nanoTime();
+        for (String field : hashFields) {
+            try {
+                Class<?> featureClass = FeatureRegistry.getClassForHashField(field);
+                if (featureClass != null && !ReferenceData.loadReferencePoints(featureClass)) errors.incrementAndGet();
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                log.error("Cannot load the reference data of " + field, e);
+            }
+        }
+        try {
+            if (hashFields.length > 0) ReferenceData.getHashFunctions();
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            log.error("Cannot load the BitSampling hash functions", e);
+        }
+        lastReferenceDataTime = System.nanoTime() - time;
+
+        // (1) term statistics of the hashes, built per segment, so only new segments are read.
+        time = System.nanoTime();
+        for (String field : hashFields) {
+            try {
+                HashTermStatistics.get(reader, field, IntHashField.isIntHashField(newSearcher.getSchema(), field), null);
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                log.error("Cannot build the hash term statistics of " + field, e);
+            }
+        }
+        lastStatisticsTime = System.nanoTime() - time;
+
+        // (2) the features used for re-ranking, from the feature store of the handler if it has one.
+        time = System.nanoTime();
+        long bytes = 0;
+        SolrRequestHandler requestHandler = getCore().getRequestHandler(handler);
+        FeatureStore featureStore = requestHandler instanceof LireRequestHandler ? ((LireRequestHandler) requestHandler).getFeatureStore() : null;
+        if (docValues) {
+            for (String field : hashFields) {
+                try {
+                    bytes += readDocValues(reader, FeatureRegistry.getFeatureFieldName(field), featureStore);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    log.error("Cannot read the features of " + field, e);
+                }
+            }
+        }
+        lastDocValuesBytes = bytes;
+        lastDocValuesTime = System.nanoTime() - time;
+
+        // (3) warm-up queries, run against the new searcher.
+        time = System.nanoTime();
+        for (NamedList<?> query : queries) {
+            if (requestHandler == null) {
+                errors.incrementAndGet();
+                log.error("Cannot run warm-up queries, there is no request handler " + handler);
+                continue;
+            }
+            // the queries warm this searcher, so they must not be sent to the shards.
+            ModifiableSolrParams params = new ModifiableSolrParams(SolrParams.toSolrParams(query));
+            params.set(CommonParams.DISTRIB, false);
+            params.set(ShardParams.IS_SHARD, true);
+            SolrQueryRequest req = new LocalSolrQueryRequest(getCore(), params) {
+                @Override
+                public SolrIndexSearcher getSearcher() {
+                    return newSearcher;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            try {
+                SolrQueryResponse rsp = new SolrQueryResponse();
+                getCore().execute(requestHandler, req, rsp);
+                if (rsp.getException() != null || rsp.getValues().get("Error") != null) {
+                    errors.incrementAndGet();
+                    log.error("Warm-up query " + params + " failed: " + (rsp.getException() != null ? rsp.getException() : rsp.getValues().get("Error")));
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                log.error("Warm-up query " + params + " failed", e);
+            } finally {
+                req.close();
+            }
+        }
+        lastQueriesTime = System.nanoTime() - time;
+
+        lastTime = System.nanoTime() - start;
+        totalTime.addAndGet(lastTime);
+        warmings.incrementAndGet();
+    }
+
+    /**
+     * @return the indexed fields of the reader ending with _ha.
+     */
+    static List<String> getHashFields(IndexReader reader) {
+        List<String> result = new ArrayList<>();
+        for (FieldInfo fieldInfo : MultiFields.getMergedFieldInfos(reader)) {
+            if (fieldInfo.name.endsWith(FeatureRegistry.hashFieldPostfix) && fieldInfo.getIndexOptions() != IndexOptions.NONE)
+                result.add(fieldInfo.name);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the values of all documents in all segments once.
+     *
+     * @param featureStore the store to read from, which copies segments not read before, or null for the DocValues.
+     * @return the number of bytes read.
+     */
+    static long readDocValues(IndexReader reader, String field, FeatureStore featureStore) throws IOException {
+        long bytes = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            if (leaf.reader().getBinaryDocValues(field) == null) continue;
+            BinaryDocValues values = featureStore != null ? featureStore.getBinaryValues(leaf.reader(), field) : leaf.reader().getBinaryDocValues(field);
+            for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                BytesRef value = values.get(doc);
+                bytes += value.length;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getVersion() {
+        return getClass().getPackage().getSpecificationVersion();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Warms the LIRE term statistics, features and caches of new searchers.";
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.OTHER;
+    }
+
+    @Override
+    public String getSource() {
+        return "http://lire-project.net";
+    }
+
+    @Override
+    public URL[] getDocs() {
+        return new URL[0];
+    }
+
+    @Override
+    public NamedList<Object> getStatistics() {
+        NamedList<Object> statistics = new NamedList<>();
+        statistics.add("Fields", fields == null ? "all" : Arrays.toString(fields));
+        statistics.add("Warm-up queries", queries.size());
+        statistics.add("Warmings", warmings.get());
+        statistics.add("Warm-up errors", errors.get());
+        statistics.add("Last warm-up time (ms)", TimeUnit.NANOSECONDS.toMillis(lastTime));
+        statistics.add("Last reference data time (ms)", TimeUnit.NANOSECONDS.toMillis(lastReferenceDataTime));
+        statistics.add("Last statistics time (ms)", TimeUnit.NANOSECONDS.toMillis(lastStatisticsTime));
+        statistics.add("Last docValues time (ms)", TimeUnit.NANOSECONDS.toMillis(lastDocValuesTime));
+        statistics.add("Last docValues bytes", lastDocValuesBytes);
+        statistics.add("Last queries time (ms)", TimeUnit.NANOSECONDS.toMillis(lastQueriesTime));
+        statistics.add("Total warm-up time (ms)", TimeUnit.NANOSECONDS.toMillis(totalTime.get()));
+        return statistics;
+    }
+}
@@ -0,0 +1,114 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Multi-probe LSH for the BitSampling hashes (Lv et al., Multi-Probe LSH: Efficient Indexing for High-Dimensional
+ * Similarity Search, VLDB 2007). Each BitSampling hash is made of the signs of the projections of the feature vector
+ * onto a bundle of random hyperplanes. Near neighbours most likely differ in the bits whose projections are close to
+ * zero, so besides the hash of the query, the hashes with these bits flipped are probed too. The perturbations of
+ * a bundle are generated in ascending order of their score, ie. the sum of the squared projections of the flipped
+ * bits, by the shift and expand operations on the bits sorted by their distance to the hyperplane.
+ * <p>
+ * The hash values are the same as the ones of {@link BitSampling#generateHashes(double[])}, the hyperplanes are the
+ * ones of {@link ReferenceData#getHashFunctions()}.
+ */
+public class MultiProbeBitSampling {
+    /**
+     * @param featureVector the feature vector of the query
+     * @return the projections of the feature vector per bundle and bit.
+     */
+    public static double[][] project(double[] featureVector) {
+        double[][][] functions = ReferenceData.getHashFunctions();
+        double[][] projections = new double[functions.length][];
+        for (int j = 0; j < functions.length; j++) {
+            projections[j] = new double[functions[j].length];
+            for (int k = 0; k < functions[j].length; k++) {
+                double[] plane = functions[j][k];
+                double p = 0;
+                for (int i = 0; i < featureVector.length; i++) p += plane[i] * featureVector[i];
+                projections[j][k] = p;
+            }
+        }
+        return projections;
+    }
+
+    /**
+     * @param featureVector the feature vector
+     * @return the BitSampling hashes, the same as the ones of {@link BitSampling#generateHashes(double[])}, but
+     * without the need to read the hash functions for LIRE first.
+     */
+    public static int[] generateHashes(double[] featureVector) {
+        double[][] projections = project(featureVector);
+        int[] hashes = new int[projections.length];
+        for (int j = 0; j < projections.length; j++) hashes[j] = hash(projections[j]);
+        return hashes;
+    }
+
+    /**
+     * @param projections the projections of one bundle
+     * @return the hash, bit k is set if the projection k is not negative.
+     */
+    public static int hash(double[] projections) {
+        int hash = 0;
+        for (int k = 0; k < projections.length; k++) {
+            if (projections[k] >= 0) hash |= 1 << k;
+        }
+        return hash;
+    }
+
+    /**
+     * @param projections the projections of one bundle
+     * @param probes      the number of perturbed hashes
+     * @return the perturbed hashes in ascending order of their score, at most 2^bits - 1.
+     */
+    public static int[] probe(double[] projections, int probes) {
+        int bits = projections.length;
+        int hash = hash(projections);
+        // bits ordered by their distance to the hyperplane.
+        Integer[] order = new Integer[bits];
+        for (int k = 0; k < bits; k++) order[k] = k;
+        Arrays.sort(order, Comparator.comparingDouble(k -> Math.abs(projections[k])));
+        double[] z = new double[bits];
+        for (int k = 0; k < bits; k++) z[k] = projections[order[k]] * projections[order[k]];
+
+        probes = (int) Math.min(probes, (1L << bits) - 1);
+        int[] result = new int[Math.max(0, probes)];
+        if (result.length == 0) return result;
+        // a perturbation set is a list of positions in the sorted order, its largest position is the last one.
+        PriorityQueue<Perturbation> heap = new PriorityQueue<>(Comparator.comparingDouble(p -> p.score));
+        heap.add(new Perturbation(new int[]{0}, z[0]));
+        for (int i = 0; i < result.length; i++) {
+            Perturbation perturbation = heap.poll();
+            int flipped = hash;
+            for (int position : perturbation.positions) flipped ^= 1 << order[position];
+            result[i] = flipped;
+            int last = perturbation.positions[perturbation.positions.length - 1];
+            if (last + 1 < bits) {
+                // shift: replace the largest position by the next one.
+                int[] shifted = perturbation.positions.clone();
+                shifted[shifted.length - 1] = last + 1;
+                heap.add(new Perturbation(shifted, perturbation.score - z[last] + z[last + 1]));
+                // expand: add the next position.
+                int[] expanded = Arrays.copyOf(perturbation.positions, perturbation.positions.length + 1);
+                expanded[expanded.length - 1] = last + 1;
+                heap.add(new Perturbation(expanded, perturbation.score + z[last + 1]));
+            }
+        }
+        return result;
+    }
+
+    private static class Perturbation {
+        final int[] positions;
+        final double score;
+
+        Perturbation(int[] positions, double score) {
+            this.positions = positions;
+            this.score = score;
+        }
+    }
+}
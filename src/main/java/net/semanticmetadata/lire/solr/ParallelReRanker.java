@@ -0,0 +1,232 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-ranks candidate results per index segment in parallel. Candidates are bucketed by the segment they belong to,
+ * each segment reads the features through its own leaf reader's BinaryDocValues, or the {@link FeatureStore}, instead
+ * of the MultiDocValues view over the whole index and computes its own top k. The per segment results are merged to the global top k in the end.
+ */
+public class ParallelReRanker {
+    /**
+     * number of documents scanned by a single task in exact search.
+     */
+    public static final int SCAN_CHUNK_SIZE = 1 << 14;
+
+    private final ExecutorService executor;
+    private final FeatureStore featureStore;
+
+    /**
+     * @param executor     the shared, bounded executor the segments are re-ranked on.
+     * @param featureStore the store the features are read from.
+     */
+    public ParallelReRanker(ExecutorService executor, FeatureStore featureStore) {
+        this.executor = executor;
+        this.featureStore = featureStore;
+    }
+
+    /**
+     * @param searcher         the searcher the candidates were retrieved from
+     * @param candidates       the global document numbers of the candidates, will be sorted in place.
+     * @param featureFieldName the name of the DocValues field holding the features
+     * @param queryFeature     the query
+     * @param maximumHits      the number of results
+     * @return the heap with the maximumHits nearest candidates, holding global document numbers.
+     * @throws IOException
+     */
+    public BoundedResultHeap reRank(SolrIndexSearcher searcher, int[] candidates, String featureFieldName,
+                                    GlobalFeature queryFeature, int maximumHits) throws IOException {
+        // sorting the candidates groups them by segment and makes DocValues access sequential.
+        Arrays.sort(candidates);
+        List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+        List<Future<BoundedResultHeap>> futures = new ArrayList<>(leaves.size());
+        byte[] queryData = queryFeature.getByteArrayRepresentation();
+        int start = 0;
+        for (LeafReaderContext leaf : leaves) {
+            int end = start;
+            int leafEnd = leaf.docBase + leaf.reader().maxDoc();
+            while (end < candidates.length && candidates[end] < leafEnd) end++;
+            if (end > start) {
+                futures.add(executor.submit(new SegmentReRank(featureStore, leaf, candidates, start, end, featureFieldName,
+                        queryFeature.getClass(), queryData, maximumHits)));
+            }
+            start = end;
+        }
+        return merge(futures, maximumHits);
+    }
+
+    /**
+     * Exact search by scanning the features of all live documents matching the filter. Segments are split into chunks
+     * of {@link #SCAN_CHUNK_SIZE} documents, which are scanned in parallel.
+     *
+     * @param searcher         the searcher to scan
+     * @param filter           the documents to scan, eg. from the filter queries, null for all live documents.
+     * @param featureFieldName the name of the DocValues field holding the features
+     * @param queryFeature     the query
+     * @param maximumHits      the number of results
+     * @param compared         counts the documents with a feature, ie. the ones compared to the query, can be null.
+     * @return the heap with the maximumHits nearest documents, holding global document numbers.
+     * @throws IOException
+     */
+    public BoundedResultHeap scan(SolrIndexSearcher searcher, DocSet filter, String featureFieldName,
+                                  GlobalFeature queryFeature, int maximumHits, AtomicLong compared) throws IOException {
+        List<Future<BoundedResultHeap>> futures = new ArrayList<>();
+        byte[] queryData = queryFeature.getByteArrayRepresentation();
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            int maxDoc = leaf.reader().maxDoc();
+            for (int start = 0; start < maxDoc; start += SCAN_CHUNK_SIZE) {
+                futures.add(executor.submit(new SegmentScan(featureStore, leaf, filter, start,
+                        Math.min(maxDoc, start + SCAN_CHUNK_SIZE), featureFieldName, queryFeature.getClass(),
+                        queryData, maximumHits, compared)));
+            }
+        }
+        return merge(futures, maximumHits);
+    }
+
+    /**
+     * Merges the results of the segments or chunks.
+     */
+    private static BoundedResultHeap merge(List<Future<BoundedResultHeap>> futures, int maximumHits) throws IOException {
+        BoundedResultHeap resultHeap = new BoundedResultHeap(maximumHits);
+        try {
+            for (Future<BoundedResultHeap> future : futures) {
+                BoundedResultHeap segmentHeap = future.get();
+                for (int i = 0; i < segmentHeap.size(); i++) {
+                    resultHeap.offer(segmentHeap.getDoc(i), segmentHeap.getDistance(i));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while re-ranking segments.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not re-rank segment: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            for (Future<BoundedResultHeap> future : futures) future.cancel(true);
+        }
+        return resultHeap;
+    }
+
+    /**
+     * Re-ranks the candidates of a single segment. Each task works on its own feature instances as the
+     * features are not thread safe.
+     */
+    private static class SegmentReRank implements Callable<BoundedResultHeap> {
+        private final FeatureStore featureStore;
+        private final LeafReaderContext leaf;
+        private final int[] candidates;
+        private final int start, end;
+        private final String featureFieldName;
+        private final Class<? extends GlobalFeature> featureClass;
+        private final byte[] queryData;
+        private final int maximumHits;
+
+        SegmentReRank(FeatureStore featureStore, LeafReaderContext leaf, int[] candidates, int start, int end, String featureFieldName,
+                      Class<? extends GlobalFeature> featureClass, byte[] queryData, int maximumHits) {
+            this.featureStore = featureStore;
+            this.leaf = leaf;
+            this.candidates = candidates;
+            this.start = start;
+            this.end = end;
+            this.featureFieldName = featureFieldName;
+            this.featureClass = featureClass;
+            this.queryData = queryData;
+            this.maximumHits = maximumHits;
+        }
+
+        @Override
+        public BoundedResultHeap call() throws Exception {
+            GlobalFeature queryFeature = FeatureRegistry.newFeature(featureClass);
+            queryFeature.setByteArrayRepresentation(queryData);
+            ThresholdDistance distance = ThresholdDistance.create(queryFeature);
+            BinaryDocValues binaryValues = featureStore.getBinaryValues(leaf.reader(), featureFieldName);
+            BoundedResultHeap resultHeap = new BoundedResultHeap(maximumHits);
+            GlobalFeature tmpFeature = FeatureRegistry.acquireFeature(featureClass);
+            try {
+                BytesRef bytesRef;
+                for (int i = start; i < end; i++) {
+                    bytesRef = binaryValues.get(candidates[i] - leaf.docBase);
+                    if (bytesRef.length == 0) continue; // no feature in this document.
+                    tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    resultHeap.offer(candidates[i], distance.getDistance(tmpFeature, resultHeap.getMaxDistance()));
+                }
+            } finally {
+                FeatureRegistry.releaseFeature(tmpFeature);
+            }
+            return resultHeap;
+        }
+    }
+
+    /**
+     * Scans a range of documents of a single segment, skipping deleted documents and those not in the filter.
+     */
+    private static class SegmentScan implements Callable<BoundedResultHeap> {
+        private final FeatureStore featureStore;
+        private final LeafReaderContext leaf;
+        private final DocSet filter;
+        private final int start, end;
+        private final String featureFieldName;
+        private final Class<? extends GlobalFeature> featureClass;
+        private final byte[] queryData;
+        private final int maximumHits;
+        private final AtomicLong compared;
+
+        SegmentScan(FeatureStore featureStore, LeafReaderContext leaf, DocSet filter, int start, int end,
+                    String featureFieldName, Class<? extends GlobalFeature> featureClass, byte[] queryData, int maximumHits,
+                    AtomicLong compared) {
+            this.featureStore = featureStore;
+            this.leaf = leaf;
+            this.filter = filter;
+            this.start = start;
+            this.end = end;
+            this.featureFieldName = featureFieldName;
+            this.featureClass = featureClass;
+            this.queryData = queryData;
+            this.maximumHits = maximumHits;
+            this.compared = compared;
+        }
+
+        @Override
+        public BoundedResultHeap call() throws Exception {
+            GlobalFeature queryFeature = FeatureRegistry.newFeature(featureClass);
+            queryFeature.setByteArrayRepresentation(queryData);
+            ThresholdDistance distance = ThresholdDistance.create(queryFeature);
+            BinaryDocValues binaryValues = featureStore.getBinaryValues(leaf.reader(), featureFieldName);
+            int count = 0;
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            BoundedResultHeap resultHeap = new BoundedResultHeap(maximumHits);
+            GlobalFeature tmpFeature = FeatureRegistry.acquireFeature(featureClass);
+            try {
+                BytesRef bytesRef;
+                for (int doc = start; doc < end; doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc)) continue;
+                    if (filter != null && !filter.exists(leaf.docBase + doc)) continue;
+                    bytesRef = binaryValues.get(doc);
+                    if (bytesRef.length == 0) continue; // no feature in this document.
+                    tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    resultHeap.offer(leaf.docBase + doc, distance.getDistance(tmpFeature, resultHeap.getMaxDistance()));
+                    count++;
+                }
+            } finally {
+                FeatureRegistry.releaseFeature(tmpFeature);
+            }
+            if (compared != null) compared.addAndGet(count);
+            return resultHeap;
+        }
+    }
+}
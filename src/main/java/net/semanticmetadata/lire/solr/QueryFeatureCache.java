@@ -0,0 +1,154 @@
+package net.semanticmetadata.lire.solr;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache for features extracted from query images given by URL. Entries are keyed by URL and hash field, they hold
+ * the byte[] representation of the {@link net.semanticmetadata.lire.imageanalysis.features.GlobalFeature} and the
+ * BitSampling hashes, so a repeated query neither needs to download the image nor to extract the feature again.
+ * The cache is bounded by the number of entries as well as by the bytes held and entries expire after a time to live.
+ */
+public class QueryFeatureCache {
+    /**
+     * rough estimate of the memory used by an entry apart from the data, ie. the objects and the key.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long timeToLive;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0, misses = 0, evictions = 0, expirations = 0;
+
+    /**
+     * @param maxEntries the maximum number of entries, 0 disables the cache.
+     * @param maxBytes   the maximum number of bytes held by the entries.
+     * @param timeToLive time in milliseconds after which an entry is removed, values &lt;= 0 mean no expiration.
+     */
+    public QueryFeatureCache(int maxEntries, long maxBytes, long timeToLive) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param url       the URL of the query image
+     * @param hashField the field the feature was extracted for, eg. cl_ha
+     * @return the cached entry or null if there is none or it has expired.
+     */
+    public synchronized Entry get(String url, String hashField) {
+        String key = toKey(url, hashField);
+        Entry entry = entries.get(key);
+        if (entry != null && isExpired(entry)) {
+            remove(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) misses++;
+        else hits++;
+        return entry;
+    }
+
+    /**
+     * Adds an entry and evicts the least recently used ones until the cache is within its bounds again.
+     *
+     * @param url       the URL of the query image
+     * @param hashField the field the feature was extracted for, eg. cl_ha
+     * @param feature   the byte[] representation of the feature
+     * @param hashes    the BitSampling hashes of the feature
+     * @return the new entry, which is returned even if it was not cached.
+     */
+    public synchronized Entry put(String url, String hashField, byte[] feature, int[] hashes) {
+        String key = toKey(url, hashField);
+        Entry entry = new Entry(feature, hashes, sizeOf(key, feature, hashes));
+        if (!isEnabled() || entry.size > maxBytes) return entry; // would not fit anyway.
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.size;
+        for (Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+             iterator.hasNext() && (entries.size() > maxEntries || bytes > maxBytes); ) {
+            bytes -= iterator.next().getValue().size;
+            iterator.remove();
+            evictions++;
+        }
+        return entry;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && maxBytes > 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) bytes -= old.size;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return timeToLive > 0 && System.currentTimeMillis() - entry.created > timeToLive;
+    }
+
+    private static String toKey(String url, String hashField) {
+        return hashField + ' ' + url;
+    }
+
+    private static long sizeOf(String key, byte[] feature, int[] hashes) {
+        return ENTRY_OVERHEAD + 2L * key.length() + feature.length + (hashes == null ? 0 : 4L * hashes.length);
+    }
+
+    /**
+     * A cached feature. Entries are shared between requests, so they must not be changed.
+     */
+    public static class Entry {
+        private final byte[] feature;
+        private final int[] hashes;
+        private final long size;
+        private final long created = System.currentTimeMillis();
+
+        Entry(byte[] feature, int[] hashes, long size) {
+            this.feature = feature;
+            this.hashes = hashes;
+            this.size = size;
+        }
+
+        /**
+         * @return the byte[] representation of the feature.
+         */
+        public byte[] getFeature() {
+            return feature;
+        }
+
+        /**
+         * @return the BitSampling hashes of the feature.
+         */
+        public int[] getHashes() {
+            return hashes;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Draws distinct documents uniformly at random from a {@link DocSet}, eg. all live documents or the ones matching
+ * the filter queries. The positions within the set are drawn with Robert Floyd's algorithm, which needs exactly k
+ * random numbers and no retries for k positions, then the set is walked once in index order to get the document
+ * numbers. The result is shuffled, so the order is random as well.
+ */
+public class RandomDocumentSampler {
+    /**
+     * @param docs   the documents to choose from
+     * @param k      the number of documents
+     * @param random the source of randomness, with a fixed seed the sample is reproducible for the same index.
+     * @return min(k, docs.size()) distinct document numbers in random order.
+     */
+    public static int[] sample(DocSet docs, int k, Random random) {
+        int n = docs.size();
+        int[] positions = samplePositions(n, Math.max(0, Math.min(k, n)), random);
+        Arrays.sort(positions);
+        int[] result = new int[positions.length];
+        DocIterator iterator = docs.iterator();
+        for (int i = 0, position = 0; i < positions.length; position++) {
+            int doc = iterator.nextDoc();
+            if (position == positions[i]) result[i++] = doc;
+        }
+        // the walk gives the documents in index order.
+        for (int i = result.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return result;
+    }
+
+    /**
+     * Floyd's algorithm for k distinct numbers out of [0, n).
+     */
+    static int[] samplePositions(int n, int k, Random random) {
+        Set<Integer> selected = new HashSet<>(k * 2);
+        int[] positions = new int[k];
+        int size = 0;
+        for (int j = n - k; j < n; j++) {
+            int t = random.nextInt(j + 1);
+            int position = selected.add(t) ? t : j;
+            if (position == j) selected.add(j);
+            positions[size++] = position;
+        }
+        return positions;
+    }
+}
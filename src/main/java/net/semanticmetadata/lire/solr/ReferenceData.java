@@ -0,0 +1,379 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Registry of the reference data needed for hashing, ie. the reference points of MetricSpaces per feature and the
+ * hyperplanes of BitSampling. Everything is loaded on first use, so a core or an indexing tool only pays for the
+ * features it actually uses, and kept for the JVM, so all cores sharing the LIRE Solr classes share the data.
+ * <p>
+ * If the system property lire.referenceData.dir is set, the data is precompiled on first use into this directory
+ * and memory mapped from there afterwards: the BitSampling hyperplanes as raw floats, which are copied into the
+ * arrays in bulk instead of being deserialized one by one, and the reference points uncompressed. Otherwise they are
+ * read from the compressed resources in the jar.
+ * <p>
+ * MetricSpaces keeps its reference points in static maps that are not thread safe, so all calls to MetricSpaces go
+ * through this class, which adds the reference points of further features while no hashes are generated.
+ */
+public final class ReferenceData {
+    private static final Logger log = LoggerFactory.getLogger(ReferenceData.class);
+
+    /**
+     * System property with the directory for the precompiled reference data.
+     */
+    public static final String DIRECTORY_PROPERTY = "lire.referenceData.dir";
+    static final String HASH_FUNCTIONS = "BitSampling";
+    private static final int MAGIC = 0x4c495245; // "LIRE"
+
+    /**
+     * Resources of the reference points per feature class.
+     */
+    private static final Map<String, String> referencePoints = new HashMap<>();
+
+    static {
+        String global = "net.semanticmetadata.lire.imageanalysis.features.global.";
+        referencePoints.put(global + "CEDD", "logos-ca-ee_CEDD");
+        referencePoints.put(global + "ColorLayout", "logos-ca-ee_ColorLayout");
+        referencePoints.put(global + "EdgeHistogram", "logos-ca-ee_EdgeHistogram");
+        referencePoints.put(global + "FCTH", "logos-ca-ee_FCTH");
+        referencePoints.put(global + "OpponentHistogram", "logos-ca-ee_OpponentHistogram");
+        referencePoints.put(global + "PHOG", "logos-ca-ee_PHOG");
+        referencePoints.put(global + "JCD", "jpg_us_filter_JCD");
+    }
+
+    private static final ReadWriteLock metricSpacesLock = new ReentrantReadWriteLock();
+    private static final Set<String> loadedFeatures = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentHashMap<String, Long> loadTimes = new ConcurrentHashMap<>();
+    private static volatile double[][][] hashFunctions = null;
+
+    private ReferenceData() {
+    }
+
+    /**
+     * @return true if MetricSpaces has reference points for the class of the feature, which are loaded if needed.
+     */
+    public static boolean supportsMetricSpaces(GlobalFeature feature) {
+        loadReferencePoints(feature.getClass());
+        metricSpacesLock.readLock().lock();
+        try {
+            return MetricSpaces.supportsFeature(feature);
+        } finally {
+            metricSpacesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see MetricSpaces#getPostingListLength(GlobalFeature)
+     */
+    public static int getPostingListLength(GlobalFeature feature) {
+        loadReferencePoints(feature.getClass());
+        metricSpacesLock.readLock().lock();
+        try {
+            return MetricSpaces.getPostingListLength(feature);
+        } finally {
+            metricSpacesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see MetricSpaces#generateHashList(GlobalFeature, int)
+     */
+    public static List<String> generateHashList(GlobalFeature feature, int queryLength) {
+        loadReferencePoints(feature.getClass());
+        metricSpacesLock.readLock().lock();
+        try {
+            return MetricSpaces.generateHashList(feature, queryLength);
+        } finally {
+            metricSpacesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see MetricSpaces#generateHashList(GlobalFeature)
+     */
+    public static List<String> generateHashList(GlobalFeature feature) {
+        loadReferencePoints(feature.getClass());
+        metricSpacesLock.readLock().lock();
+        try {
+            return MetricSpaces.generateHashList(feature);
+        } finally {
+            metricSpacesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see MetricSpaces#generateHashString(GlobalFeature)
+     */
+    public static String generateHashString(GlobalFeature feature) {
+        loadReferencePoints(feature.getClass());
+        metricSpacesLock.readLock().lock();
+        try {
+            return MetricSpaces.generateHashString(feature);
+        } finally {
+            metricSpacesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see MetricSpaces#generateBoostedQuery(GlobalFeature, int)
+     */
+    public static String generateBoostedQuery(GlobalFeature feature, int queryLength) {
+        loadReferencePoints(feature.getClass());
+        metricSpacesLock.readLock().lock();
+        try {
+            return MetricSpaces.generateBoostedQuery(feature, queryLength);
+        } finally {
+            metricSpacesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the hyperplanes of BitSampling like {@link BitSampling#readHashFunctions()}, ie.
+     * functions[bundle][bit][dimension].
+     */
+    public static double[][][] getHashFunctions() {
+        double[][][] functions = hashFunctions;
+        if (functions == null) {
+            synchronized (ReferenceData.class) {
+                if (hashFunctions == null) {
+                    long start = System.nanoTime();
+                    try {
+                        hashFunctions = readHashFunctions(getDirectory());
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Cannot read the BitSampling hash functions.", e);
+                    }
+                    loadTimes.put(HASH_FUNCTIONS, System.nanoTime() - start);
+                }
+                functions = hashFunctions;
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * Loads all reference data at once, eg. for indexing with all features.
+     */
+    public static void loadAll() {
+        for (String className : referencePoints.keySet()) {
+            try {
+                loadReferencePoints(Class.forName(className));
+            } catch (ClassNotFoundException e) {
+                log.error("Cannot find the feature class " + className, e);
+            }
+        }
+        getHashFunctions();
+    }
+
+    /**
+     * @return the time taken for loading in nanoseconds by the simple name of the feature class, or BitSampling for
+     * the hash functions.
+     */
+    public static Map<String, Long> getLoadTimes() {
+        return Collections.unmodifiableMap(new TreeMap<>(loadTimes));
+    }
+
+    /**
+     * Loads the reference points of MetricSpaces for a feature class if they are not loaded yet, eg. for warming.
+     *
+     * @return false if the reference points could not be read. Loading is tried again on the next use then.
+     */
+    public static boolean loadReferencePoints(Class<?> featureClass) {
+        String className = featureClass.getName();
+        return loadedFeatures.contains(className) || loadReferencePoints(className, referencePoints.get(className));
+    }
+
+    /**
+     * @param resource the name of the reference points or null if the feature is not supported by MetricSpaces.
+     */
+    static boolean loadReferencePoints(String className, String resource) {
+        metricSpacesLock.writeLock().lock();
+        try {
+            if (loadedFeatures.contains(className)) return true;
+            if (resource != null) {
+                long start = System.nanoTime();
+                try (InputStream in = openReferencePoints(resource, getDirectory())) {
+                    MetricSpaces.loadReferencePoints(in);
+                } catch (Exception e) {
+                    log.error("Cannot load the MetricSpaces reference points " + resource + " of " + className, e);
+                    return false;
+                }
+                loadTimes.put(className.substring(className.lastIndexOf('.') + 1), System.nanoTime() - start);
+            }
+            // marked only after loading succeeded, so a failed one is tried again.
+            loadedFeatures.add(className);
+            return true;
+        } finally {
+            metricSpacesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the reference points of the feature class are loaded or it is not supported by MetricSpaces.
+     */
+    static boolean isLoaded(Class<?> featureClass) {
+        return loadedFeatures.contains(featureClass.getName());
+    }
+
+    private static Path getDirectory() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        return directory == null || directory.isEmpty() ? null : Paths.get(directory);
+    }
+
+    private static InputStream openResource(String name) throws IOException {
+        InputStream in = ReferenceData.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) throw new IOException("Cannot find the resource " + name);
+        return in;
+    }
+
+    /**
+     * @param directory the directory of the precompiled data or null to read the resource.
+     * @return the uncompressed reference points.
+     */
+    static InputStream openReferencePoints(String resource, Path directory) throws IOException {
+        if (directory == null) return new GZIPInputStream(openResource("metricspaces/" + resource + ".msd.gz"));
+        Path file = directory.resolve(resource + ".msd");
+        if (!Files.exists(file)) {
+            try (InputStream in = new GZIPInputStream(openResource("metricspaces/" + resource + ".msd.gz"))) {
+                write(file, out -> copy(in, out));
+            }
+        }
+        return new ByteBufferInputStream(map(file));
+    }
+
+    /**
+     * @param directory the directory of the precompiled data or null to read the resource.
+     * @return the hash functions, read from the precompiled file, which is created if needed.
+     */
+    static double[][][] readHashFunctions(Path directory) throws IOException {
+        if (directory == null) return BitSampling.readHashFunctions();
+        Path file = directory.resolve(HASH_FUNCTIONS + ".bin");
+        if (!Files.exists(file)) {
+            double[][][] functions = BitSampling.readHashFunctions();
+            write(file, out -> writeHashFunctions(functions, out));
+            return functions;
+        }
+        ByteBuffer buffer = map(file);
+        if (buffer.remaining() < 16 || buffer.getInt() != MAGIC)
+            throw new IOException("Not a file of precompiled hash functions: " + file);
+        int bundles = buffer.getInt(), bits = buffer.getInt(), dimensions = buffer.getInt();
+        FloatBuffer values = buffer.asFloatBuffer();
+        if (values.remaining() != (long) bundles * bits * dimensions)
+            throw new IOException("Truncated file of precompiled hash functions: " + file);
+        double[][][] functions = new double[bundles][bits][dimensions];
+        float[] row = new float[dimensions];
+        for (double[][] bundle : functions) {
+            for (double[] plane : bundle) {
+                values.get(row);
+                for (int i = 0; i < dimensions; i++) plane[i] = row[i];
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * Writes the hash functions as header (magic, bundles, bits, dimensions) followed by the values as floats, which
+     * is the precision of the serialized functions of BitSampling.
+     */
+    static void writeHashFunctions(double[][][] functions, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        int bits = functions[0].length, dimensions = functions[0][0].length;
+        data.writeInt(MAGIC);
+        data.writeInt(functions.length);
+        data.writeInt(bits);
+        data.writeInt(dimensions);
+        for (double[][] bundle : functions) {
+            for (double[] plane : bundle) {
+                for (double value : plane) data.writeFloat((float) value);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Writes to a temporary file, which is moved to the file afterwards, so other processes never see a partial file.
+     */
+    private static void write(Path file, Writer writer) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                writer.write(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
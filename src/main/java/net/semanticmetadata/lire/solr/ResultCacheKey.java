@@ -0,0 +1,86 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.search.Query;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Key for the result cache of the {@link LireRequestHandler}. It's made of the query feature and all parameters that
+ * change the results, ie. field, accuracy, number of candidates and results, MetricSpaces vs. BitSampling, probes,
+ * exact or adaptive search, the filter queries and the hashes given with the request. The candidate query is not part
+ * of the key, it follows from these, so it's only built if the results are not cached. The hash code is computed once, so lookups in the cache are cheap. The
+ * results themselves hold internal document numbers, so the cache has to be a per searcher cache like the user caches
+ * of solrconfig.xml.
+ */
+public final class ResultCacheKey {
+    private final String hashField;
+    private final byte[] feature;
+    private final String hashes;
+    private final double accuracy;
+    private final int candidates;
+    private final int rows;
+    private final boolean useMetricSpaces;
+    private final int probes;
+    private final boolean exact;
+    private final boolean adaptive;
+    private final List<Query> filterQueries;
+    private final int hashCode;
+
+    /**
+     * @param plan    the parameters of the search
+     * @param hashes  the hashes given with the request for the candidate query, null if they are generated from the
+     *                feature.
+     * @param feature the byte[] representation of the query feature.
+     */
+    public ResultCacheKey(SearchPlan plan, String hashes, byte[] feature) {
+        this.hashField = plan.getHashField();
+        this.feature = feature;
+        this.hashes = hashes;
+        this.accuracy = plan.getAccuracy();
+        this.candidates = plan.getCandidates();
+        this.rows = plan.getRows();
+        this.useMetricSpaces = plan.isUseMetricSpaces();
+        this.probes = plan.getProbes();
+        this.exact = plan.isExact();
+        this.adaptive = plan.isAdaptive();
+        this.filterQueries = plan.getFilterQueries();
+        int h = hashField.hashCode();
+        h = 31 * h + Arrays.hashCode(feature);
+        h = 31 * h + (exact ? 0 : Objects.hashCode(hashes)); // there is no candidate query in exact search.
+        h = 31 * h + Double.hashCode(accuracy);
+        h = 31 * h + candidates;
+        h = 31 * h + rows;
+        h = 31 * h + (useMetricSpaces ? 1 : 0);
+        h = 31 * h + probes;
+        h = 31 * h + (exact ? 1 : 0);
+        h = 31 * h + (adaptive ? 1 : 0);
+        h = 31 * h + Objects.hashCode(filterQueries);
+        this.hashCode = h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ResultCacheKey)) return false;
+        ResultCacheKey other = (ResultCacheKey) o;
+        return hashCode == other.hashCode
+                && candidates == other.candidates
+                && rows == other.rows
+                && useMetricSpaces == other.useMetricSpaces
+                && probes == other.probes
+                && exact == other.exact
+                && adaptive == other.adaptive
+                && Double.compare(accuracy, other.accuracy) == 0
+                && hashField.equals(other.hashField)
+                && Arrays.equals(feature, other.feature)
+                && (exact || Objects.equals(hashes, other.hashes))
+                && Objects.equals(filterQueries, other.filterQueries);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
@@ -0,0 +1,139 @@
+package net.semanticmetadata.lire.solr;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Snapshot;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.metrics.SolrMetricManager;
+
+import java.util.Map;
+
+/**
+ * Latency histograms and throughput meters of the {@link LireRequestHandler}. The time of each phase of a request,
+ * eg. fetching the image, retrieving the candidates or re-ranking, is recorded in nanoseconds into a histogram per
+ * endpoint (id, url, batch, ...), feature field and phase, named like url.cl_ha.fetch. The meters count the requests
+ * per endpoint, the candidates scanned and the distances computed. The field comes from the request, so only fields
+ * registered in the {@link FeatureRegistry} get histograms of their own, all others share the ones of
+ * {@link #UNKNOWN_FIELD}, which keeps the number of metrics bounded.
+ * <p>
+ * The metrics are kept in a registry of their own, which is forwarded to the registry of the Solr core by
+ * {@link #register(SolrMetricManager, String, String...)}, metrics created later on included.
+ */
+public class SearchMetrics {
+    public static final String FETCH = "fetch";
+    public static final String EXTRACT = "extract";
+    public static final String QUERY = "query";
+    public static final String CANDIDATES = "candidates";
+    public static final String DOC_VALUES = "docValues";
+    public static final String RE_RANK = "reRank";
+    public static final String RESPONSE = "response";
+    /**
+     * Field name of the histograms of all fields not registered in the {@link FeatureRegistry}.
+     */
+    public static final String UNKNOWN_FIELD = "unknown";
+    /**
+     * Field name of the histograms of searches with several fields at once.
+     */
+    public static final String FUSED_FIELDS = "fused";
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Meter candidates = registry.meter("candidates");
+    private final Meter distances = registry.meter("distances");
+
+    /**
+     * @param endpoint the type of request, eg. url
+     * @param field    the hash field, eg. cl_ha, or {@link #FUSED_FIELDS}
+     * @param phase    the phase of the request, eg. {@link #FETCH}
+     * @return the histogram of the times in nanoseconds, the one of {@link #UNKNOWN_FIELD} for fields not registered.
+     */
+    public Histogram getHistogram(String endpoint, String field, String phase) {
+        return registry.histogram(MetricRegistry.name(endpoint, toMetricField(field), phase));
+    }
+
+    /**
+     * @return the field itself if it's a registered hash field or {@link #FUSED_FIELDS}, {@link #UNKNOWN_FIELD} else.
+     */
+    static String toMetricField(String field) {
+        if (FUSED_FIELDS.equals(field) || (field != null && FeatureRegistry.getClassForHashField(field) != null))
+            return field;
+        return UNKNOWN_FIELD;
+    }
+
+    /**
+     * @param endpoint the type of request, eg. url
+     */
+    public void markRequest(String endpoint) {
+        registry.meter(MetricRegistry.name(endpoint, "requests")).mark();
+    }
+
+    /**
+     * @param candidates the number of documents whose features were read.
+     * @param distances  the number of distances computed, abandoned ones included.
+     */
+    public void markCandidates(long candidates, long distances) {
+        this.candidates.mark(candidates);
+        this.distances.mark(distances);
+    }
+
+    /**
+     * @return the number of histograms.
+     */
+    int getHistogramCount() {
+        return registry.getHistograms().size();
+    }
+
+    public Meter getCandidates() {
+        return candidates;
+    }
+
+    public Meter getDistances() {
+        return distances;
+    }
+
+    /**
+     * Adds all metrics, existing and future ones, to a registry of Solr.
+     *
+     * @param manager      the metric manager of Solr
+     * @param registryName the name of the registry, eg. the one of the core
+     * @param path         the prefix of the names, eg. the category and scope of the handler.
+     */
+    public void register(SolrMetricManager manager, String registryName, String... path) {
+        registry.addListener(new MetricRegistryListener.Base() {
+            @Override
+            public void onHistogramAdded(String name, Histogram histogram) {
+                add(name, histogram);
+            }
+
+            @Override
+            public void onMeterAdded(String name, Meter meter) {
+                add(name, meter);
+            }
+
+            private void add(String name, Metric metric) {
+                manager.register(registryName, metric, true, name, path);
+            }
+        });
+    }
+
+    /**
+     * Adds the meters and the median, 95th and 99th percentile of each histogram in nanoseconds.
+     *
+     * @param statistics the statistics of the handler
+     */
+    public void addStatistics(NamedList<Object> statistics) {
+        for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+            statistics.add("Count " + entry.getKey(), entry.getValue().getCount());
+            statistics.add("Rate " + entry.getKey() + " (1/s, 5 min)", entry.getValue().getFiveMinuteRate());
+        }
+        for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+            Snapshot snapshot = entry.getValue().getSnapshot();
+            statistics.add("Time " + entry.getKey() + " count", entry.getValue().getCount());
+            statistics.add("Time " + entry.getKey() + " p50 (ns)", (long) snapshot.getMedian());
+            statistics.add("Time " + entry.getKey() + " p95 (ns)", (long) snapshot.get95thPercentile());
+            statistics.add("Time " + entry.getKey() + " p99 (ns)", (long) snapshot.get99thPercentile());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Holds the parameters of a single search request to the {@link LireRequestHandler}. It's created once per request
+ * from the request parameters and handed through the search methods, so concurrent requests don't share any state.
+ * The parameters are final, the {@link SearchTimings} are filled while the request is processed. The field may be
+ * one that's not registered in the {@link FeatureRegistry}, callers check {@link #getFeatureClass()} for null
+ * before creating features.
+ */
+public final class SearchPlan {
+    public static final String DEFAULT_FIELD = "cl_ha";
+    public static final int DEFAULT_NUMBER_OF_RESULTS = 60;
+    /**
+     * number of candidate results retrieved from the index. The higher this number, the slower,
+     * the but more accurate the retrieval will be. 10k is a good value for starters.
+     */
+    public static final int DEFAULT_NUMBER_OF_CANDIDATES = 10000;
+    /**
+     * The number of query terms that go along with the TermsFilter search. We need some to get a
+     * score, the less the faster. I put down a minimum of three in the method, this value gives
+     * the percentage of the overall number used (selected randomly).
+     */
+    public static final double DEFAULT_NUMBER_OF_QUERY_TERMS = 0.33;
+    /**
+     * If metric spaces should be used instead of BitSampling.
+     */
+    public static final boolean DEFAULT_USE_METRIC_SPACES = true;
+    /**
+     * If the candidates should be re-ranked per index segment in parallel. This pays off for large numbers of
+     * candidates and indexes with multiple segments.
+     */
+    public static final boolean DEFAULT_PARALLEL_RE_RANKING = false;
+    /**
+     * If all documents should be scanned instead of re-ranking the candidates from the hash based query. This gives
+     * the exact results and is feasible for small indexes.
+     */
+    public static final boolean DEFAULT_EXACT = false;
+    /**
+     * number of perturbed BitSampling hashes probed per query hash, 0 turns multi-probe off.
+     */
+    public static final int DEFAULT_PROBES = 0;
+    /**
+     * number of candidates and share of query terms adaptive search starts with.
+     */
+    public static final int ADAPTIVE_INITIAL_CANDIDATES = 500;
+    public static final double ADAPTIVE_INITIAL_ACCURACY = 0.1;
+
+    private final String hashField;
+    private final String featureField;
+    private final String metricSpacesField;
+    private final Class<? extends GlobalFeature> featureClass;
+    private final Supplier<GlobalFeature> featureFactory;
+    private final double accuracy;
+    private final int candidates;
+    private final int rows;
+    private final boolean useMetricSpaces;
+    private final int probes;
+    private final boolean parallel;
+    private final boolean exact;
+    private final boolean useCache;
+    private final boolean adaptive;
+    private final long timeAllowed;
+    private final List<Query> filterQueries;
+    private final SearchTimings timings;
+
+    /**
+     * @param params        the parameters of the request
+     * @param filterQueries the parsed filter queries, can be null
+     */
+    public SearchPlan(SolrParams params, List<Query> filterQueries) {
+        this(params, filterQueries, null, null);
+    }
+
+    /**
+     * @param params        the parameters of the request
+     * @param filterQueries the parsed filter queries, can be null
+     * @param metrics       where the timings of the request are recorded, can be null
+     * @param endpoint      the type of request for the metrics, eg. url
+     */
+    @SuppressWarnings("unchecked")
+    public SearchPlan(SolrParams params, List<Query> filterQueries, SearchMetrics metrics, String endpoint) {
+        String field = params.get("field", DEFAULT_FIELD);
+        if (!field.endsWith(FeatureRegistry.hashFieldPostfix)) field += FeatureRegistry.hashFieldPostfix;
+        this.hashField = field;
+        this.featureField = FeatureRegistry.getFeatureFieldName(hashField);
+        this.metricSpacesField = FeatureRegistry.getMetricSpacesFieldName(hashField);
+        this.featureClass = FeatureRegistry.getClassForHashField(hashField);
+        this.featureFactory = FeatureRegistry.getFactoryForHashField(hashField);
+        this.accuracy = params.getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        this.candidates = params.getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
+        this.rows = params.getInt("rows", DEFAULT_NUMBER_OF_RESULTS);
+        this.useMetricSpaces = params.getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        this.probes = params.getInt("probes", DEFAULT_PROBES);
+        this.parallel = params.getBool("parallel", DEFAULT_PARALLEL_RE_RANKING);
+        this.exact = params.getBool("exact", DEFAULT_EXACT);
+        this.useCache = params.getBool("cache", true);
+        this.adaptive = params.getBool("adaptive", false);
+        this.timeAllowed = params.getLong(CommonParams.TIME_ALLOWED, -1L);
+        this.filterQueries = filterQueries == null ? null : Collections.unmodifiableList(filterQueries);
+        this.timings = new SearchTimings(metrics, endpoint, hashField);
+    }
+
+    /**
+     * @return the name of the BitSampling hash field, eg. cl_ha
+     */
+    public String getHashField() {
+        return hashField;
+    }
+
+    /**
+     * @return the name of the DocValues field holding the feature, eg. cl_hi, or null if the feature is not registered.
+     */
+    public String getFeatureField() {
+        return featureField;
+    }
+
+    /**
+     * @return the name of the MetricSpaces field, eg. cl_ms
+     */
+    public String getMetricSpacesField() {
+        return metricSpacesField;
+    }
+
+    /**
+     * @return the class of the feature or null if it is not registered in the {@link FeatureRegistry}.
+     */
+    public Class<? extends GlobalFeature> getFeatureClass() {
+        return featureClass;
+    }
+
+    /**
+     * @return a new instance of the feature, created by the factory of the {@link FeatureRegistry}.
+     * @throws SolrException BAD_REQUEST if the feature of the field is not registered.
+     */
+    public GlobalFeature newFeature() {
+        if (featureFactory == null)
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown field " + hashField);
+        return featureFactory.get();
+    }
+
+    /**
+     * @return the share of query terms used for the candidate query.
+     */
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return the number of candidates retrieved for re-ranking.
+     */
+    public int getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return the number of results.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    public boolean isUseMetricSpaces() {
+        return useMetricSpaces;
+    }
+
+    /**
+     * @return the number of perturbed hashes added to a BitSampling query per query hash.
+     */
+    public int getProbes() {
+        return probes;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @return true if the candidates should be widened step by step, see accuracy and candidates for the limits.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return the time in ms from the start of the request an adaptive search may take, values &lt;= 0 mean no limit.
+     */
+    public long getTimeAllowed() {
+        return timeAllowed;
+    }
+
+    /**
+     * @return true if the results may be taken from and put into the result cache.
+     */
+    public boolean isUseCache() {
+        return useCache;
+    }
+
+    /**
+     * @return the filter queries or null if there are none.
+     */
+    public List<Query> getFilterQueries() {
+        return filterQueries;
+    }
+
+    /**
+     * @return the timings of the phases of the request.
+     */
+    public SearchTimings getTimings() {
+        return timings;
+    }
+}
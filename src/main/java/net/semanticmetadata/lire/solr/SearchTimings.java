@@ -0,0 +1,50 @@
+package net.semanticmetadata.lire.solr;
+
+/**
+ * Takes the time of the phases of a single search request. An instance belongs to exactly one request, so it's
+ * not shared between threads. The times are taken in nanoseconds and recorded into the histograms of the
+ * {@link SearchMetrics} if there are any.
+ */
+public class SearchTimings {
+    private final SearchMetrics metrics;
+    private final String endpoint;
+    private final String field;
+    private long start = System.nanoTime();
+
+    /**
+     * Timings that are not recorded.
+     */
+    public SearchTimings() {
+        this(null, null, null);
+    }
+
+    /**
+     * @param metrics  where the times are recorded, can be null
+     * @param endpoint the type of request, eg. url
+     * @param field    the hash field, eg. cl_ha
+     */
+    public SearchTimings(SearchMetrics metrics, String endpoint, String field) {
+        this.metrics = metrics;
+        this.endpoint = endpoint;
+        this.field = field;
+    }
+
+    /**
+     * Starts taking the time for the next phase.
+     */
+    public void start() {
+        start = System.nanoTime();
+    }
+
+    /**
+     * Records the time since the last call of {@link #start()} for a phase.
+     *
+     * @param phase the phase, eg. {@link SearchMetrics#RE_RANK}
+     * @return the milliseconds since the last call of {@link #start()}.
+     */
+    public long stop(String phase) {
+        long nanos = System.nanoTime() - start;
+        if (metrics != null) metrics.getHistogram(endpoint, field, phase).update(nanos);
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,112 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges the (id, distance) pairs of the shards of a distributed search into the global top k. Each shard returns
+ * its own top k, so the global top k is among them. Ties are broken by the position of the shard in the list of
+ * shards searched, then by the name of the shard and by id, so the merged result doesn't depend on which shard
+ * answers first. A document returned by several shards, eg. if a shard is listed twice, is taken only once with its
+ * smallest distance.
+ */
+public class ShardResultMerger {
+    private final int rows;
+    private final List<Result> results = new ArrayList<>();
+    private final List<String> shards;
+
+    /**
+     * @param rows   the number of results
+     * @param shards the shards searched, in the order given by the request or the cluster state.
+     */
+    public ShardResultMerger(int rows, String... shards) {
+        this.rows = rows;
+        this.shards = Arrays.asList(shards);
+    }
+
+    /**
+     * @param shard    the shard the document was found on
+     * @param id       the unique key of the document
+     * @param distance the distance of the document to the query
+     */
+    public void add(String shard, String id, double distance) {
+        int shardIndex = shards.indexOf(shard);
+        if (shardIndex < 0) shardIndex = shards.size(); // not in the list, ordered by name after the listed ones.
+        results.add(new Result(shard, shardIndex, id, distance));
+    }
+
+    /**
+     * Adds the documents of the response of a shard, which have their distance in the field
+     * {@link LireReturnFields#DISTANCE_FIELD}.
+     *
+     * @param shard the shard the documents were found on
+     * @param docs  the documents returned by the shard
+     * @return the number of documents skipped as they have no id or no distance.
+     */
+    public int addAll(String shard, SolrDocumentList docs) {
+        int skipped = 0;
+        for (SolrDocument doc : docs) {
+            Object id = doc.getFieldValue("id");
+            Object distance = doc.getFieldValue(LireReturnFields.DISTANCE_FIELD);
+            if (id == null || !(distance instanceof Number)) skipped++;
+            else add(shard, id.toString(), ((Number) distance).doubleValue());
+        }
+        return skipped;
+    }
+
+    /**
+     * @return the at most rows results with the smallest distances in ascending order.
+     */
+    public List<Result> getResults() {
+        Collections.sort(results);
+        List<Result> merged = new ArrayList<>(Math.min(rows, results.size()));
+        Set<String> ids = new HashSet<>();
+        for (Result result : results) {
+            if (merged.size() >= rows) break;
+            if (ids.add(result.getId())) merged.add(result);
+        }
+        return merged;
+    }
+
+    public static final class Result implements Comparable<Result> {
+        private final String shard;
+        private final int shardIndex;
+        private final String id;
+        private final double distance;
+
+        Result(String shard, int shardIndex, String id, double distance) {
+            this.shard = shard;
+            this.shardIndex = shardIndex;
+            this.id = id;
+            this.distance = distance;
+        }
+
+        public String getShard() {
+            return shard;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+
+        @Override
+        public int compareTo(Result o) {
+            int c = Double.compare(distance, o.distance);
+            if (c == 0) c = Integer.compare(shardIndex, o.shardIndex);
+            if (c == 0) c = shard.compareTo(o.shard);
+            if (c == 0) c = id.compareTo(o.id);
+            return c;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.FCTH;
+import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
+
+/**
+ * Computes the distance of features to a query feature, but gives up as soon as it's clear that the distance is
+ * larger than a threshold, eg. the largest distance in the current top k. Distances below the threshold are exactly
+ * the ones of {@link GlobalFeature#getDistance(net.semanticmetadata.lire.imageanalysis.features.LireFeature)}.
+ * <p>
+ * CEDD, FCTH and JCD use the Tanimoto coefficient of the normalized histograms. While the inner product of the
+ * histograms is added up, the part still missing is bound by the norms of the remaining bins, so the computation
+ * stops as soon as the distance cannot get below the threshold anymore. The other features don't have an additive
+ * distance with a cheap bound, they are compared without a threshold.
+ * <p>
+ * Instances hold the query data only, so they can be shared between threads as long as the query feature is not
+ * used elsewhere.
+ */
+public abstract class ThresholdDistance {
+    /**
+     * returned by {@link #getDistance(GlobalFeature, double)} if the distance is larger than the threshold.
+     */
+    public static final double ABANDONED = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param queryFeature the query, it must not be changed while the returned instance is in use.
+     * @return the distance function for the query.
+     */
+    public static ThresholdDistance create(GlobalFeature queryFeature) {
+        if (queryFeature instanceof CEDD) {
+            return new ByteTanimoto(((CEDD) queryFeature).getByteHistogram());
+        } else if (queryFeature instanceof FCTH || queryFeature instanceof JCD) {
+            return new DoubleTanimoto(queryFeature.getFeatureVector());
+        }
+        return new Exact(queryFeature);
+    }
+
+    /**
+     * @param feature   the feature to compare to the query, of the same class as the query.
+     * @param threshold the distance above which the exact distance is of no interest.
+     * @return the distance or {@link #ABANDONED} if it is larger than the threshold.
+     */
+    public abstract double getDistance(GlobalFeature feature, double threshold);
+
+    /**
+     * The Tanimoto based distance as implemented in CEDD, FCTH and JCD, ie. 100 * (1 - t) with t the Tanimoto
+     * coefficient of the histograms normalized by their sums. The inner product still to be added up is bound by
+     * the product of the norms of the remaining parts of both histograms (Cauchy-Schwarz).
+     */
+    private abstract static class Tanimoto extends ThresholdDistance {
+        /**
+         * relative tolerance for the rounding errors of the bound.
+         */
+        private static final double TOLERANCE = 1e-9;
+        /**
+         * number of bins between two checks of the bound.
+         */
+        static final int CHECK_INTERVAL = 16;
+        final double querySum;
+        final double[] normalizedQuery;
+        final double queryProduct;
+        /**
+         * the squared norm of the normalized query from bin i to the end.
+         */
+        private final double[] remainingQueryProduct;
+
+        Tanimoto(double[] query) {
+            double sum = 0;
+            for (int i = 0; i < query.length; i++) sum += query[i];
+            querySum = sum;
+            normalizedQuery = new double[query.length];
+            double product = 0;
+            for (int i = 0; i < query.length; i++) {
+                normalizedQuery[i] = query[i] / querySum;
+                product += normalizedQuery[i] * normalizedQuery[i];
+            }
+            queryProduct = product;
+            remainingQueryProduct = new double[query.length + 1];
+            for (int i = query.length - 1; i >= 0; i--) {
+                remainingQueryProduct[i] = remainingQueryProduct[i + 1] + normalizedQuery[i] * normalizedQuery[i];
+            }
+        }
+
+        /**
+         * @param innerProduct the inner product of the histograms up to bin index
+         * @param partial      the squared norm of the normalized histogram up to bin index
+         * @param product      the squared norm of the whole normalized histogram
+         * @param index        the next bin
+         * @param threshold    the threshold
+         * @return true if the distance is definitely larger than the threshold.
+         */
+        final boolean exceeds(double innerProduct, double partial, double product, int index, double threshold) {
+            double maxInnerProduct = innerProduct + Math.sqrt(Math.max(0, product - partial) * remainingQueryProduct[index]);
+            double minimumDistance = distance(maxInnerProduct, queryProduct, product);
+            return minimumDistance > threshold + TOLERANCE * (1 + Math.abs(threshold));
+        }
+
+        static boolean isBound(double threshold) {
+            return threshold < Double.MAX_VALUE;
+        }
+
+        static double distance(double innerProduct, double queryProduct, double product) {
+            return 100 - (100 * (innerProduct / (queryProduct + product - innerProduct)));
+        }
+    }
+
+    private static class ByteTanimoto extends Tanimoto {
+        private final int length;
+
+        ByteTanimoto(byte[] query) {
+            super(toDouble(query));
+            length = query.length;
+        }
+
+        @Override
+        public double getDistance(GlobalFeature feature, double threshold) {
+            byte[] histogram = ((CEDD) feature).getByteHistogram();
+            if (histogram.length != length)
+                throw new UnsupportedOperationException("Histogram lengths or color spaces do not match");
+            double sum = 0, squareSum = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                sum += histogram[i];
+                squareSum += histogram[i] * histogram[i];
+            }
+            if (sum == 0 && querySum == 0) return 0;
+            if (sum == 0 || querySum == 0) return 100;
+            boolean bound = isBound(threshold);
+            double total = squareSum / (sum * sum);
+            if (bound && exceeds(0, 0, total, 0, threshold)) return ABANDONED;
+            double innerProduct = 0, product = 0, tmp;
+            for (int i = 0; i < histogram.length; i++) {
+                tmp = histogram[i] / sum;
+                innerProduct += tmp * normalizedQuery[i];
+                product += tmp * tmp;
+                if (bound && i % CHECK_INTERVAL == CHECK_INTERVAL - 1 && exceeds(innerProduct, product, total, i + 1, threshold))
+                    return ABANDONED;
+            }
+            return distance(innerProduct, queryProduct, product);
+        }
+
+        private static double[] toDouble(byte[] histogram) {
+            double[] result = new double[histogram.length];
+            for (int i = 0; i < histogram.length; i++) result[i] = histogram[i];
+            return result;
+        }
+    }
+
+    private static class DoubleTanimoto extends Tanimoto {
+        private final int length;
+
+        DoubleTanimoto(double[] query) {
+            super(query);
+            length = query.length;
+        }
+
+        @Override
+        public double getDistance(GlobalFeature feature, double threshold) {
+            double[] histogram = feature.getFeatureVector();
+            if (histogram.length != length)
+                throw new UnsupportedOperationException("Histogram lengths or color spaces do not match");
+            double sum = 0, squareSum = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                sum += histogram[i];
+                squareSum += histogram[i] * histogram[i];
+            }
+            if (sum == 0 && querySum == 0) return 0;
+            if (sum == 0 || querySum == 0) return 100;
+            boolean bound = isBound(threshold);
+            double total = squareSum / (sum * sum);
+            if (bound && exceeds(0, 0, total, 0, threshold)) return ABANDONED;
+            double innerProduct = 0, product = 0, tmp;
+            for (int i = 0; i < histogram.length; i++) {
+                tmp = histogram[i] / sum;
+                innerProduct += tmp * normalizedQuery[i];
+                product += tmp * tmp;
+                if (bound && i % CHECK_INTERVAL == CHECK_INTERVAL - 1 && exceeds(innerProduct, product, total, i + 1, threshold))
+                    return ABANDONED;
+            }
+            return distance(innerProduct, queryProduct, product);
+        }
+    }
+
+    /**
+     * Features without a threshold aware implementation.
+     */
+    private static class Exact extends ThresholdDistance {
+        private final GlobalFeature queryFeature;
+
+        Exact(GlobalFeature queryFeature) {
+            this.queryFeature = queryFeature;
+        }
+
+        @Override
+        public double getDistance(GlobalFeature feature, double threshold) {
+            return queryFeature.getDistance(feature);
+        }
+    }
+}
@@ -41,10 +41,9 @@ package net.semanticmetadata.lire.solr.indexing;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.*;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
 import net.semanticmetadata.lire.solr.FeatureRegistry;
-import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.MultiProbeBitSampling;
+import net.semanticmetadata.lire.solr.ReferenceData;
 import net.semanticmetadata.lire.utils.ImageUtils;
 
 import javax.imageio.ImageIO;
@@ -111,7 +110,7 @@ public class ParallelSolrIndexer {
     private boolean ended = false;
     private int overallCount = 0;
     private OutputStream dos;
-    private Set<Class> featuresSet;
+    private Set<Class<? extends GlobalFeature>> featuresSet;
 
     private File outfile;
 
@@ -132,15 +131,13 @@ public class ParallelSolrIndexer {
         featuresSet.add(FCTH.class);
         featuresSet.add(JCD.class);
         featuresSet.add(AutoColorCorrelogram.class);
-
-        HashingMetricSpacesManager.init(); // load reference points from disk.
+        // reference points and hash functions are loaded on first use, see ReferenceData.
 
         previousProductsList = new ArrayList<>();
         newProductsList = new ArrayList<>();
     }
 
     public static void main(String[] args) throws IOException {
-        BitSampling.readHashFunctions();
         ParallelSolrIndexer indexer = new ParallelSolrIndexer();
 
         if (args.length < 4) {
@@ -336,7 +333,7 @@ public class ParallelSolrIndexer {
 
     private void writeDocumentsToAdd() {
         System.out.println("Extracting features: ");
-        for (Class listOfFeature : featuresSet) {
+        for (Class<? extends GlobalFeature> listOfFeature : featuresSet) {
             System.out.println("\t" + listOfFeature.getCanonicalName());
         }
 
@@ -473,12 +470,8 @@ public class ParallelSolrIndexer {
         }
 
         private void addFeatures() {
-            for (Class next : featuresSet) {
-                try {
-                    features.add((GlobalFeature) next.newInstance());
-                } catch (InstantiationException | IllegalAccessException e) {
-                    e.printStackTrace();
-                }
+            for (Class<? extends GlobalFeature> next : featuresSet) {
+                features.add(FeatureRegistry.newFeature(next));
             }
         }
 
@@ -544,12 +537,12 @@ public class ParallelSolrIndexer {
                                 sb.append("</field>");
                                 if (useBitSampling) {
                                     sb.append("<field name=\"").append(hashesField).append("\">");
-                                    sb.append(arrayToString(BitSampling.generateHashes(feature.getFeatureVector())));
+                                    sb.append(arrayToString(MultiProbeBitSampling.generateHashes(feature.getFeatureVector())));
                                     sb.append("</field>");
                                 }
-                                if (useMetricSpaces && MetricSpaces.supportsFeature(feature)) {
+                                if (useMetricSpaces && ReferenceData.supportsMetricSpaces(feature)) {
                                     sb.append("<field name=\"").append(metricSpacesField).append("\">");
-                                    sb.append(MetricSpaces.generateHashString(feature));
+                                    sb.append(ReferenceData.generateHashString(feature));
                                     sb.append("</field>");
                                 }
                             }
@@ -2,7 +2,7 @@ package net.semanticmetadata.lire.solr.tools;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.*;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.solr.MultiProbeBitSampling;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -93,7 +93,7 @@ public class FlickrPhoto implements Runnable {
         bufferedWriter.append(Base64.getEncoder().encodeToString(globalFeature.getByteArrayRepresentation()));
         bufferedWriter.append("</field>");
         bufferedWriter.append("<field name=\"" + fieldName + "_ha\">");
-        bufferedWriter.append(arrayToString(BitSampling.generateHashes(globalFeature.getFeatureVector())));
+        bufferedWriter.append(arrayToString(MultiProbeBitSampling.generateHashes(globalFeature.getFeatureVector())));
         bufferedWriter.append("</field>");
     }
 
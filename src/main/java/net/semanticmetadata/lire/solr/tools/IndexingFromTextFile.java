@@ -1,11 +1,10 @@
 package net.semanticmetadata.lire.solr.tools;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
 import net.semanticmetadata.lire.indexers.tools.text.AbstractDocumentWriter;
 import net.semanticmetadata.lire.solr.FeatureRegistry;
-import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.MultiProbeBitSampling;
+import net.semanticmetadata.lire.solr.ReferenceData;
 import net.semanticmetadata.lire.solr.indexing.ParallelSolrIndexer;
 import net.semanticmetadata.lire.utils.CommandLineUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -44,8 +43,7 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
         super(infile, true, doHashingBitSampling, doMetricSpaceIndexing);
         this.outfile = outFile;
         bw = new BufferedWriter(new FileWriter(outfile));
-        super.loadMdsFilesAutomatically = false; // skip the auto load and read from resources ...
-        HashingMetricSpacesManager.init(); // load reference points from disk.
+        super.loadMdsFilesAutomatically = false; // skip the auto load, ReferenceData reads from resources on first use.
     }
 
     public static void main(String[] args) {
@@ -117,15 +115,11 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
         try {
             for (Iterator<GlobalFeature> iterator = a.iterator(); iterator.hasNext(); ) {
                 GlobalFeature f = iterator.next();
-                GlobalFeature n = (GlobalFeature) f.getClass().newInstance();
+                GlobalFeature n = FeatureRegistry.newFeature(f.getClass());
                 n.setByteArrayRepresentation(f.getByteArrayRepresentation());
                 tmp.add(n);
             }
             queue.put(new QueueItem(s, tmp));
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -154,16 +148,17 @@ public class IndexingFromTextFile extends AbstractDocumentWriter {
                     document.put("title", data.id);
                     for (Iterator<GlobalFeature> iterator = data.features.iterator(); iterator.hasNext(); ) {
                         GlobalFeature f = iterator.next();
-                        document.put(FeatureRegistry.getCodeForClass(f.getClass()) + FeatureRegistry.featureFieldPostfix,
+                        String code = FeatureRegistry.getCodeForClass(f.getClass());
+                        document.put(FeatureRegistry.codeToFeatureField(code),
                                 org.apache.commons.codec.binary.Base64.encodeBase64String(f.getByteArrayRepresentation()));
                         if (doHashingBitSampling) {
-                            document.put(FeatureRegistry.getCodeForClass(f.getClass()) + FeatureRegistry.hashFieldPostfix,
-                                    ParallelSolrIndexer.arrayToString(BitSampling.generateHashes(f.getFeatureVector())));
+                            document.put(FeatureRegistry.codeToHashField(code),
+                                    ParallelSolrIndexer.arrayToString(MultiProbeBitSampling.generateHashes(f.getFeatureVector())));
 
                         } else if (doMetricSpaceIndexing) {
-                            if (MetricSpaces.supportsFeature(f)) {
-                                document.put(FeatureRegistry.getCodeForClass(f.getClass()) + FeatureRegistry.metricSpacesFieldPostfix,
-                                        MetricSpaces.generateHashString(f));
+                            if (ReferenceData.supportsMetricSpaces(f)) {
+                                document.put(FeatureRegistry.codeToMetricSpacesField(code),
+                                        ReferenceData.generateHashString(f));
                             }
 
                         }
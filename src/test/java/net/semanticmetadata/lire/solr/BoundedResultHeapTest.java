@@ -0,0 +1,50 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the bounded heap against sorting all candidates.
+ */
+public class BoundedResultHeapTest extends TestCase {
+    public void testTopK() {
+        Random r = new Random(42);
+        double[] distances = new double[1000];
+        for (int i = 0; i < distances.length; i++) distances[i] = r.nextInt(200) / 10d; // with ties
+        BoundedResultHeap heap = new BoundedResultHeap(25);
+        for (int i = 0; i < distances.length; i++) heap.offer(i, distances[i]);
+        heap.sort();
+        assertEquals(25, heap.size());
+
+        Integer[] all = new Integer[distances.length];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        Arrays.sort(all, (a, b) -> distances[a] != distances[b] ? Double.compare(distances[a], distances[b]) : a - b);
+        for (int i = 0; i < heap.size(); i++) {
+            assertEquals(all[i].intValue(), heap.getDoc(i));
+            assertEquals(distances[all[i]], heap.getDistance(i));
+        }
+    }
+
+    public void testBound() {
+        BoundedResultHeap heap = new BoundedResultHeap(2);
+        assertEquals(Double.MAX_VALUE, heap.getMaxDistance());
+        assertTrue(heap.offer(1, 3d));
+        assertTrue(heap.offer(2, 1d));
+        assertEquals(3d, heap.getMaxDistance());
+        assertFalse(heap.offer(3, 3d));
+        assertTrue(heap.offer(4, 2d));
+        assertEquals(2d, heap.getMaxDistance());
+        heap.sort();
+        assertEquals(2, heap.getDoc(0));
+        assertEquals(4, heap.getDoc(1));
+    }
+
+    public void testEmpty() {
+        BoundedResultHeap heap = new BoundedResultHeap(0);
+        assertFalse(heap.offer(1, 1d));
+        heap.sort();
+        assertEquals(0, heap.size());
+    }
+}
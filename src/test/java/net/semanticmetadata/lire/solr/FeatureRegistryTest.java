@@ -0,0 +1,68 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the factories, the pooled instances and the precomputed field names.
+ */
+public class FeatureRegistryTest extends TestCase {
+    public void testFactories() {
+        for (String code : new String[]{"cl", "eh", "jc", "oh", "ph", "ac", "ad", "ce", "fc", "fo", "jh", "sc", "pc"}) {
+            Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForCode(code);
+            GlobalFeature feature = FeatureRegistry.getFactoryForHashField(code + "_ha").get();
+            assertEquals(featureClass, feature.getClass());
+            assertEquals(featureClass, FeatureRegistry.getFactoryForFeatureField(code + "_hi").get().getClass());
+            assertNotSame(feature, FeatureRegistry.newFeature(featureClass));
+        }
+        assertNull(FeatureRegistry.getFactoryForHashField("xx_ha"));
+    }
+
+    public void testPooledFeatures() throws Exception {
+        FeatureRegistry.clearPooledFeatures();
+        GlobalFeature feature = FeatureRegistry.acquireFeature(CEDD.class);
+        assertTrue(feature instanceof CEDD);
+        assertNotSame(feature, FeatureRegistry.acquireFeature(CEDD.class));
+        FeatureRegistry.releaseFeature(feature);
+        assertEquals(1, FeatureRegistry.getPooledFeatureCount(CEDD.class));
+        assertSame(feature, FeatureRegistry.acquireFeature(CEDD.class));
+        assertTrue(FeatureRegistry.acquireFeature(ColorLayout.class) instanceof ColorLayout);
+
+        // the instances released by another thread are pooled the same way.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            GlobalFeature other = executor.submit(() -> {
+                GlobalFeature f = FeatureRegistry.acquireFeature(CEDD.class);
+                FeatureRegistry.releaseFeature(f);
+                return f;
+            }).get();
+            assertEquals(1, FeatureRegistry.getPooledFeatureCount(CEDD.class));
+            // dropped for all threads when the pool is cleared, eg. when a core is closed.
+            FeatureRegistry.clearPooledFeatures();
+            assertEquals(0, FeatureRegistry.getPooledFeatureCount(CEDD.class));
+            assertNotSame(other, executor.submit(() -> FeatureRegistry.acquireFeature(CEDD.class)).get());
+        } finally {
+            executor.shutdown();
+        }
+
+        // the pool is bounded.
+        for (int i = 0; i < FeatureRegistry.MAX_POOLED_FEATURES + 5; i++) FeatureRegistry.releaseFeature(new CEDD());
+        assertEquals(FeatureRegistry.MAX_POOLED_FEATURES, FeatureRegistry.getPooledFeatureCount(CEDD.class));
+        FeatureRegistry.clearPooledFeatures();
+    }
+
+    public void testFieldNames() {
+        assertEquals("cl_hi", FeatureRegistry.getFeatureFieldName("cl_ha"));
+        assertEquals("cl_ms", FeatureRegistry.getMetricSpacesFieldName("cl_ha"));
+        assertEquals("xx_ms", FeatureRegistry.getMetricSpacesFieldName("xx_ha"));
+        assertEquals("ce_ha", FeatureRegistry.codeToHashField("ce"));
+        assertEquals("ce_hi", FeatureRegistry.codeToFeatureField("ce"));
+        assertEquals("ce_ms", FeatureRegistry.codeToMetricSpacesField("ce"));
+        assertEquals("xx_ha", FeatureRegistry.codeToHashField("xx"));
+    }
+}
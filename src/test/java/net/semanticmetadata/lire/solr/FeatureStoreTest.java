@@ -0,0 +1,120 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the features read from the store with the DocValues of a small index with multiple segments.
+ */
+public class FeatureStoreTest extends TestCase {
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < 100; i++) {
+                Document document = new Document();
+                // documents without a feature and features of different length.
+                if (i % 7 != 0) document.add(new BinaryDocValuesField("cl_hi", new BytesRef(feature(i))));
+                document.add(new BinaryDocValuesField("ce_hi", new BytesRef(feature(i + 1))));
+                writer.addDocument(document);
+                if (i % 30 == 29) writer.commit(); // new segment
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        assertTrue(reader.leaves().size() > 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    public void testStore() throws IOException {
+        FeatureStore store = new FeatureStore(1024 * 1024);
+        assertEqualValues(MultiDocValues.getBinaryValues(reader, "cl_hi"), store.getBinaryValues(reader, "cl_hi"));
+        assertEquals(reader.leaves().size(), store.size());
+        assertTrue(store.getBytes() > 0);
+        // segments are loaded only once.
+        long bytes = store.getBytes();
+        assertEqualValues(MultiDocValues.getBinaryValues(reader, "cl_hi"), store.getBinaryValues(reader, "cl_hi"));
+        assertEquals(bytes, store.getBytes());
+        reader.close();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getBytes());
+    }
+
+    public void testBudget() throws IOException {
+        FeatureStore store = new FeatureStore(600);
+        // segments not fitting into the store are read from the DocValues.
+        assertEqualValues(MultiDocValues.getBinaryValues(reader, "cl_hi"), store.getBinaryValues(reader, "cl_hi"));
+        assertTrue(store.size() < reader.leaves().size());
+        assertTrue(store.getBytes() <= 600);
+        // disabled
+        store = new FeatureStore(0);
+        assertEqualValues(MultiDocValues.getBinaryValues(reader, "cl_hi"), store.getBinaryValues(reader, "cl_hi"));
+        assertEquals(0, store.size());
+    }
+
+    public void testConcurrentLoading() throws Exception {
+        FeatureStore expected = new FeatureStore(1024 * 1024);
+        for (String field : new String[]{"cl_hi", "ce_hi"}) expected.getBinaryValues(reader, field);
+        // segments and fields are loaded concurrently, each of them exactly once.
+        FeatureStore store = new FeatureStore(1024 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                String field = i % 2 == 0 ? "cl_hi" : "ce_hi";
+                futures.add(executor.submit(() -> {
+                    for (LeafReaderContext leaf : reader.leaves()) {
+                        BinaryDocValues values = store.getBinaryValues(leaf.reader(), field);
+                        BinaryDocValues docValues = DocValues.getBinary(leaf.reader(), field);
+                        for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                            assertEquals(BytesRef.deepCopyOf(docValues.get(doc)), values.get(doc));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2 * reader.leaves().size(), store.size());
+        assertEquals(expected.getBytes(), store.getBytes());
+    }
+
+    private void assertEqualValues(BinaryDocValues expected, BinaryDocValues actual) {
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            assertEquals(BytesRef.deepCopyOf(expected.get(doc)), actual.get(doc));
+        }
+    }
+
+    private static byte[] feature(int i) {
+        byte[] feature = new byte[1 + i % 5];
+        for (int j = 0; j < feature.length; j++) feature[j] = (byte) (i + j);
+        return feature;
+    }
+}
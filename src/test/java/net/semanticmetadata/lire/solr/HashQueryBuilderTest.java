@@ -0,0 +1,79 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that the queries built directly are the same as the ones parsed from the query strings of MetricSpaces.
+ */
+public class HashQueryBuilderTest extends TestCase {
+    public void testMetricSpacesQuery() throws Exception {
+        HashingMetricSpacesManager.init();
+        CEDD feature = new CEDD();
+        feature.extract(TestImages.createImage(new Random(42)));
+        QueryParser qp = new QueryParser("ce_ms", new WhitespaceAnalyzer());
+        for (int n : new int[]{5, 10, 25, 50}) {
+            Query parsed = qp.parse(MetricSpaces.generateBoostedQuery(feature, n));
+            assertEquals(parsed, HashQueryBuilder.createMetricSpacesQuery(feature, n, "ce_ms"));
+        }
+    }
+
+    public void testBoost() {
+        for (int n = 1; n <= 100; n++) {
+            for (int rank = 1; rank <= n; rank++) {
+                float expected = Float.parseFloat(String.format(Locale.ROOT, "%1.2f", (double) rank / n));
+                assertEquals(expected, HashQueryBuilder.getBoost(rank, n));
+            }
+        }
+    }
+
+    public void testQuery() {
+        Query expected = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("f", "a")), BooleanClause.Occur.SHOULD)
+                .add(new BoostQuery(new TermQuery(new Term("f", "b")), 0.5f), BooleanClause.Occur.SHOULD)
+                .build();
+        assertEquals(expected, HashQueryBuilder.createQuery("a  b^0.5", "f"));
+        assertEquals(expected, HashQueryBuilder.createQuery("a b^0,5", "f"));
+    }
+
+    public void testOrderHashes() throws Exception {
+        try (RAMDirectory directory = new RAMDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                for (int i = 0; i < 10; i++) {
+                    Document document = new Document();
+                    document.add(new TextField("cl_ha", "a" + (i < 5 ? " b" : "") + (i < 2 ? " c" : ""), Field.Store.NO));
+                    writer.addDocument(document);
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                HashTermStatistics statistics = HashTermStatistics.get(reader, "cl_ha");
+                int[] hashes = {0xa, 0xd, 0xb, 0xe, 0xc, 0xf};
+                // ascending docFreq, the hashes not in the index first and in their original order.
+                assertEquals(Arrays.asList("d", "e", "f", "c", "b", "a"), HashQueryBuilder.orderHashes(hashes, statistics, false));
+                assertEquals(Arrays.asList("c", "b", "a"), HashQueryBuilder.orderHashes(hashes, statistics, true));
+                // at least three are left.
+                assertEquals(Arrays.asList("f", "c", "a"), HashQueryBuilder.orderHashes(new int[]{0xa, 0xd, 0xf, 0xc}, statistics, true));
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.ExitableDirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.QueryTimeoutImpl;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the document frequencies summed over segments, re-use of segments after a commit and the primitive map.
+ */
+public class HashTermStatisticsTest extends TestCase {
+    public void testStatistics() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (RAMDirectory directory = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE))) {
+            int segmentsBefore = HashTermStatistics.getSegmentCount();
+            for (int i = 0; i < 30; i++) {
+                addDocument(writer, i);
+                if (i % 10 == 9) writer.commit(); // new segment
+            }
+            DirectoryReader reader = DirectoryReader.open(directory);
+            HashTermStatistics statistics = HashTermStatistics.get(reader, "cl_ha", executor);
+            assertSame(statistics, HashTermStatistics.get(reader, "cl_ha"));
+            assertEquals(30, statistics.docFreq(0xa));
+            assertEquals(15, statistics.docFreq(0xfff));
+            assertEquals(10, statistics.docFreq(0xffffffff));
+            assertEquals(0, statistics.docFreq(0xb));
+            assertEquals(3, statistics.size());
+            assertEquals(segmentsBefore + 3, HashTermStatistics.getSegmentCount());
+
+            // only the new segment is read for the new reader.
+            addDocument(writer, 30);
+            writer.commit();
+            DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+            assertEquals(31, HashTermStatistics.get(newReader, "cl_ha", executor).docFreq(0xa));
+            assertEquals(segmentsBefore + 4, HashTermStatistics.getSegmentCount());
+            reader.close();
+            assertEquals(segmentsBefore + 4, HashTermStatistics.getSegmentCount());
+            newReader.close();
+            assertEquals(segmentsBefore, HashTermStatistics.getSegmentCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testWrappedReader() throws IOException {
+        try (RAMDirectory directory = new RAMDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                for (int i = 0; i < 10; i++) addDocument(writer, i);
+            }
+            int searchersBefore = HashTermStatistics.getSearcherCount();
+            // like a SolrIndexSearcher, which wraps the reader and only closes the raw one.
+            DirectoryReader reader = DirectoryReader.open(directory);
+            DirectoryReader wrapped = ExitableDirectoryReader.wrap(reader, new QueryTimeoutImpl(60000));
+            HashTermStatistics statistics = HashTermStatistics.get(wrapped, "cl_ha");
+            assertEquals(10, statistics.docFreq(0xa));
+            assertSame(statistics, HashTermStatistics.get(wrapped, "cl_ha"));
+            assertSame(statistics, HashTermStatistics.get(reader, "cl_ha"));
+            assertEquals(searchersBefore + 1, HashTermStatistics.getSearcherCount());
+            reader.decRef();
+            assertEquals(1, wrapped.getRefCount());
+            assertEquals(searchersBefore, HashTermStatistics.getSearcherCount());
+        }
+    }
+
+    public void testParseHex() {
+        assertEquals(0xfff, HashTermStatistics.parseHex(new BytesRef(Integer.toHexString(0xfff))));
+        assertEquals(0xffffffffL, HashTermStatistics.parseHex(new BytesRef(Integer.toHexString(-1))));
+        assertEquals(-1, HashTermStatistics.parseHex(new BytesRef("R000012")));
+        assertEquals(-1, HashTermStatistics.parseHex(new BytesRef("123456789")));
+    }
+
+    public void testMap() {
+        IntIntHashMap map = new IntIntHashMap(2);
+        for (int i = -1000; i < 1000; i++) map.addTo(i * 7, i);
+        map.addTo(0, 5);
+        assertEquals(2000, map.size());
+        for (int i = -1000; i < 1000; i++) assertEquals(i == 0 ? 5 : i, map.get(i * 7));
+        assertEquals(0, map.get(3));
+        IntIntHashMap sum = new IntIntHashMap(4);
+        sum.addTo(7, 1);
+        sum.addAll(map);
+        assertEquals(2, sum.get(7));
+        assertEquals(5, sum.get(0));
+        assertEquals(2000, sum.size());
+    }
+
+    private static void addDocument(IndexWriter writer, int i) throws IOException {
+        Document document = new Document();
+        String hashes = "a" + (i % 2 == 0 ? " fff" : "") + (i % 3 == 0 ? " ffffffff" : "");
+        document.add(new TextField("cl_ha", hashes, Field.Store.NO));
+        writer.addDocument(document);
+    }
+}
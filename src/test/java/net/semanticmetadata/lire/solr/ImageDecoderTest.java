@@ -0,0 +1,118 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
+import net.semanticmetadata.lire.imageanalysis.features.global.FCTH;
+import net.semanticmetadata.lire.imageanalysis.features.global.OpponentHistogram;
+import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
+import net.semanticmetadata.lire.imageanalysis.features.global.ScalableColor;
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Checks the subsampling factor, the size of the decoded images and the distances of the features of subsampled
+ * query images to the ones of the index.
+ */
+public class ImageDecoderTest extends TestCase {
+    public void testSubsampling() {
+        assertEquals(1, ImageDecoder.getSubsampling(400, 300, 512));
+        assertEquals(1, ImageDecoder.getSubsampling(1000, 300, 512));
+        assertEquals(7, ImageDecoder.getSubsampling(4000, 3000, 512));
+        assertEquals(7, ImageDecoder.getSubsampling(3000, 4000, 512));
+        assertEquals(1, ImageDecoder.getSubsampling(4000, 3000, 0));
+    }
+
+    public void testRead() throws IOException {
+        byte[] png = encode(new BufferedImage(2000, 1200, BufferedImage.TYPE_INT_RGB));
+        BufferedImage img = ImageDecoder.read(new ByteArrayInputStream(png), 512);
+        assertEquals(667, img.getWidth());
+        assertEquals(400, img.getHeight());
+        img = ImageDecoder.read(new ByteArrayInputStream(png), 0);
+        assertEquals(2000, img.getWidth());
+        assertEquals(1200, img.getHeight());
+        assertNull(ImageDecoder.read(new ByteArrayInputStream("no image".getBytes("UTF-8")), 512));
+    }
+
+    public void testFeatureDistances() throws Exception {
+        Random random = new Random(3);
+        byte[][] photos = new byte[4][];
+        for (int i = 0; i < photos.length; i++) photos[i] = encode(createPhoto(random, 1800, 1200), "jpg");
+        Class<?>[] featureClasses = {ColorLayout.class, CEDD.class, FCTH.class, EdgeHistogram.class, PHOG.class,
+                OpponentHistogram.class, ScalableColor.class};
+        for (Class<?> featureClass : featureClasses) {
+            // the index extracts the features from images scaled to 512 pixels, like the ParallelSolrIndexer.
+            GlobalFeature[] indexed = new GlobalFeature[photos.length];
+            GlobalFeature[] subsampled = new GlobalFeature[photos.length];
+            GlobalFeature[] full = new GlobalFeature[photos.length];
+            for (int i = 0; i < photos.length; i++) {
+                BufferedImage img = ImageDecoder.read(new ByteArrayInputStream(photos[i]), 0);
+                indexed[i] = extract(featureClass, ImageUtils.scaleImage(img, ImageDecoder.DEFAULT_SIDE_LENGTH));
+                full[i] = extract(featureClass, img);
+                subsampled[i] = extract(featureClass, ImageDecoder.read(new ByteArrayInputStream(photos[i]), ImageDecoder.DEFAULT_SIDE_LENGTH));
+            }
+            double subsampledDistance = 0, fullDistance = 0;
+            for (int i = 0; i < photos.length; i++) {
+                // the subsampled query is still closer to its own image than to any other.
+                double distance = indexed[i].getDistance(subsampled[i]);
+                for (int j = 0; j < photos.length; j++) {
+                    if (i != j) assertTrue(featureClass.getSimpleName() + " of image " + i + ": " + distance,
+                            distance < indexed[j].getDistance(subsampled[i]));
+                }
+                subsampledDistance += distance;
+                fullDistance += indexed[i].getDistance(full[i]);
+            }
+            // and about as close to the index as the full resolution.
+            assertTrue(featureClass.getSimpleName() + ": " + subsampledDistance + " > " + fullDistance,
+                    subsampledDistance <= 1.5 * fullDistance);
+        }
+    }
+
+    private static GlobalFeature extract(Class<?> featureClass, BufferedImage img) throws Exception {
+        GlobalFeature feature = (GlobalFeature) featureClass.newInstance();
+        feature.extract(img);
+        return feature;
+    }
+
+    /**
+     * @return a large image with a gradient, shapes and thin lines, which don't survive subsampling unchanged.
+     */
+    private static BufferedImage createPhoto(Random random, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), width, height, new Color(random.nextInt())));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 30; i++) {
+            g.setColor(new Color(random.nextInt()));
+            int x = random.nextInt(width), y = random.nextInt(height), w = random.nextInt(width / 3), h = random.nextInt(height / 3);
+            if (i % 2 == 0) g.fillOval(x, y, w, h);
+            else g.fillRect(x, y, w, h);
+        }
+        g.setStroke(new BasicStroke(2));
+        for (int i = 0; i < 200; i++) {
+            g.setColor(new Color(random.nextInt()));
+            g.drawLine(random.nextInt(width), random.nextInt(height), random.nextInt(width), random.nextInt(height));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage img) throws IOException {
+        return encode(img, "png");
+    }
+
+    private static byte[] encode(BufferedImage img, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, format, out);
+        return out.toByteArray();
+    }
+}
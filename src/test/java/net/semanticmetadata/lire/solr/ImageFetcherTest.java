@@ -0,0 +1,178 @@
+package net.semanticmetadata.lire.solr;
+
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the image fetcher against a local HTTP server serving a small image, a large one, a slow one and redirects.
+ */
+public class ImageFetcherTest extends TestCase {
+    private HttpServer server;
+    private String baseUrl;
+    private byte[] png, largePng;
+    private CountDownLatch slowRelease = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        BufferedImage img = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", bos);
+        png = bos.toByteArray();
+        // noise does not compress well.
+        BufferedImage large = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Random r = new Random(1);
+        for (int x = 0; x < large.getWidth(); x++)
+            for (int y = 0; y < large.getHeight(); y++) large.setRGB(x, y, r.nextInt());
+        bos.reset();
+        ImageIO.write(large, "png", bos);
+        largePng = bos.toByteArray();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image.png", exchange -> {
+            exchange.sendResponseHeaders(200, png.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(png);
+            }
+        });
+        server.createContext("/large.png", exchange -> {
+            exchange.sendResponseHeaders(200, 0); // chunked, so there is no content length to check.
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(largePng);
+            } catch (IOException e) {
+                // client aborted.
+            }
+        });
+        server.createContext("/slow.png", exchange -> {
+            exchange.sendResponseHeaders(200, png.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(png, 0, 16);
+                os.flush();
+                slowRelease.await();
+                os.write(png, 16, png.length - 16);
+            } catch (Exception e) {
+                // client aborted.
+            }
+        });
+        server.createContext("/redirect", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            exchange.getResponseHeaders().add("Location", query != null ? query : "/redirect");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/missing.png", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        slowRelease.countDown();
+        server.stop(0);
+    }
+
+    public void testFetch() throws IOException {
+        try (ImageFetcher fetcher = new ImageFetcher()) {
+            BufferedImage img = fetcher.fetchImage(baseUrl + "/image.png");
+            assertEquals(64, img.getWidth());
+            assertEquals(48, img.getHeight());
+            // connection is re-used from the pool.
+            assertNotNull(fetcher.fetchImage(baseUrl + "/image.png"));
+        }
+    }
+
+    public void testLimits() throws IOException {
+        try (ImageFetcher fetcher = new ImageFetcher(1000, 1000, 5000, 4096, 2, 4)) {
+            assertFails(fetcher, baseUrl + "/large.png", "limit");
+            assertFails(fetcher, baseUrl + "/missing.png", "404");
+            assertFails(fetcher, "file:///etc/passwd", "http");
+        }
+    }
+
+    public void testReadImage() throws IOException {
+        try (ImageFetcher fetcher = new ImageFetcher(1000, 1000, 5000, 4096, 2, 4)) {
+            BufferedImage img = fetcher.readImage(new ByteArrayInputStream(png), (long) png.length, 0);
+            assertEquals(64, img.getWidth());
+            assertNotNull(fetcher.readImage(new ByteArrayInputStream(png), null, 0));
+            // too large by the given size or while reading.
+            for (Long size : new Long[]{(long) largePng.length, null}) {
+                try {
+                    fetcher.readImage(new ByteArrayInputStream(largePng), size, 0);
+                    fail("Uploaded images must be limited.");
+                } catch (IOException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains("limit"));
+                }
+            }
+        }
+    }
+
+    public void testTimeouts() throws IOException {
+        try (ImageFetcher fetcher = new ImageFetcher(1000, 200, 5000, 1024 * 1024, 2, 4)) {
+            long time = System.currentTimeMillis();
+            assertFails(fetcher, baseUrl + "/slow.png", "");
+            assertTrue(System.currentTimeMillis() - time < 3000);
+        }
+    }
+
+    public void testPerHostLimit() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ImageFetcher fetcher = new ImageFetcher(300, 5000, 5000, 1024 * 1024, 1, 4)) {
+            Future<BufferedImage> slow = executor.submit(() -> fetcher.fetchImage(baseUrl + "/slow.png"));
+            Thread.sleep(100);
+            // the only permit for the host is taken by the slow download.
+            assertFails(fetcher, baseUrl + "/image.png", "concurrent");
+            slowRelease.countDown();
+            assertNotNull(slow.get());
+            assertNotNull(fetcher.fetchImage(baseUrl + "/image.png"));
+            // the permits of a host are dropped after its downloads.
+            assertEquals(0, fetcher.getHostCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testRedirects() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ImageFetcher fetcher = new ImageFetcher(300, 5000, 5000, 1024 * 1024, 1, 4)) {
+            BufferedImage img = fetcher.fetchImage(baseUrl + "/redirect?/image.png");
+            assertEquals(64, img.getWidth());
+            assertFails(fetcher, baseUrl + "/redirect", "redirects");
+            assertFails(fetcher, baseUrl + "/redirect?file:///etc/passwd", "http");
+            // the host redirected to is limited as well, here by the slow download from it.
+            Future<BufferedImage> slow = executor.submit(() -> fetcher.fetchImage(baseUrl + "/slow.png"));
+            Thread.sleep(100);
+            String otherHost = baseUrl.replace("127.0.0.1", "localhost");
+            assertFails(fetcher, otherHost + "/redirect?" + baseUrl + "/image.png", "concurrent");
+            slowRelease.countDown();
+            assertNotNull(slow.get());
+            assertEquals(0, fetcher.getHostCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertFails(ImageFetcher fetcher, String url, String message) {
+        try {
+            fetcher.fetchImage(url);
+            fail("Expected an IOException for " + url);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
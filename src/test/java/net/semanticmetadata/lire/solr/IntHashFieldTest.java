@@ -0,0 +1,95 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.schema.SchemaField;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks the values accepted by the hash field type, the binary terms, their statistics and the queries on them.
+ */
+public class IntHashFieldTest extends TestCase {
+    public void testValues() {
+        int[] expected = {0xa, 0xfff, 0xffffffff};
+        assertTrue(Arrays.equals(expected, IntHashField.toHashes("a fff ffffffff")));
+        assertTrue(Arrays.equals(expected, IntHashField.toHashes("a,fff, ffffffff")));
+        assertTrue(Arrays.equals(expected, IntHashField.toHashes(expected)));
+        assertTrue(Arrays.equals(expected, IntHashField.toHashes(Arrays.asList(0xa, 0xfff, -1))));
+        assertTrue(Arrays.equals(expected, IntHashField.toHashes(Arrays.asList("a", "fff", "ffffffff"))));
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        for (int hash : expected) buffer.putInt(hash);
+        assertTrue(Arrays.equals(expected, IntHashField.toHashes(buffer.array())));
+        assertEquals(0, IntHashField.toHashes("").length);
+    }
+
+    public void testTerms() {
+        for (int hash : new int[]{0, 1, 0xfff, 0x7fffffff, 0x80000000, -1}) {
+            BytesRef term = IntHashField.toBytesRef(hash);
+            assertEquals(4, term.length);
+            assertEquals(hash, IntHashField.toInt(term));
+        }
+        // terms with an offset, like the ones of a TermsEnum.
+        BytesRef term = new BytesRef(new byte[]{9, 0, 0, 0x0f, (byte) 0xff}, 1, 4);
+        assertEquals(0xfff, IntHashField.toInt(term));
+    }
+
+    public void testIndexAndSearch() throws IOException {
+        IntHashField type = new IntHashField();
+        SchemaField field = new SchemaField("cl_ha", type);
+        try (RAMDirectory directory = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < 30; i++) {
+                String hashes = "a" + (i % 2 == 0 ? " fff" : "") + (i % 3 == 0 ? " ffffffff" : "");
+                Document document = new Document();
+                for (IndexableField f : type.createFields(field, hashes, 1f)) document.add(f);
+                writer.addDocument(document);
+            }
+            writer.commit();
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                HashTermStatistics statistics = HashTermStatistics.get(reader, "cl_ha", true, null);
+                assertTrue(statistics.isBinary());
+                assertEquals(30, statistics.docFreq(0xa));
+                assertEquals(15, statistics.docFreq(0xfff));
+                assertEquals(10, statistics.docFreq(0xffffffff));
+                assertEquals(3, statistics.size());
+
+                IndexSearcher searcher = new IndexSearcher(reader);
+                Query query = HashQueryBuilder.createQuery(new int[]{0xfff, 0xffffffff, 0xb}, "cl_ha", statistics, 1d);
+                assertEquals(20, searcher.count(query));
+                assertEquals(10, searcher.count(HashQueryBuilder.createQuery("ffffffff^0.5", "cl_ha", true)));
+
+                // ranges of hashes in the order of unsigned ints, like the hex strings.
+                assertEquals(30, searcher.count(type.getRangeQuery(null, field, "a", "fff", true, true)));
+                assertEquals(20, searcher.count(type.getRangeQuery(null, field, "a", null, false, true)));
+                assertEquals(10, searcher.count(type.getRangeQuery(null, field, "1000", "ffffffff", true, true)));
+                assertEquals(15, searcher.count(type.getRangeQuery(null, field, "b", "ffffffff", true, false)));
+                assertEquals(0, searcher.count(type.getRangeQuery(null, field, "b", "ffe", true, true)));
+                try {
+                    type.getPrefixQuery(null, field, "ff");
+                    fail("Prefix queries on binary terms must be rejected.");
+                } catch (SolrException e) {
+                    assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+                }
+                try {
+                    type.toInternal("fff");
+                    fail("Binary terms have no String representation.");
+                } catch (SolrException e) {
+                    assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+                }
+            }
+        }
+    }
+}
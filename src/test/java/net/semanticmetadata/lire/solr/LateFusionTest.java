@@ -0,0 +1,46 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Checks normalization, ranking and the weighted combination of the distances.
+ */
+public class LateFusionTest extends TestCase {
+    private final int[] docs = {3, 5, 8, 13};
+    private final double[][] distances = {
+            {10, 20, 30, 50},        // feature a: doc 3 is the best
+            {0.4, 0.1, 0.2, Double.NaN} // feature b: doc 5 is the best, doc 13 has no value
+    };
+
+    public void testNormalize() {
+        assertTrue(Arrays.equals(new double[]{0, 0.25, 0.5, 1}, LateFusion.normalize(distances[0])));
+        assertTrue(Arrays.equals(new double[]{1, 0, 1 / 3d, 1}, LateFusion.normalize(distances[1])));
+        assertTrue(Arrays.equals(new double[]{0, 0}, LateFusion.normalize(new double[]{7, 7})));
+    }
+
+    public void testRanks() {
+        assertTrue(Arrays.equals(new double[]{0, 1, 2, 3}, LateFusion.toRanks(distances[0])));
+        assertTrue(Arrays.equals(new double[]{2, 0, 1, 3}, LateFusion.toRanks(distances[1])));
+        assertTrue(Arrays.equals(new double[]{2, 0, 0, 3}, LateFusion.toRanks(new double[]{2, 1, 1, 5})));
+    }
+
+    public void testFuse() {
+        BoundedResultHeap heap = LateFusion.fuse(docs, distances, new double[]{1, 1}, LateFusion.SCORE, 2);
+        heap.sort();
+        assertEquals(5, heap.getDoc(0));
+        assertEquals(0.125, heap.getDistance(0), 1e-12);
+        assertEquals(8, heap.getDoc(1));
+        // with all weight on feature a, its order is kept.
+        heap = LateFusion.fuse(docs, distances, new double[]{1, 0}, LateFusion.RANK, 4);
+        heap.sort();
+        for (int i = 0; i < docs.length; i++) assertEquals(docs[i], heap.getDoc(i));
+        try {
+            LateFusion.fuse(docs, distances, new double[]{1, 1}, "max", 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.RankQuery;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the rank query of the lirerank parser and its use in the standard search handler of an embedded core, see
+ * src/test/resources/solr. Every third image is tagged "even", the others "odd".
+ */
+public class LireRankQParserPluginTest extends TestCase {
+    private static final int IMAGES = 30;
+    private final Query candidateQuery = new TermQuery(new Term("cl_ms", "R000001"));
+    private final ColorLayout feature = new ColorLayout();
+    private TestCore core;
+
+    @Override
+    protected void setUp() throws Exception {
+        feature.extract(TestImages.createImage(new Random(3)));
+        core = new TestCore();
+        Random random = new Random(11);
+        for (int i = 0; i < IMAGES; i++) {
+            ColorLayout colorLayout = new ColorLayout();
+            colorLayout.extract(TestImages.createImage(random));
+            SolrInputDocument document = new SolrInputDocument();
+            document.addField("id", "img" + i);
+            document.addField("tag", i % 3 == 0 ? "even" : "odd");
+            core.add(document, colorLayout);
+            if (i == IMAGES / 2) core.commit(); // two segments
+        }
+        core.commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        core.close();
+    }
+
+    public void testWrap() {
+        Query tag = new TermQuery(new Term("tag", "even"));
+        LireRankQParserPlugin.LireRankQuery query = rankQuery(feature, 100);
+        // the main query restricts the results, the candidate query gives the order.
+        BooleanQuery firstPass = (BooleanQuery) query.createFirstPass(tag);
+        assertEquals(2, firstPass.clauses().size());
+        assertEquals(new BooleanClause(candidateQuery, BooleanClause.Occur.SHOULD), firstPass.clauses().get(0));
+        assertEquals(new BooleanClause(tag, BooleanClause.Occur.FILTER), firstPass.clauses().get(1));
+        assertEquals(0, firstPass.getMinimumNumberShouldMatch());
+        firstPass = (BooleanQuery) query.createFirstPass(new MatchAllDocsQuery());
+        assertEquals(new BooleanClause(new MatchAllDocsQuery(), BooleanClause.Occur.FILTER), firstPass.clauses().get(1));
+        RankQuery wrapped = query.wrap(tag);
+        assertTrue(wrapped.toString().contains("tag:even"));
+    }
+
+    public void testEquality() {
+        Query tag = new TermQuery(new Term("tag", "even"));
+        RankQuery query = rankQuery(feature, 100).wrap(tag);
+        RankQuery same = rankQuery(feature, 100).wrap(new TermQuery(new Term("tag", "even")));
+        assertEquals(query, same);
+        assertEquals(query.hashCode(), same.hashCode());
+        assertFalse(query.equals(rankQuery(feature, 100).wrap(new TermQuery(new Term("tag", "odd")))));
+        assertFalse(query.equals(rankQuery(feature, 50).wrap(tag)));
+        assertFalse(query.equals(rankQuery(feature, 100)));
+        ColorLayout other = new ColorLayout();
+        other.extract(TestImages.createImage(new Random(4)));
+        assertFalse(query.equals(rankQuery(other, 100).wrap(tag)));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testSelect() throws Exception {
+        SolrQueryResponse rsp = core.query("/select", "q", "*:*", "fq", "tag:odd", "rows", "5", "facet", "true",
+                "facet.field", "tag", "rq", "{!lirerank field=cl_ha id=img4 candidates=10 ms=false}");
+        assertNull(rsp.getException());
+        ResultContext result = (ResultContext) rsp.getValues().get("response");
+        // all images matching q and fq are found and counted, not only the ones matching the hashes.
+        assertEquals(IMAGES - IMAGES / 3, result.getDocList().matches());
+        List<String> ids = TestCore.getIds(result);
+        assertEquals(5, ids.size());
+        assertEquals("img4", ids.get(0));
+        NamedList<Object> facets = (NamedList<Object>) ((NamedList<Object>) rsp.getValues().get("facet_counts")).get("facet_fields");
+        assertEquals(IMAGES - IMAGES / 3, ((NamedList<Object>) facets.get("tag")).get("odd"));
+    }
+
+    private LireRankQParserPlugin.LireRankQuery rankQuery(ColorLayout feature, int candidates) {
+        return new LireRankQParserPlugin.LireRankQuery(candidateQuery, "cl_hi", feature.getByteArrayRepresentation(), feature, candidates);
+    }
+}
@@ -0,0 +1,195 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.MapSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.response.SolrQueryResponse;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Sends requests to the handler of an embedded core, see src/test/resources/solr. The index has two segments of
+ * images with ColorLayout and CEDD features and a few images without features.
+ */
+public class LireRequestHandlerTest extends TestCase {
+    private static final int IMAGES = 40;
+    private TestCore core;
+    private String hashes;
+
+    @Override
+    protected void setUp() throws Exception {
+        core = new TestCore();
+        Random random = new Random(7);
+        for (int i = 0; i < IMAGES; i++) {
+            ColorLayout colorLayout = new ColorLayout();
+            CEDD cedd = new CEDD();
+            colorLayout.extract(TestImages.createImage(random));
+            cedd.extract(TestImages.createImage(random));
+            core.add("img" + i, colorLayout, cedd);
+            if (i == 0) hashes = toHashString(colorLayout);
+            if (i == IMAGES / 2) core.commit(); // two segments
+        }
+        core.add("nofeature");
+        // hashes, but no feature, so it's a candidate that can't be re-ranked.
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField("id", "nohistogram");
+        document.addField("cl_ha", hashes);
+        core.add(document);
+        core.commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        core.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBatch() throws Exception {
+        SolrQueryResponse rsp = core.query("/lireq", "ids", "img1,img2 unknown", "field", "cl_ha", "rows", "5", "ms", "false");
+        assertNull(rsp.getException());
+        assertNull(rsp.getValues().get("Error"));
+        assertEquals("[unknown]", rsp.getValues().get("Missing").toString());
+        List<Map<String, Object>> results = (List<Map<String, Object>>) rsp.getValues().get("results");
+        assertEquals(2, results.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals("img" + (i + 1), results.get(i).get("id"));
+            List<String> ids = TestCore.getIds(results.get(i).get("docs"));
+            assertEquals(5, ids.size());
+            assertEquals("img" + (i + 1), ids.get(0)); // the query image itself.
+        }
+    }
+
+    public void testBatchUnknownField() {
+        SolrQueryResponse rsp = core.query("/lireq", "ids", "img1,img2", "field", "xx_ha");
+        assertNull(rsp.getException());
+        assertEquals("Unknown field xx_ha", rsp.getValues().get("Error"));
+    }
+
+    public void testBatchSize() {
+        // at most three queries in the configuration of the test core.
+        SolrQueryResponse rsp = core.query("/lireq", "ids", "img1,img2,img3,img4", "field", "cl_ha");
+        assertTrue(rsp.getException() instanceof SolrException);
+        assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, ((SolrException) rsp.getException()).code());
+        assertNull(rsp.getValues().get("results"));
+    }
+
+    public void testUnknownField() {
+        SolrQueryResponse rsp = core.query("/lireq", "id", "img1", "field", "xx_ha");
+        assertNull(rsp.getException());
+        assertTrue(rsp.getValues().get("Error").toString().contains("Unknown field xx_ha"));
+        try {
+            new SearchPlan(new MapSolrParams(Collections.singletonMap("field", "xx")), null).newFeature();
+            fail("There is no feature for an unknown field.");
+        } catch (SolrException e) {
+            assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+        }
+    }
+
+    public void testResultCache() throws Exception {
+        SolrQueryResponse rsp = core.query("/lireq", "id", "img3", "field", "cl_ha", "rows", "5", "ms", "false");
+        assertEquals("miss", rsp.getValues().get("ResultCache"));
+        // the candidate query is built on a miss only.
+        assertNotNull(rsp.getValues().get("RawDocsCount"));
+        List<String> ids = TestCore.getIds(rsp.getValues().get("response"));
+        assertEquals("img3", ids.get(0));
+        rsp = core.query("/lireq", "id", "img3", "field", "cl_ha", "rows", "5", "ms", "false");
+        assertEquals("hit", rsp.getValues().get("ResultCache"));
+        assertNull(rsp.getValues().get("RawDocsCount"));
+        assertEquals(ids, TestCore.getIds(rsp.getValues().get("response")));
+        // turned off per request.
+        rsp = core.query("/lireq", "id", "img3", "field", "cl_ha", "rows", "5", "ms", "false", "cache", "false");
+        assertNull(rsp.getValues().get("ResultCache"));
+        // the statistics of the handler include the cache of the registered searcher.
+        NamedList<Object> statistics = ((LireRequestHandler) core.getCore().getRequestHandler("/lireq")).getStatistics();
+        assertEquals(1L, statistics.get("Result cache hits"));
+        assertEquals(1, statistics.get("Result cache size"));
+    }
+
+    public void testAdaptive() throws Exception {
+        SolrQueryResponse rsp = core.query("/lireq", "id", "img5", "field", "cl_ha", "rows", "5", "ms", "false",
+                "adaptive", "true", "accuracy", "1", "candidates", "2000", "cache", "false");
+        assertNull(rsp.getValues().get("Error"));
+        assertNull(rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+        List<String> ids = TestCore.getIds(rsp.getValues().get("response"));
+        assertEquals(5, ids.size());
+        assertEquals("img5", ids.get(0));
+        // query terms and candidates are doubled per round up to the limits of the request.
+        int rounds = Integer.parseInt((String) rsp.getValues().get("AdaptiveRounds"));
+        assertTrue(rounds >= 1);
+        assertEquals(Math.min(1d, SearchPlan.ADAPTIVE_INITIAL_ACCURACY * (1 << (rounds - 1))), Double.parseDouble((String) rsp.getValues().get("AdaptiveAccuracy")), 1e-9);
+        assertEquals(Math.min(2000, SearchPlan.ADAPTIVE_INITIAL_CANDIDATES << (rounds - 1)), Integer.parseInt((String) rsp.getValues().get("AdaptiveCandidates")));
+        // a single round if the limits are the ones of the first round.
+        rsp = core.query("/lireq", "id", "img5", "field", "cl_ha", "rows", "5", "ms", "false",
+                "adaptive", "true", "accuracy", "0.1", "candidates", "500", "cache", "false");
+        assertEquals("1", rsp.getValues().get("AdaptiveRounds"));
+    }
+
+    public void testAdaptiveTimeAllowed() throws Exception {
+        // the time allowed is up before the search starts, so it stops after the first round.
+        SolrQueryResponse rsp = core.query("/lireq", 1000, "id", "img5", "field", "cl_ha", "rows", "5", "ms", "false",
+                "adaptive", "true", "accuracy", "1", "timeAllowed", "100");
+        assertNull(rsp.getValues().get("Error"));
+        assertEquals(Boolean.TRUE, rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+        assertEquals("1", rsp.getValues().get("AdaptiveRounds"));
+        assertFalse(TestCore.getIds(rsp.getValues().get("response")).isEmpty());
+        // partial results are not cached.
+        rsp = core.query("/lireq", "id", "img5", "field", "cl_ha", "rows", "5", "ms", "false",
+                "adaptive", "true", "accuracy", "1", "timeAllowed", "100000");
+        assertEquals("miss", rsp.getValues().get("ResultCache"));
+        assertNull(rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+    }
+
+    public void testFusionWeights() throws Exception {
+        SolrQueryResponse rsp = core.query("/lireq", "id", "img7", "fields", "cl:2,ce", "rows", "5", "ms", "false");
+        assertNull(rsp.getException());
+        assertNull(rsp.getValues().get("Error"));
+        assertEquals("img7", TestCore.getIds(rsp.getValues().get("response")).get(0));
+        for (String weight : new String[]{"x", "-1", "NaN", "Infinity", ""}) {
+            rsp = core.query("/lireq", "id", "img7", "fields", "cl:" + weight + ",ce", "rows", "5", "ms", "false");
+            assertTrue(weight, rsp.getException() instanceof SolrException);
+            assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, ((SolrException) rsp.getException()).code());
+            assertNull(rsp.getValues().get("response"));
+        }
+    }
+
+    public void testExact() throws Exception {
+        SolrQueryResponse rsp = core.query("/lireq", "id", "img9", "field", "cl_ha", "rows", "5", "exact", "true");
+        assertNull(rsp.getValues().get("Error"));
+        // no candidate query, all documents with a feature are compared.
+        assertNull(rsp.getValues().get("RawDocsCount"));
+        assertEquals(String.valueOf(IMAGES), rsp.getValues().get("ScannedDocsCount"));
+        List<String> ids = TestCore.getIds(rsp.getValues().get("response"));
+        assertEquals(5, ids.size());
+        assertEquals("img9", ids.get(0));
+        // only documents matching the filter are compared.
+        rsp = core.query("/lireq", "id", "img9", "field", "cl_ha", "rows", "5", "exact", "true", "fq", "id:(img1 img2 nofeature)");
+        assertEquals("2", rsp.getValues().get("ScannedDocsCount"));
+        assertEquals(2, TestCore.getIds(rsp.getValues().get("response")).size());
+    }
+
+    public void testMissingFeatures() throws Exception {
+        // all documents with the hashes of img0 are candidates, the one without a feature is no result on both paths.
+        SolrQueryResponse sequential = core.query("/lireq", "id", "img0", "field", "cl_ha", "rows", "50", "ms", "false",
+                "accuracy", "1", "cache", "false");
+        SolrQueryResponse parallel = core.query("/lireq", "id", "img0", "field", "cl_ha", "rows", "50", "ms", "false",
+                "accuracy", "1", "cache", "false", "parallel", "true");
+        List<String> ids = TestCore.getIds(sequential.getValues().get("response"));
+        assertTrue(Integer.parseInt((String) sequential.getValues().get("RawDocsCount")) > ids.size());
+        assertEquals("img0", ids.get(0));
+        assertFalse(ids.contains("nohistogram"));
+        assertEquals(ids, TestCore.getIds(parallel.getValues().get("response")));
+    }
+
+    private static String toHashString(ColorLayout feature) {
+        StringBuilder sb = new StringBuilder();
+        for (int hash : MultiProbeBitSampling.generateHashes(feature.getFeatureVector())) sb.append(Integer.toHexString(hash)).append(' ');
+        return sb.toString().trim();
+    }
+}
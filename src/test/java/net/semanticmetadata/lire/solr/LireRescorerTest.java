@@ -0,0 +1,76 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Re-scores all documents of a small index with multiple segments and checks the order against the distances.
+ */
+public class LireRescorerTest extends TestCase {
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private CEDD[] features = new CEDD[40];
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new RAMDirectory();
+        Random random = new Random(7);
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < features.length; i++) {
+                Document document = new Document();
+                if (i % 9 != 4) { // some documents without a feature.
+                    features[i] = new CEDD();
+                    features[i].extract(TestImages.createImage(random));
+                    document.add(new BinaryDocValuesField("cl_hi", new BytesRef(features[i].getByteArrayRepresentation())));
+                }
+                writer.addDocument(document);
+                if (i % 15 == 14) writer.commit(); // new segment
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        assertTrue(reader.leaves().size() > 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    public void testRescore() throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        LireRescorer rescorer = new LireRescorer("cl_hi", features[3]);
+        Explanation firstPassExplanation = Explanation.match(1f, "first pass");
+        ScoreDoc[] firstPass = new ScoreDoc[features.length];
+        for (int i = 0; i < firstPass.length; i++) firstPass[i] = new ScoreDoc(firstPass.length - 1 - i, i);
+        TopDocs topDocs = rescorer.rescore(searcher, new TopDocs(firstPass.length, firstPass, firstPass.length), 30);
+        assertEquals(30, topDocs.scoreDocs.length);
+        assertEquals(3, topDocs.scoreDocs[0].doc);
+        assertEquals(1f, topDocs.getMaxScore());
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            ScoreDoc hit = topDocs.scoreDocs[i];
+            assertEquals(LireRescorer.toScore(features[hit.doc].getDistance(features[3])), hit.score);
+            if (i > 0) assertTrue(topDocs.scoreDocs[i - 1].score >= hit.score);
+            assertEquals(hit.score, rescorer.explain(searcher, firstPassExplanation, hit.doc).getValue());
+        }
+        // documents without a feature come last.
+        topDocs = rescorer.rescore(searcher, new TopDocs(firstPass.length, firstPass, firstPass.length), firstPass.length);
+        assertEquals(0f, topDocs.scoreDocs[firstPass.length - 1].score);
+        assertEquals(0f, rescorer.explain(searcher, firstPassExplanation, 4).getValue());
+    }
+}
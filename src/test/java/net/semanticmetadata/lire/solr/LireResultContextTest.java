@@ -0,0 +1,33 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+
+/**
+ * Checks that the results are ordered by distance and the exact distances are found by document number.
+ */
+public class LireResultContextTest extends TestCase {
+    public void testResults() {
+        BoundedResultHeap heap = new BoundedResultHeap(3);
+        heap.offer(42, 12.5);
+        heap.offer(7, 3.25);
+        heap.offer(1000, 0.1);
+        heap.offer(3, 99);
+        LireResultContext context = new LireResultContext(heap, null, null, null, null);
+        DocList docList = context.getDocList();
+        assertEquals(3, docList.size());
+        assertTrue(docList.hasScores());
+        DocIterator it = docList.iterator();
+        assertEquals(1000, it.nextDoc());
+        assertEquals(0.1f, it.score());
+        assertEquals(7, it.nextDoc());
+        assertEquals(42, it.nextDoc());
+        assertFalse(it.hasNext());
+        assertEquals(12.5f, docList.maxScore());
+        assertEquals(0.1, context.getDistance(1000));
+        assertEquals(3.25, context.getDistance(7));
+        assertEquals(12.5, context.getDistance(42));
+        assertTrue(Double.isNaN(context.getDistance(3)));
+    }
+}
@@ -0,0 +1,99 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the fields found for warming and reading the DocValues of all segments, directly or into a feature store, and
+ * that the statistics of a warmed searcher are released with it.
+ */
+public class LireWarmingListenerTest extends TestCase {
+    public void testWarming() throws IOException {
+        try (RAMDirectory directory = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE))) {
+            for (int i = 0; i < 20; i++) {
+                Document document = new Document();
+                document.add(new TextField("cl_ha", "a fff", Field.Store.NO));
+                document.add(new TextField("title", "image " + i, Field.Store.NO));
+                if (i % 2 == 0) document.add(new BinaryDocValuesField("cl_hi", new BytesRef(new byte[8])));
+                writer.addDocument(document);
+                if (i % 10 == 9) writer.commit(); // new segment
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                assertEquals(2, reader.leaves().size());
+                assertEquals(Arrays.asList("cl_ha"), LireWarmingListener.getHashFields(reader));
+                assertEquals(10 * 8, LireWarmingListener.readDocValues(reader, "cl_hi", null));
+                assertEquals(0, LireWarmingListener.readDocValues(reader, "ph_hi", null));
+                // the segments are copied into the feature store of the handler.
+                FeatureStore store = new FeatureStore(1024 * 1024);
+                assertEquals(10 * 8, LireWarmingListener.readDocValues(reader, "cl_hi", store));
+                assertEquals(0, LireWarmingListener.readDocValues(reader, "ph_hi", store));
+                assertEquals(2, store.size());
+            }
+        }
+    }
+
+    public void testSearchersReleased() throws Exception {
+        try (TestCore core = new TestCore()) {
+            LireWarmingListener listener = new LireWarmingListener(core.getCore());
+            NamedList<Object> args = new NamedList<>();
+            args.add("fields", "cl_ha");
+            listener.init(args);
+            Random random = new Random(7);
+            int searchersBefore = HashTermStatistics.getSearcherCount();
+
+            core.add("img0", cedd(random));
+            core.commit();
+            IndexReader firstReader = warm(core, listener);
+            assertEquals(searchersBefore + 1, HashTermStatistics.getSearcherCount());
+
+            // the next commit closes the first searcher, which must take its statistics along.
+            core.add("img1", cedd(random));
+            core.commit();
+            IndexReader secondReader = warm(core, listener);
+            assertNotSame(firstReader, secondReader);
+            assertEquals(0, firstReader.getRefCount());
+            assertEquals(searchersBefore + 1, HashTermStatistics.getSearcherCount());
+        }
+    }
+
+    /**
+     * Warms the current searcher of the core like on a newSearcher event.
+     *
+     * @return the raw reader of the searcher.
+     */
+    private static IndexReader warm(TestCore core, LireWarmingListener listener) {
+        RefCounted<SolrIndexSearcher> searcher = core.getCore().getSearcher();
+        try {
+            listener.newSearcher(searcher.get(), null);
+            return searcher.get().getRawReader();
+        } finally {
+            searcher.decref();
+        }
+    }
+
+    private static CEDD cedd(Random random) {
+        CEDD feature = new CEDD();
+        feature.extract(TestImages.createImage(random));
+        return feature;
+    }
+}
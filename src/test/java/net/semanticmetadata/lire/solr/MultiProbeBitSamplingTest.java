@@ -0,0 +1,50 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks the hashes against BitSampling and the order of the probes.
+ */
+public class MultiProbeBitSamplingTest extends TestCase {
+    public void testHashes() throws Exception {
+        HashingMetricSpacesManager.init();
+        Random random = new Random(11);
+        BufferedImage img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 64; x++) for (int y = 0; y < 64; y++) img.setRGB(x, y, random.nextInt(0xffffff));
+        CEDD feature = new CEDD();
+        feature.extract(img);
+        int[] hashes = BitSampling.generateHashes(feature.getFeatureVector());
+        double[][] projections = MultiProbeBitSampling.project(feature.getFeatureVector());
+        assertEquals(hashes.length, projections.length);
+        for (int j = 0; j < hashes.length; j++) assertEquals(hashes[j], MultiProbeBitSampling.hash(projections[j]));
+    }
+
+    public void testProbes() {
+        double[] projections = {0.5, -0.1, 2, -0.3};
+        int hash = MultiProbeBitSampling.hash(projections);
+        assertEquals(0b0101, hash);
+        int[] probes = MultiProbeBitSampling.probe(projections, 5);
+        // flips by ascending score: {1}, {3}, {1,3}, {0}, {0,1}
+        assertEquals(hash ^ 0b0010, probes[0]);
+        assertEquals(hash ^ 0b1000, probes[1]);
+        assertEquals(hash ^ 0b1010, probes[2]);
+        assertEquals(hash ^ 0b0001, probes[3]);
+        assertEquals(hash ^ 0b0011, probes[4]);
+        // all other hashes exactly once.
+        probes = MultiProbeBitSampling.probe(projections, 100);
+        assertEquals(15, probes.length);
+        Set<Integer> distinct = new HashSet<>();
+        for (int probe : probes) {
+            assertTrue(probe != hash);
+            assertTrue(distinct.add(probe));
+        }
+        assertEquals(0, MultiProbeBitSampling.probe(projections, 0).length);
+    }
+}
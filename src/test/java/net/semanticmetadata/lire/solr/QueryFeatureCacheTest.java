@@ -0,0 +1,54 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks LRU eviction, the byte bound and the expiration of the query feature cache.
+ */
+public class QueryFeatureCacheTest extends TestCase {
+    public void testHitsAndLru() {
+        QueryFeatureCache cache = new QueryFeatureCache(2, Long.MAX_VALUE, 0);
+        assertNull(cache.get("http://a", "cl_ha"));
+        cache.put("http://a", "cl_ha", new byte[]{1}, new int[]{1, 2});
+        cache.put("http://b", "cl_ha", new byte[]{2}, new int[]{3, 4});
+        assertEquals(1, cache.get("http://a", "cl_ha").getFeature()[0]); // a is used more recently than b now.
+        assertNull(cache.get("http://a", "ce_ha"));
+        cache.put("http://c", "cl_ha", new byte[]{3}, new int[]{5, 6});
+        assertNull(cache.get("http://b", "cl_ha"));
+        assertNotNull(cache.get("http://a", "cl_ha"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    public void testByteBound() {
+        QueryFeatureCache cache = new QueryFeatureCache(100, 1000, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.put("http://" + i, "cl_ha", new byte[300], null);
+            assertTrue(cache.getBytes() <= 1000);
+        }
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("http://9", "cl_ha"));
+        // too large to be cached at all, but still returned.
+        assertEquals(2000, cache.put("http://large", "cl_ha", new byte[2000], null).getFeature().length);
+        assertNull(cache.get("http://large", "cl_ha"));
+    }
+
+    public void testExpiration() throws InterruptedException {
+        QueryFeatureCache cache = new QueryFeatureCache(10, Long.MAX_VALUE, 10);
+        cache.put("http://a", "cl_ha", new byte[]{1}, null);
+        assertNotNull(cache.get("http://a", "cl_ha"));
+        Thread.sleep(50);
+        assertNull(cache.get("http://a", "cl_ha"));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(0, cache.getBytes());
+    }
+
+    public void testDisabled() {
+        QueryFeatureCache cache = new QueryFeatureCache(0, 1000, 0);
+        assertNotNull(cache.put("http://a", "cl_ha", new byte[]{1}, null));
+        assertNull(cache.get("http://a", "cl_ha"));
+        assertEquals(0, cache.size());
+    }
+}
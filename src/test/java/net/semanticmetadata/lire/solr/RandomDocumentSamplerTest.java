@@ -0,0 +1,51 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.BitDocSet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that samples are distinct members of the set, reproducible with a seed and roughly uniform.
+ */
+public class RandomDocumentSamplerTest extends TestCase {
+    public void testSample() {
+        BitDocSet docSet = createDocSet();
+        int[] sample = RandomDocumentSampler.sample(docSet, 50, new Random(1));
+        assertEquals(50, sample.length);
+        Set<Integer> distinct = new HashSet<>();
+        for (int doc : sample) {
+            assertTrue(docSet.exists(doc));
+            assertTrue(distinct.add(doc));
+        }
+        assertTrue(Arrays.equals(sample, RandomDocumentSampler.sample(docSet, 50, new Random(1))));
+        // asking for more than there are gives all of them.
+        int[] all = RandomDocumentSampler.sample(docSet, 10000, new Random(2));
+        assertEquals(docSet.size(), all.length);
+        Arrays.sort(all);
+        assertEquals(0, all[0]);
+        assertEquals(999, all[all.length - 1]);
+    }
+
+    public void testUniform() {
+        int n = 20, k = 5, runs = 20000;
+        int[] counts = new int[n];
+        Random random = new Random(3);
+        for (int run = 0; run < runs; run++) {
+            for (int position : RandomDocumentSampler.samplePositions(n, k, random)) counts[position]++;
+        }
+        double expected = (double) runs * k / n;
+        for (int count : counts) assertEquals(expected, count, expected * 0.1);
+    }
+
+    private BitDocSet createDocSet() {
+        FixedBitSet bits = new FixedBitSet(1000);
+        for (int i = 0; i < 1000; i += 3) bits.set(i);
+        bits.set(999);
+        return new BitDocSet(bits);
+    }
+}
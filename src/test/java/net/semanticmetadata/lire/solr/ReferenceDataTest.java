@@ -0,0 +1,64 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import org.apache.commons.io.IOUtils;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that the precompiled reference data is the same as the one read from the resources.
+ */
+public class ReferenceDataTest extends TestCase {
+    public void testPrecompiled() throws Exception {
+        Path directory = Files.createTempDirectory("lire-reference-data");
+        try {
+            double[][][] expected = BitSampling.readHashFunctions();
+            // the first call creates the file, the second one maps it.
+            assertTrue(Arrays.deepEquals(expected, ReferenceData.readHashFunctions(directory)));
+            assertTrue(Files.exists(directory.resolve(ReferenceData.HASH_FUNCTIONS + ".bin")));
+            assertTrue(Arrays.deepEquals(expected, ReferenceData.readHashFunctions(directory)));
+
+            byte[] resource, precompiled, mapped;
+            try (InputStream in = ReferenceData.openReferencePoints("logos-ca-ee_CEDD", null)) {
+                resource = IOUtils.toByteArray(in);
+            }
+            try (InputStream in = ReferenceData.openReferencePoints("logos-ca-ee_CEDD", directory)) {
+                precompiled = IOUtils.toByteArray(in);
+            }
+            try (InputStream in = ReferenceData.openReferencePoints("logos-ca-ee_CEDD", directory)) {
+                mapped = IOUtils.toByteArray(in);
+            }
+            assertTrue(resource.length > 0);
+            assertTrue(Arrays.equals(resource, precompiled));
+            assertTrue(Arrays.equals(resource, mapped));
+        } finally {
+            for (Path file : Files.newDirectoryStream(directory)) Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+
+    public void testLazyLoading() {
+        assertTrue(ReferenceData.supportsMetricSpaces(new CEDD()));
+        assertTrue(ReferenceData.getLoadTimes().containsKey("CEDD"));
+        assertTrue(ReferenceData.getPostingListLength(new JCD()) > 0);
+        assertTrue(ReferenceData.getLoadTimes().containsKey("JCD"));
+    }
+
+    public void testFailedLoading() {
+        // a feature whose reference points can't be read is not marked as loaded and tried again.
+        assertFalse(ReferenceData.loadReferencePoints(ReferenceDataTest.class.getName(), "missing"));
+        assertFalse(ReferenceData.isLoaded(ReferenceDataTest.class));
+        assertFalse(ReferenceData.loadReferencePoints(ReferenceDataTest.class.getName(), "missing"));
+        // features not supported by MetricSpaces have nothing to load.
+        assertTrue(ReferenceData.loadReferencePoints(ReferenceDataTest.class));
+        assertTrue(ReferenceData.isLoaded(ReferenceDataTest.class));
+        assertTrue(ReferenceData.loadReferencePoints(CEDD.class));
+        assertTrue(ReferenceData.isLoaded(CEDD.class));
+    }
+}
@@ -0,0 +1,57 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that keys are equal for the same search and differ if any of the parameters changing the results differ.
+ */
+public class ResultCacheKeyTest extends TestCase {
+    public void testEquality() {
+        ResultCacheKey key = key("field=ce&rows=10", null, new byte[]{1, 2, 3});
+        assertEquals(key, key("field=ce_ha&rows=10", null, new byte[]{1, 2, 3}));
+        assertEquals(key.hashCode(), key("field=ce_ha&rows=10", null, new byte[]{1, 2, 3}).hashCode());
+        // the hashes of the candidate query don't matter for exact search.
+        assertEquals(key("exact=true", null, new byte[]{1}), keyWithHashes("exact=true", "R000002", new byte[]{1}));
+        List<Query> fq = Collections.singletonList(new TermQuery(new Term("tags", "dog")));
+        assertEquals(key("", fq, new byte[]{1}), key("", Collections.singletonList(new TermQuery(new Term("tags", "dog"))), new byte[]{1}));
+    }
+
+    public void testDifferences() {
+        ResultCacheKey key = key("field=ce&rows=10", null, new byte[]{1, 2, 3});
+        assertFalse(key.equals(key("field=ce&rows=10", null, new byte[]{1, 2, 4})));
+        assertFalse(key.equals(key("field=cl&rows=10", null, new byte[]{1, 2, 3})));
+        assertFalse(key.equals(key("field=ce&rows=11", null, new byte[]{1, 2, 3})));
+        assertFalse(key.equals(key("field=ce&rows=10&candidates=100", null, new byte[]{1, 2, 3})));
+        assertFalse(key.equals(key("field=ce&rows=10&accuracy=0.5", null, new byte[]{1, 2, 3})));
+        assertFalse(key.equals(key("field=ce&rows=10&ms=false", null, new byte[]{1, 2, 3})));
+        assertFalse(key.equals(key("field=ce&rows=10&exact=true", null, new byte[]{1, 2, 3})));
+        assertFalse(key.equals(key("field=ce&rows=10", Collections.singletonList(new TermQuery(new Term("ce_ms", "R000001"))), new byte[]{1, 2, 3})));
+        assertFalse(key.equals(keyWithHashes("field=ce&rows=10", "R000002", new byte[]{1, 2, 3})));
+        assertFalse(keyWithHashes("field=ce&rows=10", "R000001", new byte[]{1, 2, 3}).equals(keyWithHashes("field=ce&rows=10", "R000002", new byte[]{1, 2, 3})));
+    }
+
+    private ResultCacheKey key(String params, List<Query> filterQueries, byte[] feature) {
+        return new ResultCacheKey(plan(params, filterQueries), null, feature);
+    }
+
+    private ResultCacheKey keyWithHashes(String params, String hashes, byte[] feature) {
+        return new ResultCacheKey(plan(params, null), hashes, feature);
+    }
+
+    private SearchPlan plan(String params, List<Query> filterQueries) {
+        ModifiableSolrParams solrParams = new ModifiableSolrParams();
+        for (String param : params.split("&")) {
+            if (param.isEmpty()) continue;
+            String[] pair = param.split("=");
+            solrParams.set(pair[0], pair[1]);
+        }
+        return new SearchPlan(solrParams, filterQueries);
+    }
+}
@@ -0,0 +1,66 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.metrics.SolrMetricManager;
+
+/**
+ * Checks that timings end up in the histograms, the statistics and the registry of Solr.
+ */
+public class SearchMetricsTest extends TestCase {
+    public void testTimings() throws InterruptedException {
+        SearchMetrics metrics = new SearchMetrics();
+        SearchTimings timings = new SearchTimings(metrics, "url", "cl_ha");
+        timings.start();
+        Thread.sleep(2);
+        assertTrue(timings.stop(SearchMetrics.FETCH) >= 2);
+        timings.start();
+        timings.stop(SearchMetrics.RE_RANK);
+        timings.start();
+        timings.stop(SearchMetrics.RE_RANK);
+        assertEquals(1, metrics.getHistogram("url", "cl_ha", SearchMetrics.FETCH).getCount());
+        assertEquals(2, metrics.getHistogram("url", "cl_ha", SearchMetrics.RE_RANK).getCount());
+        assertTrue(metrics.getHistogram("url", "cl_ha", SearchMetrics.FETCH).getSnapshot().getMax() >= 2000000);
+        // timings without metrics are just not recorded.
+        new SearchTimings().stop(SearchMetrics.FETCH);
+    }
+
+    public void testStatistics() {
+        SearchMetrics metrics = new SearchMetrics();
+        metrics.markRequest("id");
+        metrics.markCandidates(100, 300);
+        metrics.getHistogram("id", "ce_ha", SearchMetrics.RE_RANK).update(1000);
+        NamedList<Object> statistics = new NamedList<>();
+        metrics.addStatistics(statistics);
+        assertEquals(1L, statistics.get("Count id.requests"));
+        assertEquals(100L, statistics.get("Count candidates"));
+        assertEquals(300L, statistics.get("Count distances"));
+        assertEquals(1000L, statistics.get("Time id.ce_ha.reRank p50 (ns)"));
+        assertEquals(1000L, statistics.get("Time id.ce_ha.reRank p99 (ns)"));
+    }
+
+    public void testUnknownFields() {
+        SearchMetrics metrics = new SearchMetrics();
+        // fields from requests that are not registered share one histogram per endpoint and phase.
+        for (int i = 0; i < 100; i++) new SearchTimings(metrics, "id", "x" + i + "_ha").stop(SearchMetrics.RE_RANK);
+        new SearchTimings(metrics, "id", null).stop(SearchMetrics.RE_RANK);
+        new SearchTimings(metrics, "fusion", SearchMetrics.FUSED_FIELDS).stop(SearchMetrics.RE_RANK);
+        new SearchTimings(metrics, "id", "cl_ha").stop(SearchMetrics.RE_RANK);
+        assertEquals(3, metrics.getHistogramCount());
+        assertEquals(101, metrics.getHistogram("id", SearchMetrics.UNKNOWN_FIELD, SearchMetrics.RE_RANK).getCount());
+        assertEquals(101, metrics.getHistogram("id", "xx_ha", SearchMetrics.RE_RANK).getCount());
+        assertEquals(1, metrics.getHistogram("fusion", SearchMetrics.FUSED_FIELDS, SearchMetrics.RE_RANK).getCount());
+    }
+
+    public void testRegister() {
+        SearchMetrics metrics = new SearchMetrics();
+        metrics.getHistogram("id", "ce_ha", SearchMetrics.RE_RANK).update(1);
+        SolrMetricManager manager = new SolrMetricManager();
+        metrics.register(manager, "solr.core.test", "QUERYHANDLER", "/lireq");
+        // metrics created after the registration are added too.
+        metrics.getHistogram("url", "ce_ha", SearchMetrics.FETCH).update(1);
+        assertTrue(manager.registry("solr.core.test").getHistograms().containsKey("QUERYHANDLER./lireq.id.ce_ha.reRank"));
+        assertTrue(manager.registry("solr.core.test").getHistograms().containsKey("QUERYHANDLER./lireq.url.ce_ha.fetch"));
+        assertTrue(manager.registry("solr.core.test").getMeters().containsKey("QUERYHANDLER./lireq.candidates"));
+    }
+}
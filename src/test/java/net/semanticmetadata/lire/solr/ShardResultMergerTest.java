@@ -0,0 +1,86 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+import java.util.List;
+
+/**
+ * Checks the order, tie-breaking and de-duplication of the merged shard results and the documents added from the
+ * response of a shard.
+ */
+public class ShardResultMergerTest extends TestCase {
+    public void testMerge() {
+        ShardResultMerger merger = new ShardResultMerger(4, "shard2", "shard1");
+        merger.add("shard2", "c", 3);
+        merger.add("shard2", "a", 1);
+        merger.add("shard1", "b", 2);
+        merger.add("shard1", "x", 1);
+        merger.add("shard1", "d", 7);
+        List<ShardResultMerger.Result> results = merger.getResults();
+        assertEquals(4, results.size());
+        // equal distances are ordered by the shard listed first, shard2 here.
+        assertEquals("a", results.get(0).getId());
+        assertEquals("shard2", results.get(0).getShard());
+        assertEquals("x", results.get(1).getId());
+        assertEquals("b", results.get(2).getId());
+        assertEquals("c", results.get(3).getId());
+        assertEquals(3d, results.get(3).getDistance());
+    }
+
+    public void testDuplicates() {
+        ShardResultMerger merger = new ShardResultMerger(10, "shard1", "shard2");
+        merger.add("shard1", "a", 5);
+        merger.add("shard2", "a", 4);
+        merger.add("shard2", "b", 4);
+        List<ShardResultMerger.Result> results = merger.getResults();
+        assertEquals(2, results.size());
+        assertEquals("a", results.get(0).getId());
+        assertEquals("shard2", results.get(0).getShard());
+        assertEquals("b", results.get(1).getId());
+    }
+
+    public void testTiesAcrossShards() {
+        String[] shards = {"host1:8983/solr/images", "host2:8983/solr/images"};
+        // the same results of two shards with tied distances, arriving in different orders.
+        ShardResultMerger first = new ShardResultMerger(5, shards);
+        ShardResultMerger second = new ShardResultMerger(5, shards);
+        for (String id : new String[]{"d", "b", "a"}) first.add(shards[0], id, 1);
+        for (String id : new String[]{"c", "e", "f"}) first.add(shards[1], id, 1);
+        for (String id : new String[]{"f", "c", "e"}) second.add(shards[1], id, 1);
+        for (String id : new String[]{"a", "d", "b"}) second.add(shards[0], id, 1);
+        second.add("host0:8983/solr/images", "0", 1); // a shard not in the list comes last.
+        String[] expected = {"a", "b", "d", "c", "e"};
+        for (ShardResultMerger merger : new ShardResultMerger[]{first, second}) {
+            List<ShardResultMerger.Result> results = merger.getResults();
+            assertEquals(expected.length, results.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], results.get(i).getId());
+                assertEquals(shards[i < 3 ? 0 : 1], results.get(i).getShard());
+            }
+        }
+    }
+
+    public void testAddAll() {
+        SolrDocumentList docs = new SolrDocumentList();
+        docs.add(doc("a", 2f));
+        docs.add(doc("b", null)); // eg. a shard with a field list without the distance.
+        docs.add(doc(null, 1f));
+        docs.add(doc("c", 1d));
+        ShardResultMerger merger = new ShardResultMerger(10, "shard1");
+        assertEquals(2, merger.addAll("shard1", docs));
+        List<ShardResultMerger.Result> results = merger.getResults();
+        assertEquals(2, results.size());
+        assertEquals("c", results.get(0).getId());
+        assertEquals("a", results.get(1).getId());
+        assertEquals(2d, results.get(1).getDistance());
+    }
+
+    private static SolrDocument doc(String id, Number distance) {
+        SolrDocument doc = new SolrDocument();
+        if (id != null) doc.setField("id", id);
+        if (distance != null) doc.setField(LireReturnFields.DISTANCE_FIELD, distance);
+        return doc;
+    }
+}
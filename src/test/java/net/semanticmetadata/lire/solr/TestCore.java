@@ -0,0 +1,152 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An embedded core with the configuration of src/test/resources/solr, which keeps its index in memory, for testing
+ * the request handler with real requests.
+ */
+final class TestCore implements Closeable {
+    private final Path home;
+    private final CoreContainer container;
+    private final SolrCore core;
+
+    TestCore() throws Exception {
+        home = Files.createTempDirectory("lire-solr");
+        Path resources = Paths.get(TestCore.class.getClassLoader().getResource("solr").toURI());
+        try (Stream<Path> files = Files.walk(resources)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Path target = home.resolve(resources.relativize(file).toString());
+                if (Files.isDirectory(file)) Files.createDirectories(target);
+                else Files.copy(file, target);
+            }
+        }
+        container = new CoreContainer(home.toString());
+        container.load();
+        core = container.getCore("lire");
+    }
+
+    SolrCore getCore() {
+        return core;
+    }
+
+    /**
+     * Adds a document with the given features, their BitSampling hashes and their MetricSpaces hashes.
+     */
+    void add(String id, GlobalFeature... features) throws IOException {
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField("id", id);
+        add(document, features);
+    }
+
+    /**
+     * Adds the document along with the given features, their BitSampling hashes and their MetricSpaces hashes.
+     */
+    void add(SolrInputDocument document, GlobalFeature... features) throws IOException {
+        for (GlobalFeature feature : features) {
+            String code = FeatureRegistry.getCodeForClass(feature.getClass());
+            document.addField(FeatureRegistry.codeToFeatureField(code), feature.getByteArrayRepresentation());
+            StringBuilder hashes = new StringBuilder();
+            for (int hash : MultiProbeBitSampling.generateHashes(feature.getFeatureVector())) {
+                hashes.append(Integer.toHexString(hash)).append(' ');
+            }
+            document.addField(FeatureRegistry.codeToHashField(code), hashes.toString().trim());
+            if (ReferenceData.supportsMetricSpaces(feature))
+                document.addField(FeatureRegistry.codeToMetricSpacesField(code), ReferenceData.generateHashString(feature));
+        }
+        add(document);
+    }
+
+    void add(SolrInputDocument document) throws IOException {
+        try (SolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams())) {
+            AddUpdateCommand command = new AddUpdateCommand(req);
+            command.solrDoc = document;
+            core.getUpdateHandler().addDoc(command);
+        }
+    }
+
+    /**
+     * Commits and opens a new searcher, so every commit creates a new segment.
+     */
+    void commit() throws IOException {
+        try (SolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams())) {
+            CommitUpdateCommand command = new CommitUpdateCommand(req, false);
+            command.waitSearcher = true;
+            core.getUpdateHandler().commit(command);
+        }
+    }
+
+    /**
+     * @param handler         the name of the request handler, eg. /lireq
+     * @param paramsAndValues the parameters, each followed by its value.
+     * @return the response, with the exception if the request failed.
+     */
+    SolrQueryResponse query(String handler, String... paramsAndValues) {
+        return query(handler, 0, paramsAndValues);
+    }
+
+    /**
+     * @param handler         the name of the request handler, eg. /lireq
+     * @param age             the request is handled as if it had been started this many ms ago, eg. for timeAllowed.
+     * @param paramsAndValues the parameters, each followed by its value.
+     * @return the response, with the exception if the request failed.
+     */
+    SolrQueryResponse query(String handler, long age, String... paramsAndValues) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        for (int i = 0; i < paramsAndValues.length; i += 2) params.add(paramsAndValues[i], paramsAndValues[i + 1]);
+        SolrRequestHandler requestHandler = core.getRequestHandler(handler);
+        SolrQueryResponse rsp = new SolrQueryResponse();
+        try (SolrQueryRequest req = new LocalSolrQueryRequest(core, params) {
+            @Override
+            public long getStartTime() {
+                return super.getStartTime() - age;
+            }
+        }) {
+            core.execute(requestHandler, req, rsp);
+        }
+        return rsp;
+    }
+
+    /**
+     * @return the ids of the documents of a result in their order.
+     */
+    static List<String> getIds(Object result) throws IOException {
+        ResultContext context = (ResultContext) result;
+        List<String> ids = new ArrayList<>();
+        for (DocIterator it = context.getDocList().iterator(); it.hasNext(); ) {
+            ids.add(context.getSearcher().doc(it.nextDoc()).get("id"));
+        }
+        return ids;
+    }
+
+    @Override
+    public void close() throws IOException {
+        core.close();
+        container.shutdown();
+        try (Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
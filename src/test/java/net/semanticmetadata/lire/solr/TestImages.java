@@ -0,0 +1,29 @@
+package net.semanticmetadata.lire.solr;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Synthetic query and index images for the tests.
+ */
+final class TestImages {
+    private TestImages() {
+    }
+
+    /**
+     * @return an image of 64x64 pixels with a random background and eight random rectangles.
+     */
+    static BufferedImage createImage(Random random) {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(random.nextInt()));
+        g.fillRect(0, 0, 64, 64);
+        for (int i = 0; i < 8; i++) {
+            g.setColor(new Color(random.nextInt()));
+            g.fillRect(random.nextInt(64), random.nextInt(64), random.nextInt(32), random.nextInt(32));
+        }
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,50 @@
+package net.semanticmetadata.lire.solr;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.FCTH;
+import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
+
+import java.util.Random;
+
+/**
+ * Checks that the threshold aware distances are the same as the ones of the features and that they are only
+ * abandoned if the distance is beyond the threshold.
+ */
+public class ThresholdDistanceTest extends TestCase {
+    private final Random random = new Random(42);
+
+    public void testTanimoto() throws Exception {
+        // all but the distances of the features to themselves are beyond the half of their distance.
+        assertEquals(380, checkDistances(CEDD.class));
+        assertEquals(380, checkDistances(FCTH.class));
+        assertEquals(380, checkDistances(JCD.class));
+    }
+
+    public void testExact() throws Exception {
+        assertEquals(0, checkDistances(ColorLayout.class));
+    }
+
+    private int checkDistances(Class<? extends GlobalFeature> featureClass) throws Exception {
+        GlobalFeature[] features = new GlobalFeature[20];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = featureClass.newInstance();
+            features[i].extract(TestImages.createImage(random));
+        }
+        int abandoned = 0;
+        for (GlobalFeature query : features) {
+            ThresholdDistance distance = ThresholdDistance.create(query);
+            for (GlobalFeature feature : features) {
+                double expected = query.getDistance(feature);
+                assertEquals(expected, distance.getDistance(feature, Double.MAX_VALUE));
+                assertEquals(expected, distance.getDistance(feature, expected));
+                double bounded = distance.getDistance(feature, expected / 2);
+                if (bounded == ThresholdDistance.ABANDONED) abandoned++;
+                else assertEquals(expected, bounded);
+            }
+        }
+        return abandoned;
+    }
+}